@@ -11,8 +11,12 @@
 
 package application;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import application.include.Model;
 import application.include.Model.ClassModel;
+import application.include.Model.LinkListener;
 import application.include.Model.LinkModel;
 import application.objects.ClassBlock;
 import application.objects.Link;
@@ -26,6 +30,7 @@ import javafx.beans.value.ObservableValue;
 import javafx.collections.ListChangeListener;
 import javafx.event.EventHandler;
 import javafx.scene.Cursor;
+import javafx.scene.Node;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.paint.Color;
@@ -71,6 +76,29 @@ public class Main extends Application {
 		 */
 		data.getLinkProperty().addListener(linkListener());
 
+		/**
+		 * Listen for changes to the fields of links and update their views. One
+		 * listener serves every link, so links carry no listeners of their own.
+		 */
+		data.addLinkListener(linkFieldListener());
+
+		/**
+		 * Erase the temporary line left by a drag to link on mouse release. This is
+		 * shared by every class block, so it is only added once.
+		 */
+		window.addEventFilter(MouseEvent.MOUSE_RELEASED, new EventHandler<MouseEvent>() {
+			@Override
+			public void handle(MouseEvent e) {
+				if (window.mainPanel.getChildren().contains(line)) {
+					window.mainPanel.getChildren().remove(line);
+					window.applyCss();
+				}
+
+				// Reset src variable
+				linkSrc = -1;
+			}
+		});
+
 		try {
 			/**
 			 * Make the main window visible
@@ -81,6 +109,15 @@ public class Main extends Application {
 		}
 	}
 
+	/**
+	 * Makes sure any background save has finished and every journaled edit is on
+	 * disk before the program exits.
+	 */
+	@Override
+	public void stop() {
+		data.closeJournal();
+	}
+
 	/**
 	 * Generates and returns a ChangeListener to operate on the Class Model
 	 * 
@@ -91,6 +128,8 @@ public class Main extends Application {
 			@Override
 			public void onChanged(Change<? extends ClassModel> c) {
 				updateButtons();
+				// Blocks to take off the panel, all at once after every part of the change
+				List<Node> erased = new ArrayList<Node>();
 				while (c.next()) {
 
 					/*****************************
@@ -112,12 +151,15 @@ public class Main extends Application {
 						 *****************************/
 
 						if (c.wasAdded()) {
+							// Undo can put classes back before the end
+							int at = c.getFrom();
+							List<ClassBlock> addedBlocks = new ArrayList<ClassBlock>(c.getAddedSize());
 							for (ClassModel added : c.getAddedSubList()) {
 								// Generate new class block
 								ClassBlock newClass = new ClassBlock(added);
 								newClass.setLayoutX((double) added.getXPos());
 								newClass.setLayoutY((double) added.getYPos());
-								ClassMenu classContextMenu = new ClassMenu(added.getIndex(), data);
+								ClassMenu classContextMenu = new ClassMenu(added.getId(), data);
 								// data.addMenu(added.getIndex(), classContextMenu);
 
 								// Declare delta to be used with click events
@@ -190,9 +232,9 @@ public class Main extends Application {
 									@Override
 									public void handle(MouseEvent e) {
 										
+										// A drag is one undo step, and only if the class moved
 										if (data.safeToSave()) {
-											data.saveUndoState();
-											data.clearRedoState();
+											data.saveUndoState(added);
 										}
 										if (e.isPrimaryButtonDown()) {
 											newClass.getScene().setCursor(Cursor.DEFAULT);
@@ -337,28 +379,18 @@ public class Main extends Application {
 									}
 						        });
 						        
-						        
-						        //	Handles erasing temp line on mouse release
-						        window.addEventFilter(MouseEvent.MOUSE_RELEASED, new EventHandler<MouseEvent>(){
-									@Override
-									public void handle(MouseEvent e) {
-				
-										if (window.mainPanel.getChildren().contains(line))
-										{
-											window.mainPanel.getChildren().remove(line);
-											window.applyCss();
-											
-										}
-										
-										//	Reset src variable
-										linkSrc = -1;
-									}
-						        });
 
 								// Display class
-								addClass(newClass);
+								addClass(at++, newClass);
 								newClass.toFront();
-								window.applyCss();
+								addedBlocks.add(newClass);
+							}
+
+							// One CSS pass sizes every block added in this change
+							window.applyCss();
+							for (int i = 0; i != addedBlocks.size(); ++i) {
+								ClassBlock newClass = addedBlocks.get(i);
+								ClassModel added = c.getAddedSubList().get(i);
 								newClass.initWidthHeight();
 
 								// Set the bounds of the ClassBlock within the LinkNode
@@ -372,47 +404,23 @@ public class Main extends Application {
 						 * ELEMENT REMOVED
 						 *****************************/
 
-						else if (c.wasRemoved()) {
-							if (c.getList().size() != 0) {
-								for (ClassModel removed : c.getRemoved()) {
-									int pivot = removed.getIndex();
-									int bound = data.getLinkTail();
-
-									// Remove links that connected to removed block
-									for (int i = 0; i != bound; ++i) {
-										if (data.getLinkModel(i).getSource() == pivot
-												|| data.getLinkModel(i).getDest() == pivot) {
-											data.removeLinkModel(i);
-											--bound;
-											--i;
-										}
-									}
-
-									// Shift all index references past the removed down one
-									for (int i = 0; i != data.getLinkTail(); ++i) {
-										data.getLinkModel(i).setIndex(i);
-										if (data.getLinkModel(i).getSource() > pivot) {
-											data.getLinkModel(i).setSource(data.getLinkModel(i).getSource() - 1);
-										}
-										if (data.getLinkModel(i).getDest() > pivot) {
-											data.getLinkModel(i).setDest(data.getLinkModel(i).getDest() - 1);
-										}
-									}
-
-									for (int i = pivot; i != data.getClassTail(); ++i) {
-										data.getClassModel(i).setIndex(i);
-									}
-
-									// erase classes
-									window.removeClass(data.getClass(removed.getIndex()));
-									data.removeClass(removed.getIndex());
-								}
-							} else {
-
-							}
+						if (c.wasRemoved()) {
+							// The model has already removed the class's links. The
+							// views are found by position, so the rest of the
+							// classes don't need renumbering first. A transaction
+							// can replace classes in one change; the new views
+							// went in first, ahead of the old ones
+							int from = c.getFrom() + (c.wasAdded() ? c.getAddedSize() : 0);
+							for (int n = 0; n != c.getRemovedSize(); ++n)
+								erased.add(data.getClass(from + n));
+							// When clearing, the model drops the views itself
+							if (!data.isClearing())
+								data.removeClasses(from, from + c.getRemovedSize());
 						}
 					}
 				}
+				if (!erased.isEmpty())
+					window.removeAll(erased);
 			}
 		};
 		return classListener;
@@ -427,6 +435,8 @@ public class Main extends Application {
 		ListChangeListener<LinkModel> linkListener = new ListChangeListener<LinkModel>() {
 			@Override
 			public void onChanged(Change<? extends LinkModel> c) {
+				// Parts of links to take off the panel, all at once after every part of the change
+				List<Node> erased = new ArrayList<Node>();
 				while (c.next()) {
 					if (c.wasUpdated()) {
 						for (int i = c.getFrom(); i != c.getTo(); ++i) {
@@ -434,6 +444,7 @@ public class Main extends Application {
 						}
 					} else {
 						if (c.wasAdded()) {
+							int at = c.getFrom();
 							for (LinkModel added : c.getAddedSubList()) {
 								int srcIndex = added.getSource();
 								int destIndex = added.getDest();
@@ -454,74 +465,6 @@ public class Main extends Application {
 								 * SET UP LISTENERS
 								 *****************************/
 
-								// Label listener
-								added.getLabelProp().addListener(new ChangeListener<String>() {
-									@Override
-									public void changed(ObservableValue<? extends String> observable, String oldValue,
-											String newValue) {
-										newLink.setLabel(newValue);
-										
-										updateButtons();
-									}
-								});
-
-								// Src Min listener
-								added.getSourceMinProp().addListener(new ChangeListener<Number>() {
-									@Override
-									public void changed(ObservableValue<? extends Number> observable, Number oldValue,
-											Number newValue) {
-										newLink.setSrcMultiplicity(
-												stringifyMulti((int) newValue, added.getSourceMax()));
-										
-										updateButtons();
-									}
-								});
-
-								// Src Max listener
-								added.getSourceMaxProp().addListener(new ChangeListener<Number>() {
-									@Override
-									public void changed(ObservableValue<? extends Number> observable, Number oldValue,
-											Number newValue) {
-										newLink.setSrcMultiplicity(
-												stringifyMulti(added.getSourceMin(), (int) newValue));
-										
-										updateButtons();
-									}
-								});
-
-								// Dest Min listener
-								added.getDestMinProp().addListener(new ChangeListener<Number>() {
-									@Override
-									public void changed(ObservableValue<? extends Number> observable, Number oldValue,
-											Number newValue) {
-										newLink.setDestMultiplicity(stringifyMulti((int) newValue, added.getDestMax()));
-										
-										updateButtons();
-									}
-								});
-
-								// Dest Max listener
-								added.getDestMaxProp().addListener(new ChangeListener<Number>() {
-									@Override
-									public void changed(ObservableValue<? extends Number> observable, Number oldValue,
-											Number newValue) {
-										newLink.setDestMultiplicity(stringifyMulti(added.getDestMin(), (int) newValue));
-										
-										updateButtons();
-									}
-								});
-
-								// Type listener
-								added.getTypeProp().addListener(new ChangeListener<Number>() {
-									@Override
-									public void changed(ObservableValue<? extends Number> observable, Number oldValue,
-											Number newValue) {
-										newLink.setType((int) newValue);
-										
-										updateButtons();
-									}
-								});
-
 								// Source X position listener
 								data.getClass(srcIndex).getNode().getXProperty()
 										.addListener(new ChangeListener<Number>() {
@@ -610,63 +553,108 @@ public class Main extends Application {
 								});
 
 								// Display Link
-								addLink(newLink);
+								addLink(at++, newLink);
 								newLink.toBack();
 
 								newLink.updateLine();
 							}
-						} else if (c.wasRemoved()) {
-							for (LinkModel removed : c.getRemoved()) {
-								if (!data.isClearing()) {
-									int pivot = removed.getIndex();
-
-									data.getLink(pivot).warnLinkNodes();
-									window.remove(data.getLink(pivot));
-									data.removeLink(pivot);
-									
-									updateButtons();
-								}
+						}
+						if (c.wasRemoved()) {
+							// Links a transaction replaced went in ahead of these
+							int from = c.getFrom() + (c.wasAdded() ? c.getAddedSize() : 0);
+							for (int n = 0; n != c.getRemovedSize(); ++n) {
+								Link link = data.getLink(from + n);
+								erased.add(link);
+								erased.add(link.getLabel());
+								erased.add(link.getArrow());
+								erased.add(link.getSrcMultiplicity());
+								erased.add(link.getDestMultiplicity());
+							}
+							// When clearing, the model drops the views itself
+							if (!data.isClearing()) {
+								for (int n = 0; n != c.getRemovedSize(); ++n)
+									data.getLink(from + n).warnLinkNodes();
+								data.removeLinks(from, from + c.getRemovedSize());
 							}
 						}
 
 					}
 				}
+				if (!erased.isEmpty()) {
+					window.removeAll(erased);
+					updateButtons();
+				}
 			}
+		};
 
+		return linkListener;
+	}
 
-			/**
-			 * Take special flag values and mutate the output string based on their values (
-			 * -2 means no entry, -1 means asterisk )
-			 * 
-			 * Ranges should appear in the form "min ... max" except when starting with "*"
-			 * or if only one value has been entered
-			 * 
-			 * @param min
-			 *            The user's chosen min value of multiplicity (start of range)
-			 * @param max
-			 *            The user's chosen max value of multiplicity (end of range)
-			 * @return A correct complete string for the range
-			 */
-			private String stringifyMulti(int min, int max) {
-				String multi;
-
-				if (min == -1)
-					multi = "*";
-				else if (min == -2) {
-					if (max == -2)
-						multi = "";
-					else
-						multi = (max == -1 ? "*" : Integer.toString(max));
-				} else if (max == -2)
-					multi = (min == -1 ? "*" : Integer.toString(min));
-				else
-					multi = Integer.toString(min) + "..." + (max == -1 ? "*" : Integer.toString(max));
-
-				return multi;
+	/**
+	 * Generates and returns a LinkListener to update the view of a link whenever
+	 * a field of its LinkModel changes
+	 * 
+	 * @return the LinkListener shared by every link
+	 */
+	private LinkListener linkFieldListener() {
+		return new LinkListener() {
+			@Override
+			public void linkChanged(LinkModel changed, int field) {
+				Link link = data.getLink(changed.getIndex());
+				switch (field) {
+				case LinkModel.LABEL:
+					link.setLabel(changed.getLabel());
+					break;
+				case LinkModel.SOURCE_MIN:
+				case LinkModel.SOURCE_MAX:
+					link.setSrcMultiplicity(stringifyMulti(changed.getSourceMin(), changed.getSourceMax()));
+					break;
+				case LinkModel.DEST_MIN:
+				case LinkModel.DEST_MAX:
+					link.setDestMultiplicity(stringifyMulti(changed.getDestMin(), changed.getDestMax()));
+					break;
+				case LinkModel.TYPE:
+					link.setType(changed.getType());
+					break;
+				default:
+					// Moved ends are redrawn by the model
+					return;
+				}
+
+				updateButtons();
 			}
 		};
+	}
 
-		return linkListener;
+	/**
+	 * Take special flag values and mutate the output string based on their values (
+	 * -2 means no entry, -1 means asterisk )
+	 * 
+	 * Ranges should appear in the form "min ... max" except when starting with "*"
+	 * or if only one value has been entered
+	 * 
+	 * @param min
+	 *            The user's chosen min value of multiplicity (start of range)
+	 * @param max
+	 *            The user's chosen max value of multiplicity (end of range)
+	 * @return A correct complete string for the range
+	 */
+	private String stringifyMulti(int min, int max) {
+		String multi;
+
+		if (min == -1)
+			multi = "*";
+		else if (min == -2) {
+			if (max == -2)
+				multi = "";
+			else
+				multi = (max == -1 ? "*" : Integer.toString(max));
+		} else if (max == -2)
+			multi = (min == -1 ? "*" : Integer.toString(min));
+		else
+			multi = Integer.toString(min) + "..." + (max == -1 ? "*" : Integer.toString(max));
+
+		return multi;
 	}
 
 	/**
@@ -688,6 +676,9 @@ public class Main extends Application {
 	 * 
 	 */
 	private void updateButtons() {
+		// The window keeps them off until a background load is over
+		if (data.isLoading())
+			return;
 		if (!data.isUndoEmpty())
 			window.undo.setDisable(false);
 		else
@@ -713,22 +704,26 @@ public class Main extends Application {
 	/**
 	 * Adds the given Class Block to the visible window and to the Model
 	 * 
+	 * @param i
+	 *            The position of the Class Block's ClassModel
 	 * @param in
 	 *            The Class Block to be added
 	 */
-	private void addClass(ClassBlock in) {
-		data.addClass(in);
+	private void addClass(int i, ClassBlock in) {
+		data.addClass(i, in);
 		window.addClass(in);
 	}
 
 	/**
 	 * Adds the given Link to the visible window and to the Model.
 	 * 
+	 * @param i
+	 *            The position of the Link's LinkModel
 	 * @param in
 	 *            The link to be added
 	 */
-	private void addLink(Link in) {
-		data.addLink(in);
+	private void addLink(int i, Link in) {
+		data.addLink(i, in);
 		window.addLink(in);
 		window.addLabel(in.getLabel());
 		window.addArrow(in.getArrow());
@@ -0,0 +1,402 @@
+package application.include;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import application.include.Model.ClassModel;
+import application.include.Model.LinkModel;
+
+/**
+ * Reads diagrams written by BinaryModelWriter. See that class for the layout.
+ */
+public class BinaryModelReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/*
+	 * All decoding works on buf. When reading a stream, buf wraps a private array
+	 * that is refilled as it empties; when reading a ByteBuffer, buf is that
+	 * buffer and in is null.
+	 */
+	private InputStream in;
+	private ByteBuffer buf;
+	private long consumed = 0;
+	// Set once a read has run into the end of the input
+	private boolean truncated = false;
+
+	/**
+	 * Constructs a BinaryModelReader over a stream and checks the file header.
+	 * The stream does not need to be buffered.
+	 *
+	 * @constructor
+	 * @param inIn
+	 *            the stream to read from
+	 * @throws IOException
+	 *             Throws if the stream can't be read or isn't a binary diagram
+	 */
+	public BinaryModelReader(InputStream inIn) throws IOException {
+		this(inIn, BinaryModelWriter.MAGIC, BinaryModelWriter.VERSION);
+	}
+
+	/**
+	 * Constructs a BinaryModelReader for another file type that shares this
+	 * encoding, such as the edit journal.
+	 *
+	 * @constructor
+	 * @param inIn
+	 *            the stream to read from
+	 * @param magic
+	 *            the bytes that identify the file type
+	 * @param version
+	 *            the newest version of that file type that can be read
+	 * @throws IOException
+	 *             Throws if the stream can't be read or has the wrong header
+	 */
+	BinaryModelReader(InputStream inIn, byte[] magic, int version) throws IOException {
+		in = inIn;
+		buf = ByteBuffer.allocate(BUFFER_SIZE);
+		buf.limit(0);
+		readHeader(magic, version);
+	}
+
+	/**
+	 * Constructs a BinaryModelReader over the remaining bytes of a ByteBuffer and
+	 * checks the file header.
+	 *
+	 * @constructor
+	 * @param bytes
+	 *            the bytes to read
+	 * @throws IOException
+	 *             Throws if the bytes aren't a binary diagram
+	 */
+	public BinaryModelReader(ByteBuffer bytes) throws IOException {
+		this(bytes, BinaryModelWriter.MAGIC, BinaryModelWriter.VERSION);
+	}
+
+	/**
+	 * Constructs a BinaryModelReader over the remaining bytes of a ByteBuffer
+	 * holding another file type that shares this encoding, or part of a file.
+	 *
+	 * @constructor
+	 * @param bytes
+	 *            the bytes to read
+	 * @param magic
+	 *            the bytes that identify the file type, or null if there is no
+	 *            header to check
+	 * @param version
+	 *            the newest version of that file type that can be read
+	 * @throws IOException
+	 *             Throws if the bytes have the wrong header
+	 */
+	BinaryModelReader(ByteBuffer bytes, byte[] magic, int version) throws IOException {
+		buf = bytes;
+		if (magic != null)
+			readHeader(magic, version);
+	}
+
+	/**
+	 * Reads a whole document and adds every class and link to the model, in file
+	 * order, as one change to each of its lists.
+	 *
+	 * @param model
+	 *            The Model to add the classes and links to
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public void read(Model model) throws IOException {
+		int size = readClassCount();
+		List<ClassModel> classes = new ArrayList<ClassModel>(Math.min(size, 1 << 16));
+		for (int i = 0; i != size; ++i) {
+			int[] ints = new int[5];
+			String[] strings = new String[4];
+			readClass(ints, strings);
+			classes.add(model.new ClassModel(ints, strings));
+		}
+
+		size = readLinkCount();
+		List<LinkModel> links = new ArrayList<LinkModel>(Math.min(size, 1 << 16));
+		for (int i = 0; i != size; ++i) {
+			int[] ints = new int[8];
+			String label = readLink(ints);
+			links.add(model.new LinkModel(ints, label));
+		}
+
+		model.addClassModels(classes);
+		model.addLinkModels(links);
+	}
+
+	/**
+	 * Reads the number of class records that follow.
+	 *
+	 * @return the number of classes
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public int readClassCount() throws IOException {
+		return readCount();
+	}
+
+	/**
+	 * Reads one class record.
+	 *
+	 * @param ints
+	 *            filled with [index] [x] [y] [width] [height]
+	 * @param strings
+	 *            filled with [name] [attributes] [operations] [description]
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public void readClass(int[] ints, String[] strings) throws IOException {
+		for (int i = 0; i != 5; ++i)
+			ints[i] = readInt();
+		for (int i = 0; i != 4; ++i)
+			strings[i] = readString();
+	}
+
+	/**
+	 * Reads the number of link records that follow.
+	 *
+	 * @return the number of links
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public int readLinkCount() throws IOException {
+		return readCount();
+	}
+
+	/**
+	 * Reads one link record.
+	 *
+	 * @param ints
+	 *            filled with [index] [type] [source] [dest] [source min] [source
+	 *            max] [dest min] [dest max]
+	 * @return the link's label
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public String readLink(int[] ints) throws IOException {
+		for (int i = 0; i != 8; ++i)
+			ints[i] = readInt();
+		return readString();
+	}
+
+	/**
+	 * Reads a length-prefixed UTF-8 String.
+	 *
+	 * @return the String, which may be null
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public String readString() throws IOException {
+		int length = readStringLength();
+		if (length == -1)
+			return null;
+
+		if (length <= BUFFER_SIZE) {
+			require(length);
+			String s;
+			if (buf.hasArray()) {
+				s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+				buf.position(buf.position() + length);
+			} else {
+				byte[] bytes = new byte[length];
+				buf.get(bytes);
+				s = new String(bytes, StandardCharsets.UTF_8);
+			}
+			return s;
+		}
+
+		// Longer than the stream buffer, so copy it out piece by piece
+		byte[] bytes = new byte[length];
+		int done = 0;
+		while (done != length) {
+			require(1);
+			int chunk = Math.min(length - done, buf.remaining());
+			buf.get(bytes, done, chunk);
+			done += chunk;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the offset of the next unread byte. Only meaningful when reading a
+	 * ByteBuffer.
+	 *
+	 * @return the position in the ByteBuffer
+	 */
+	public int position() {
+		return buf.position();
+	}
+
+	/**
+	 * Moves to an offset previously returned by position. Only allowed when
+	 * reading a ByteBuffer.
+	 *
+	 * @param position
+	 *            the offset to continue reading from
+	 */
+	public void seek(int position) {
+		if (in != null)
+			throw new IllegalStateException("can't seek in a stream");
+		buf.position(position);
+	}
+
+	/**
+	 * Closes the underlying stream, if there is one.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (in != null)
+			in.close();
+	}
+
+	/*****************************
+	 * DECODING
+	 ****************************/
+
+	private void readHeader(byte[] magic, int newest) throws IOException {
+		for (byte b : magic) {
+			require(1);
+			if (buf.get() != b)
+				throw error("not a binary UML diagram");
+		}
+
+		int version = readVarInt();
+		if (version < 1 || version > newest)
+			throw error("unsupported format version " + version);
+	}
+
+	/**
+	 * Tells whether every byte has been read.
+	 *
+	 * @return true at the end of the input
+	 * @throws IOException
+	 *             Throws if the stream can't be read
+	 */
+	boolean atEnd() throws IOException {
+		if (buf.hasRemaining())
+			return false;
+		return in == null || !fill(1);
+	}
+
+	/**
+	 * Tells whether a read failed because the input ended partway through what it
+	 * was reading, rather than because of what it found.
+	 *
+	 * @return true once the input has run out mid-read
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Returns the number of bytes read so far.
+	 */
+	long offset() {
+		return consumed + buf.position();
+	}
+
+	/**
+	 * Reads a single byte.
+	 */
+	byte readByte() throws IOException {
+		require(1);
+		return buf.get();
+	}
+
+	private int readCount() throws IOException {
+		int count = readVarInt();
+		if (count < 0)
+			throw error("record count can't be negative");
+		return count;
+	}
+
+	/**
+	 * Reads a zigzag varint.
+	 */
+	int readInt() throws IOException {
+		int i = readVarInt();
+		return (i >>> 1) ^ -(i & 1);
+	}
+
+	/**
+	 * Reads a long written as eight bytes, high bits first.
+	 */
+	long readLong() throws IOException {
+		require(8);
+		return buf.getLong();
+	}
+
+	/**
+	 * Reads an unsigned varint, 7 bits per byte, low bits first.
+	 */
+	int readVarInt() throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			require(1);
+			byte b = buf.get();
+			result |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return result;
+		}
+		throw error("malformed number");
+	}
+
+	/**
+	 * Reads the length prefix of a String.
+	 *
+	 * @return the number of UTF-8 bytes that follow, or -1 for null
+	 */
+	private int readStringLength() throws IOException {
+		int length = readVarInt() - 1;
+		if (length < -1)
+			throw error("malformed string length");
+		return length;
+	}
+
+	/*****************************
+	 * BUFFER
+	 ****************************/
+
+	/**
+	 * Makes sure at least n bytes are available in buf.
+	 */
+	private void require(int n) throws IOException {
+		if (buf.remaining() < n && (in == null || !fill(n))) {
+			truncated = true;
+			throw error("unexpected end of file");
+		}
+	}
+
+	/**
+	 * Reads from the stream until at least n bytes are available.
+	 *
+	 * @return false if the stream ended first
+	 */
+	private boolean fill(int n) throws IOException {
+		consumed += buf.position();
+		buf.compact();
+		while (buf.position() < n) {
+			int read = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			if (read == -1) {
+				buf.flip();
+				return false;
+			}
+			buf.position(buf.position() + read);
+		}
+		buf.flip();
+		return true;
+	}
+
+	/**
+	 * Builds an exception pointing at the next unread byte.
+	 */
+	private ModelFormatException error(String message) {
+		return new ModelFormatException(message, consumed + buf.position());
+	}
+}
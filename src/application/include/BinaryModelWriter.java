@@ -0,0 +1,262 @@
+package application.include;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import application.include.ModelSnapshot.ClassRecord;
+import application.include.ModelSnapshot.LinkRecord;
+
+/**
+ * Writes diagrams in the compact binary format read by BinaryModelReader. This
+ * sequential layout is version 1; saved diagrams now use the chunked layout of
+ * ChunkedModelFile, whose chunks hold records encoded by this class.
+ *
+ * Layout: the magic bytes "UMLB", the format version, the class count, each
+ * class, the link count and then each link. Every int is a zigzag varint (so
+ * the -1/-2 multiplicity flags stay one byte) and every String is a varint
+ * byte length plus one, followed by its UTF-8 bytes. A length of 0 marks a
+ * null String.
+ */
+public class BinaryModelWriter implements Closeable {
+
+	public static final byte[] MAGIC = { 'U', 'M', 'L', 'B' };
+	public static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private OutputStream out;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int pos = 0;
+
+	/**
+	 * Constructs a BinaryModelWriter and writes the file header. The stream does
+	 * not need to be buffered.
+	 *
+	 * @constructor
+	 * @param outIn
+	 *            the stream to write to
+	 * @throws IOException
+	 *             Throws if the header can't be written
+	 */
+	public BinaryModelWriter(OutputStream outIn) throws IOException {
+		this(outIn, MAGIC, VERSION);
+	}
+
+	/**
+	 * Constructs a BinaryModelWriter for another file type that shares this
+	 * encoding, such as the edit journal.
+	 *
+	 * @constructor
+	 * @param outIn
+	 *            the stream to write to
+	 * @param magic
+	 *            the bytes that identify the file type, or null to skip the
+	 *            header when appending to a file that already has one
+	 * @param version
+	 *            the version of that file type
+	 * @throws IOException
+	 *             Throws if the header can't be written
+	 */
+	BinaryModelWriter(OutputStream outIn, byte[] magic, int version) throws IOException {
+		out = outIn;
+		if (magic != null) {
+			for (byte b : magic)
+				writeByte(b);
+			writeVarInt(version);
+		}
+	}
+
+	/**
+	 * Writes the number of class records that follow.
+	 *
+	 * @param size
+	 *            the number of classes
+	 * @throws IOException
+	 *             Throws if the stream can't be written to
+	 */
+	public void writeClassCount(int size) throws IOException {
+		writeVarInt(size);
+	}
+
+	/**
+	 * Writes one class record.
+	 *
+	 * @param record
+	 *            the class to write
+	 * @throws IOException
+	 *             Throws if the stream can't be written to
+	 */
+	public void writeClass(ClassRecord record) throws IOException {
+		writeInt(record.index);
+		writeInt(record.xPos);
+		writeInt(record.yPos);
+		writeInt(record.width);
+		writeInt(record.height);
+		writeString(record.name);
+		writeString(record.attr);
+		writeString(record.oper);
+		writeString(record.desc);
+	}
+
+	/**
+	 * Writes the number of link records that follow.
+	 *
+	 * @param size
+	 *            the number of links
+	 * @throws IOException
+	 *             Throws if the stream can't be written to
+	 */
+	public void writeLinkCount(int size) throws IOException {
+		writeVarInt(size);
+	}
+
+	/**
+	 * Writes one link record.
+	 *
+	 * @param record
+	 *            the link to write
+	 * @throws IOException
+	 *             Throws if the stream can't be written to
+	 */
+	public void writeLink(LinkRecord record) throws IOException {
+		writeInt(record.index);
+		writeInt(record.type);
+		writeInt(record.source);
+		writeInt(record.dest);
+		writeInt(record.sourceMin);
+		writeInt(record.sourceMax);
+		writeInt(record.destMin);
+		writeInt(record.destMax);
+		writeString(record.label);
+	}
+
+	/**
+	 * Writes out anything still buffered.
+	 *
+	 * @throws IOException
+	 *             Throws if the stream can't be written to
+	 */
+	public void flush() throws IOException {
+		out.write(buffer, 0, pos);
+		pos = 0;
+		out.flush();
+	}
+
+	/**
+	 * Flushes and closes the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/*****************************
+	 * ENCODING
+	 ****************************/
+
+	/**
+	 * Writes a signed int as a zigzag varint.
+	 */
+	void writeInt(int i) throws IOException {
+		writeVarInt((i << 1) ^ (i >> 31));
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte, low bits first.
+	 */
+	void writeVarInt(int i) throws IOException {
+		if (BUFFER_SIZE - pos < 5)
+			drain();
+		while ((i & ~0x7F) != 0) {
+			buffer[pos++] = (byte) ((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		buffer[pos++] = (byte) i;
+	}
+
+	/**
+	 * Writes a long as eight bytes, high bits first.
+	 */
+	void writeLong(long l) throws IOException {
+		for (int shift = 56; shift >= 0; shift -= 8)
+			writeByte((byte) (l >>> shift));
+	}
+
+	/**
+	 * Writes a length-prefixed String, encoding UTF-8 straight into the buffer.
+	 */
+	void writeString(String s) throws IOException {
+		if (s == null) {
+			writeVarInt(0);
+			return;
+		}
+
+		writeVarInt(utf8Length(s) + 1);
+		for (int i = 0; i != s.length(); ++i) {
+			if (BUFFER_SIZE - pos < 4)
+				drain();
+
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[pos++] = (byte) (0xC0 | (c >> 6));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 != s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int code = Character.toCodePoint(c, s.charAt(++i));
+				buffer[pos++] = (byte) (0xF0 | (code >> 18));
+				buffer[pos++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (code & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates can't be encoded, same as String.getBytes
+				buffer[pos++] = '?';
+			} else {
+				buffer[pos++] = (byte) (0xE0 | (c >> 12));
+				buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes writeString will use for the characters of s.
+	 */
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i != s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 != s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				++i;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	void writeByte(byte b) throws IOException {
+		if (pos == BUFFER_SIZE)
+			drain();
+		buffer[pos++] = b;
+	}
+
+	private void drain() throws IOException {
+		out.write(buffer, 0, pos);
+		pos = 0;
+	}
+}
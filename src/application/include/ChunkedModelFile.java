@@ -0,0 +1,786 @@
+package application.include;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+
+import application.include.Model.ClassModel;
+import application.include.Model.LinkModel;
+
+/**
+ * The chunked layout binary diagrams use from version 2 on. Classes and links
+ * are stored in chunks of CHUNK_SIZE records, encoded the same way as in
+ * version 1, and an index lists where each chunk is. A fixed size header at the
+ * start of the file points at the current index.
+ *
+ * Chunks are never overwritten. Saving over the file a diagram came from
+ * appends only the chunks holding changed records and a new index, then points
+ * the header at it, so the time taken follows the size of the edit rather than
+ * the size of the diagram. A save cut short leaves the header pointing at the
+ * old index. Chunks that are no longer indexed are dropped the next time the
+ * whole file is rewritten, which happens once they outgrow the live ones.
+ *
+ * Layout: "UMLB", the version as one byte, three bytes of padding and the index
+ * offset as a long. The index is its length as an int, then a generation
+ * number that is new for every save, then for the classes and then the links:
+ * the record count, the chunk count, and each chunk's offset (a long) and
+ * length.
+ *
+ * From version 3 the index ends with a footer for readers that only want part
+ * of the diagram: the length of every class record and then every link record,
+ * which place each record within its chunk, followed by the name of every
+ * class. Reading the index is then enough to list the classes, and any one
+ * record can be read with a single seek. Version 2 files are still read, and
+ * are rewritten in full the first time they are saved.
+ */
+public class ChunkedModelFile {
+
+	public static final int VERSION = 3;
+	// The oldest chunked version, which has no footer
+	private static final int FIRST_VERSION = 2;
+	// Records per chunk
+	public static final int CHUNK_SIZE = 256;
+
+	private static final int HEADER_SIZE = 16;
+	// Where in the header the index offset is kept
+	private static final int INDEX_POINTER = 8;
+
+	private int version;
+	private long indexOffset;
+	private int indexLength;
+	private long generation;
+	private int classCount;
+	private long[] classOffsets;
+	private int[] classLengths;
+	private int linkCount;
+	private long[] linkOffsets;
+	private int[] linkLengths;
+
+	// The footer, decoded the first time it is needed
+	private ByteBuffer footer;
+	private int[] classRecordLengths;
+	private int[] linkRecordLengths;
+	private String[] classNames;
+
+	/**
+	 * Parses an index.
+	 *
+	 * @constructor
+	 * @param versionIn
+	 *            the version in the file's header
+	 * @param offset
+	 *            where the index starts in the file
+	 * @param index
+	 *            the index, without its length
+	 * @throws IOException
+	 *             Throws if the index is malformed
+	 */
+	private ChunkedModelFile(int versionIn, long offset, ByteBuffer index) throws IOException {
+		version = versionIn;
+		indexOffset = offset;
+		indexLength = index.remaining();
+		BinaryModelReader reader = new BinaryModelReader(index, null, 0);
+		generation = reader.readLong();
+
+		classCount = reader.readClassCount();
+		int chunks = reader.readVarInt();
+		if (chunks != chunkCount(classCount))
+			throw new ModelFormatException("class chunk count doesn't match the class count", offset);
+		classOffsets = new long[chunks];
+		classLengths = new int[chunks];
+		for (int c = 0; c != chunks; ++c) {
+			classOffsets[c] = reader.readLong();
+			classLengths[c] = reader.readVarInt();
+		}
+
+		linkCount = reader.readLinkCount();
+		chunks = reader.readVarInt();
+		if (chunks != chunkCount(linkCount))
+			throw new ModelFormatException("link chunk count doesn't match the link count", offset);
+		linkOffsets = new long[chunks];
+		linkLengths = new int[chunks];
+		for (int c = 0; c != chunks; ++c) {
+			linkOffsets[c] = reader.readLong();
+			linkLengths[c] = reader.readVarInt();
+		}
+
+		if (version >= 3) {
+			index.position(reader.position());
+			footer = index.slice();
+		}
+	}
+
+	/**
+	 * Tells whether some bytes start with a chunked diagram header.
+	 *
+	 * @param bytes
+	 *            the start of a file, from position 0
+	 * @return true for a binary diagram of version 2 or later
+	 */
+	public static boolean isChunked(ByteBuffer bytes) {
+		if (bytes.limit() < HEADER_SIZE)
+			return false;
+		for (int i = 0; i != BinaryModelWriter.MAGIC.length; ++i) {
+			if (bytes.get(i) != BinaryModelWriter.MAGIC[i])
+				return false;
+		}
+		int version = bytes.get(BinaryModelWriter.MAGIC.length);
+		return version >= FIRST_VERSION && version <= VERSION;
+	}
+
+	/**
+	 * Tells whether a file is a chunked diagram.
+	 *
+	 * @param file
+	 *            the file to check
+	 * @return true for a binary diagram of version 2 or later
+	 * @throws IOException
+	 *             Throws if the file exists but can't be read
+	 */
+	public static boolean isChunked(File file) throws IOException {
+		if (file.length() < HEADER_SIZE)
+			return false;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			raf.readFully(header);
+			return isChunked(ByteBuffer.wrap(header));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the index of a chunked diagram held in memory.
+	 *
+	 * @param file
+	 *            the whole file
+	 * @return the index
+	 * @throws IOException
+	 *             Throws if the bytes aren't a chunked diagram
+	 */
+	public static ChunkedModelFile readIndex(ByteBuffer file) throws IOException {
+		if (!isChunked(file))
+			throw new ModelFormatException("not a chunked UML diagram", 0);
+		long offset = file.getLong(INDEX_POINTER);
+		if (offset < HEADER_SIZE || offset > file.limit() - 4)
+			throw new ModelFormatException("index offset out of range", INDEX_POINTER);
+		int length = file.getInt((int) offset);
+		if (length < 0 || length > file.limit() - offset - 4)
+			throw new ModelFormatException("index length out of range", offset);
+
+		ByteBuffer index = file.duplicate();
+		index.limit((int) offset + 4 + length);
+		index.position((int) offset + 4);
+		return new ChunkedModelFile(file.get(BinaryModelWriter.MAGIC.length), offset, index.slice());
+	}
+
+	/**
+	 * Reads the index of a chunked diagram on disk without reading its chunks.
+	 *
+	 * @param raf
+	 *            the open file
+	 * @return the index
+	 * @throws IOException
+	 *             Throws if the file can't be read or isn't a chunked diagram
+	 */
+	public static ChunkedModelFile readIndex(RandomAccessFile raf) throws IOException {
+		if (raf.length() < HEADER_SIZE)
+			throw new ModelFormatException("not a chunked UML diagram", 0);
+		byte[] header = new byte[HEADER_SIZE];
+		raf.seek(0);
+		raf.readFully(header);
+		if (!isChunked(ByteBuffer.wrap(header)))
+			throw new ModelFormatException("not a chunked UML diagram", 0);
+
+		long offset = ByteBuffer.wrap(header).getLong(INDEX_POINTER);
+		if (offset < HEADER_SIZE || offset > raf.length() - 4)
+			throw new ModelFormatException("index offset out of range", INDEX_POINTER);
+		raf.seek(offset);
+		int length = raf.readInt();
+		if (length < 0 || length > raf.length() - offset - 4)
+			throw new ModelFormatException("index length out of range", offset);
+
+		byte[] index = new byte[length];
+		raf.readFully(index);
+		return new ChunkedModelFile(header[BinaryModelWriter.MAGIC.length], offset, ByteBuffer.wrap(index));
+	}
+
+	/**
+	 * Reads the index of a chunked diagram on disk without reading its chunks.
+	 *
+	 * @param file
+	 *            the file to read
+	 * @return the index
+	 * @throws IOException
+	 *             Throws if the file can't be read or isn't a chunked diagram
+	 */
+	public static ChunkedModelFile readIndex(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return readIndex(raf);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*****************************
+	 * INDEX
+	 ****************************/
+
+	/**
+	 * Returns the number saved with this index. Every save picks a new one, so it
+	 * tells whether the file has been saved over since it was last seen.
+	 *
+	 * @return the generation
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns where the index starts in the file
+	 *
+	 * @return the offset of the index
+	 */
+	public long getIndexOffset() {
+		return indexOffset;
+	}
+
+	/**
+	 * Returns the number of classes in the file
+	 *
+	 * @return the number of class records
+	 */
+	public int getClassCount() {
+		return classCount;
+	}
+
+	/**
+	 * Returns the number of links in the file
+	 *
+	 * @return the number of link records
+	 */
+	public int getLinkCount() {
+		return linkCount;
+	}
+
+	/**
+	 * Returns the number of chunks the classes are split into
+	 *
+	 * @return the number of class chunks
+	 */
+	public int getClassChunkCount() {
+		return classOffsets.length;
+	}
+
+	/**
+	 * Returns the number of chunks the links are split into
+	 *
+	 * @return the number of link chunks
+	 */
+	public int getLinkChunkCount() {
+		return linkOffsets.length;
+	}
+
+	/**
+	 * Returns where a chunk of classes starts in the file
+	 *
+	 * @param chunk
+	 *            the chunk, counting from 0
+	 * @return the offset of its first record
+	 */
+	public long getClassChunk(int chunk) {
+		return classOffsets[chunk];
+	}
+
+	/**
+	 * Returns where a chunk of links starts in the file
+	 *
+	 * @param chunk
+	 *            the chunk, counting from 0
+	 * @return the offset of its first record
+	 */
+	public long getLinkChunk(int chunk) {
+		return linkOffsets[chunk];
+	}
+
+	/**
+	 * Tells whether the index ends with the footer of record lengths and class
+	 * names, which files from version 3 on have
+	 *
+	 * @return true if the footer methods can be used
+	 */
+	public boolean hasFooter() {
+		return footer != null;
+	}
+
+	/**
+	 * Returns where a class record starts in the file
+	 *
+	 * @param i
+	 *            the position of the class
+	 * @return the offset of the record
+	 * @throws IOException
+	 *             Throws if the index has no footer or it is malformed
+	 */
+	public long getClassRecord(int i) throws IOException {
+		readFooter();
+		return recordOffset(classOffsets, classRecordLengths, i);
+	}
+
+	/**
+	 * Returns the length of a class record
+	 *
+	 * @param i
+	 *            the position of the class
+	 * @return the record's length in bytes
+	 * @throws IOException
+	 *             Throws if the index has no footer or it is malformed
+	 */
+	public int getClassRecordLength(int i) throws IOException {
+		readFooter();
+		return classRecordLengths[i];
+	}
+
+	/**
+	 * Returns where a link record starts in the file
+	 *
+	 * @param i
+	 *            the position of the link
+	 * @return the offset of the record
+	 * @throws IOException
+	 *             Throws if the index has no footer or it is malformed
+	 */
+	public long getLinkRecord(int i) throws IOException {
+		readFooter();
+		return recordOffset(linkOffsets, linkRecordLengths, i);
+	}
+
+	/**
+	 * Returns the length of a link record
+	 *
+	 * @param i
+	 *            the position of the link
+	 * @return the record's length in bytes
+	 * @throws IOException
+	 *             Throws if the index has no footer or it is malformed
+	 */
+	public int getLinkRecordLength(int i) throws IOException {
+		readFooter();
+		return linkRecordLengths[i];
+	}
+
+	/**
+	 * Returns the name of a class, from the footer
+	 *
+	 * @param i
+	 *            the position of the class
+	 * @return the class's name
+	 * @throws IOException
+	 *             Throws if the index has no footer or it is malformed
+	 */
+	public String getClassName(int i) throws IOException {
+		readFooter();
+		return classNames[i];
+	}
+
+	/**
+	 * Returns the name of every class, in order, from the footer
+	 *
+	 * @return an unmodifiable list of the names
+	 * @throws IOException
+	 *             Throws if the index has no footer or it is malformed
+	 */
+	public List<String> getClassNames() throws IOException {
+		readFooter();
+		return Collections.unmodifiableList(Arrays.asList(classNames));
+	}
+
+	/**
+	 * Decodes the footer, the first time it is asked for.
+	 */
+	private synchronized void readFooter() throws IOException {
+		if (classNames != null)
+			return;
+		if (footer == null)
+			throw new ModelFormatException("version " + version + " diagrams have no index footer", indexOffset);
+
+		BinaryModelReader reader = new BinaryModelReader(footer.duplicate(), null, 0);
+		int[] classRecordsIn = recordLengths(reader, classCount, classLengths);
+		int[] linkRecordsIn = recordLengths(reader, linkCount, linkLengths);
+		String[] names = new String[classCount];
+		for (int i = 0; i != names.length; ++i)
+			names[i] = reader.readString();
+
+		classRecordLengths = classRecordsIn;
+		linkRecordLengths = linkRecordsIn;
+		classNames = names;
+	}
+
+	/**
+	 * Reads the length of each record, checking they add up to their chunks.
+	 */
+	private int[] recordLengths(BinaryModelReader reader, int records, int[] chunkLengths) throws IOException {
+		int[] lengths = new int[records];
+		for (int c = 0; c != chunkLengths.length; ++c) {
+			long total = 0;
+			for (int i = c * CHUNK_SIZE, end = i + chunkRecords(records, c); i != end; ++i) {
+				lengths[i] = reader.readVarInt();
+				total += lengths[i];
+			}
+			if (total != chunkLengths[c])
+				throw new ModelFormatException("record lengths don't fill chunk " + c, indexOffset);
+		}
+		return lengths;
+	}
+
+	private static long recordOffset(long[] chunkOffsets, int[] recordLengths, int i) {
+		long offset = chunkOffsets[i / CHUNK_SIZE];
+		for (int r = i - i % CHUNK_SIZE; r != i; ++r)
+			offset += recordLengths[r];
+		return offset;
+	}
+
+	/**
+	 * Returns the number of bytes still in use: the header, the indexed chunks
+	 * and the index. Anything else in the file is left over from earlier saves.
+	 *
+	 * @return the live size of the file
+	 */
+	public long getLiveBytes() {
+		long live = HEADER_SIZE + 4 + indexLength;
+		for (int length : classLengths)
+			live += length;
+		for (int length : linkLengths)
+			live += length;
+		return live;
+	}
+
+	/**
+	 * Returns the number of chunks needed for a number of records
+	 *
+	 * @param records
+	 *            the number of records
+	 * @return the number of chunks
+	 */
+	public static int chunkCount(int records) {
+		return (records + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	/**
+	 * Returns the number of records in a chunk
+	 *
+	 * @param records
+	 *            the total number of records
+	 * @param chunk
+	 *            the chunk, counting from 0
+	 * @return how many of the records are in that chunk
+	 */
+	public static int chunkRecords(int records, int chunk) {
+		return Math.min(CHUNK_SIZE, records - chunk * CHUNK_SIZE);
+	}
+
+	/*****************************
+	 * READING
+	 ****************************/
+
+	/**
+	 * Decodes every chunk and adds the classes and links to a model, in order.
+	 * Chunks are independent, so they are decoded in parallel on the common
+	 * fork-join pool, and the records are handed to the model in one step once
+	 * all of them are decoded.
+	 *
+	 * @param file
+	 *            the whole file this index was read from
+	 * @param model
+	 *            the model to add to
+	 * @throws IOException
+	 *             Throws if a chunk is malformed; the model is unchanged
+	 */
+	public void read(ByteBuffer file, Model model) throws IOException {
+		ClassModel[] classes = new ClassModel[classCount];
+		LinkModel[] links = new LinkModel[linkCount];
+		try {
+			new DecodeChunks(file, model, classes, links, 0, classOffsets.length + linkOffsets.length).invoke();
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+		model.addDecoded(Arrays.asList(classes), Arrays.asList(links));
+	}
+
+	/**
+	 * Decodes chunks [from, to), counting the class chunks first and then the
+	 * link chunks, splitting the range in half until it is a few chunks.
+	 */
+	private class DecodeChunks extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		// Chunks decoded by one fork-join task
+		private static final int BATCH = 4;
+
+		private ByteBuffer file;
+		private Model model;
+		private ClassModel[] classes;
+		private LinkModel[] links;
+		private int from;
+		private int to;
+
+		DecodeChunks(ByteBuffer fileIn, Model modelIn, ClassModel[] classesIn, LinkModel[] linksIn, int fromIn,
+				int toIn) {
+			file = fileIn;
+			model = modelIn;
+			classes = classesIn;
+			links = linksIn;
+			from = fromIn;
+			to = toIn;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BATCH) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new DecodeChunks(file, model, classes, links, from, middle),
+						new DecodeChunks(file, model, classes, links, middle, to));
+				return;
+			}
+
+			try {
+				BinaryModelReader reader = new BinaryModelReader(file.duplicate(), null, 0);
+				for (int c = from; c != to; ++c) {
+					if (c < classOffsets.length)
+						decodeClasses(reader, c);
+					else
+						decodeLinks(reader, c - classOffsets.length);
+				}
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+
+		private void decodeClasses(BinaryModelReader reader, int c) throws IOException {
+			reader.seek(checkChunk(classOffsets[c], classLengths[c], file));
+			for (int r = 0; r != chunkRecords(classCount, c); ++r) {
+				int[] ints = new int[5];
+				String[] strings = new String[4];
+				reader.readClass(ints, strings);
+				classes[c * CHUNK_SIZE + r] = model.new ClassModel(ints, strings);
+			}
+		}
+
+		private void decodeLinks(BinaryModelReader reader, int c) throws IOException {
+			reader.seek(checkChunk(linkOffsets[c], linkLengths[c], file));
+			for (int r = 0; r != chunkRecords(linkCount, c); ++r) {
+				int[] ints = new int[8];
+				String label = reader.readLink(ints);
+				links[c * CHUNK_SIZE + r] = model.new LinkModel(ints, label);
+			}
+		}
+	}
+
+	/**
+	 * Makes sure a chunk lies inside the file.
+	 *
+	 * @return the chunk's offset
+	 */
+	static int checkChunk(long offset, int length, ByteBuffer file) throws ModelFormatException {
+		if (offset < HEADER_SIZE || offset + length > file.limit())
+			throw new ModelFormatException("chunk out of range", offset);
+		return (int) offset;
+	}
+
+	/*****************************
+	 * WRITING
+	 ****************************/
+
+	/**
+	 * Writes a snapshot into a file.
+	 *
+	 * With no old index the file is emptied and every chunk is written. With the
+	 * file's current index, chunks of records that haven't changed are kept, and
+	 * only the chunks marked dirty, or whose record count changed, are appended.
+	 * Either way the header is only pointed at the new index once everything
+	 * else has reached the disk, and an incremental save that fails is trimmed
+	 * back off the file.
+	 *
+	 * @param raf
+	 *            the file, open for writing
+	 * @param old
+	 *            the file's current index, which must have a footer, or null to
+	 *            write it from scratch
+	 * @param snapshot
+	 *            the records to save
+	 * @param dirtyClasses
+	 *            the class chunks changed since old was written
+	 * @param dirtyLinks
+	 *            the link chunks changed since old was written
+	 * @return the new generation
+	 * @throws IOException
+	 *             Throws if the file can't be written to or the save was
+	 *             interrupted
+	 */
+	public static long write(RandomAccessFile raf, ChunkedModelFile old, ModelSnapshot snapshot,
+			BitSet dirtyClasses, BitSet dirtyLinks) throws IOException {
+		long oldLength = raf.length();
+		try {
+			if (old == null) {
+				raf.setLength(0);
+				raf.write(BinaryModelWriter.MAGIC);
+				raf.write(new byte[] { VERSION, 0, 0, 0 });
+				raf.writeLong(0);
+			}
+
+			if (old != null)
+				old.readFooter();
+
+			int classes = snapshot.getClassCount();
+			long[] classOffsetsOut = new long[chunkCount(classes)];
+			int[] classLengthsOut = new int[classOffsetsOut.length];
+			int[] classRecordsOut = new int[classes];
+			for (int c = 0; c != classOffsetsOut.length; ++c) {
+				int first = c * CHUNK_SIZE;
+				int end = first + chunkRecords(classes, c);
+				if (old != null && c < old.classOffsets.length && !dirtyClasses.get(c)
+						&& chunkRecords(old.classCount, c) == chunkRecords(classes, c)) {
+					classOffsetsOut[c] = old.classOffsets[c];
+					classLengthsOut[c] = old.classLengths[c];
+					System.arraycopy(old.classRecordLengths, first, classRecordsOut, first, end - first);
+					continue;
+				}
+
+				ModelSnapshot.checkCancelled();
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+				BinaryModelWriter writer = new BinaryModelWriter(chunk, null, 0);
+				for (int i = first; i != end; ++i) {
+					int start = chunk.size();
+					writer.writeClass(snapshot.getClassRecord(i));
+					writer.flush();
+					classRecordsOut[i] = chunk.size() - start;
+				}
+				classOffsetsOut[c] = append(raf, chunk);
+				classLengthsOut[c] = chunk.size();
+			}
+
+			int links = snapshot.getLinkCount();
+			long[] linkOffsetsOut = new long[chunkCount(links)];
+			int[] linkLengthsOut = new int[linkOffsetsOut.length];
+			int[] linkRecordsOut = new int[links];
+			for (int c = 0; c != linkOffsetsOut.length; ++c) {
+				int first = c * CHUNK_SIZE;
+				int end = first + chunkRecords(links, c);
+				if (old != null && c < old.linkOffsets.length && !dirtyLinks.get(c)
+						&& chunkRecords(old.linkCount, c) == chunkRecords(links, c)) {
+					linkOffsetsOut[c] = old.linkOffsets[c];
+					linkLengthsOut[c] = old.linkLengths[c];
+					System.arraycopy(old.linkRecordLengths, first, linkRecordsOut, first, end - first);
+					continue;
+				}
+
+				ModelSnapshot.checkCancelled();
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+				BinaryModelWriter writer = new BinaryModelWriter(chunk, null, 0);
+				for (int i = first; i != end; ++i) {
+					int start = chunk.size();
+					writer.writeLink(snapshot.getLinkRecord(i));
+					writer.flush();
+					linkRecordsOut[i] = chunk.size() - start;
+				}
+				linkOffsetsOut[c] = append(raf, chunk);
+				linkLengthsOut[c] = chunk.size();
+			}
+
+			long generationOut = newGeneration(old);
+			ByteArrayOutputStream index = new ByteArrayOutputStream();
+			BinaryModelWriter writer = new BinaryModelWriter(index, null, 0);
+			writer.writeLong(generationOut);
+			writer.writeClassCount(classes);
+			writer.writeVarInt(classOffsetsOut.length);
+			for (int c = 0; c != classOffsetsOut.length; ++c) {
+				writer.writeLong(classOffsetsOut[c]);
+				writer.writeVarInt(classLengthsOut[c]);
+			}
+			writer.writeLinkCount(links);
+			writer.writeVarInt(linkOffsetsOut.length);
+			for (int c = 0; c != linkOffsetsOut.length; ++c) {
+				writer.writeLong(linkOffsetsOut[c]);
+				writer.writeVarInt(linkLengthsOut[c]);
+			}
+			for (int length : classRecordsOut)
+				writer.writeVarInt(length);
+			for (int length : linkRecordsOut)
+				writer.writeVarInt(length);
+			for (int i = 0; i != classes; ++i)
+				writer.writeString(snapshot.getClassRecord(i).name);
+			writer.flush();
+
+			long indexAt = raf.length();
+			raf.seek(indexAt);
+			raf.writeInt(index.size());
+			index.writeTo(new RandomAccessFileOutput(raf));
+
+			// Only point at the new index once it and its chunks are on disk
+			ModelSnapshot.checkCancelled();
+			raf.getFD().sync();
+			raf.seek(INDEX_POINTER);
+			raf.writeLong(indexAt);
+			raf.getFD().sync();
+			return generationOut;
+		} catch (IOException ex) {
+			if (old != null)
+				raf.setLength(oldLength);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Adds a chunk to the end of the file.
+	 *
+	 * @return where the chunk starts
+	 */
+	private static long append(RandomAccessFile raf, ByteArrayOutputStream chunk) throws IOException {
+		long offset = raf.length();
+		raf.seek(offset);
+		chunk.writeTo(new RandomAccessFileOutput(raf));
+		return offset;
+	}
+
+	private static long newGeneration(ChunkedModelFile old) {
+		long next;
+		do {
+			next = ThreadLocalRandom.current().nextLong();
+		} while (next == 0 || (old != null && next == old.generation));
+		return next;
+	}
+
+	/**
+	 * Lets ByteArrayOutputStream.writeTo write into a RandomAccessFile.
+	 */
+	private static class RandomAccessFileOutput extends OutputStream {
+		private RandomAccessFile raf;
+
+		RandomAccessFileOutput(RandomAccessFile rafIn) {
+			raf = rafIn;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			raf.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			raf.write(b, off, len);
+		}
+	}
+}
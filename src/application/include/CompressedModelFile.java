@@ -0,0 +1,125 @@
+package application.include;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A compressed container around the sequential binary format. The container is
+ * the magic bytes "UMLZ" and its version, followed by a zlib stream holding a
+ * whole version 1 binary diagram, header included.
+ *
+ * Both directions stream: records are encoded into the deflater as they are
+ * written and decoded out of the inflater as they are read, so the uncompressed
+ * diagram is never held in memory at once.
+ */
+public class CompressedModelFile {
+
+	public static final String EXTENSION = ".umlz";
+
+	private static final byte[] MAGIC = { 'U', 'M', 'L', 'Z' };
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Tells whether a file should be read and written as a compressed diagram.
+	 *
+	 * @param file
+	 *            The file to check
+	 * @return true if the file name ends in .umlz
+	 */
+	public static boolean isCompressedFile(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Compresses a snapshot into a file.
+	 *
+	 * @param file
+	 *            The file to be written to. It is overwritten.
+	 * @param snapshot
+	 *            The records to write
+	 * @param level
+	 *            The Deflater compression level, from Deflater.BEST_SPEED to
+	 *            Deflater.BEST_COMPRESSION, or Deflater.DEFAULT_COMPRESSION
+	 * @throws IOException
+	 *             Throws if the file can't be written to or the save was
+	 *             interrupted.
+	 */
+	public static void write(File file, ModelSnapshot snapshot, int level) throws IOException {
+		Deflater deflater = new Deflater(level);
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				BinaryModelWriter container = new BinaryModelWriter(out, MAGIC, VERSION);
+				container.flush();
+
+				BinaryModelWriter writer = new BinaryModelWriter(
+						new DeflaterOutputStream(out, deflater, BUFFER_SIZE));
+				try {
+					snapshot.writeBinary(writer);
+				} finally {
+					// Finishes the zlib stream and closes the file
+					writer.close();
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Decompresses a diagram and adds every class and link to a model, in file
+	 * order.
+	 *
+	 * @param file
+	 *            The file to be read from
+	 * @param model
+	 *            The Model to add the classes and links to
+	 * @throws IOException
+	 *             Throws if the file can't be read, isn't a compressed diagram or
+	 *             its data is corrupt
+	 */
+	public static void read(File file, Model model) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				readHeader(in);
+				BinaryModelReader reader = new BinaryModelReader(new InflaterInputStream(in, inflater, BUFFER_SIZE));
+				try {
+					reader.read(model);
+				} finally {
+					reader.close();
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Checks the container header. It is read a byte at a time so that nothing
+	 * past it is taken from the stream before the inflater sees it.
+	 */
+	private static void readHeader(InputStream in) throws IOException {
+		for (int i = 0; i != MAGIC.length; ++i) {
+			if (in.read() != MAGIC[i])
+				throw new ModelFormatException("not a compressed UML diagram", i);
+		}
+		int version = in.read();
+		if (version < 1 || version > VERSION)
+			throw new ModelFormatException("unsupported container version " + version, MAGIC.length);
+	}
+}
@@ -0,0 +1,815 @@
+package application.include;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import application.include.Model.ClassModel;
+import application.include.Model.LinkModel;
+
+/**
+ * An append-only log of every edit made to a Model since it was last saved,
+ * kept in a sidecar file next to the diagram. If the editor dies before the
+ * next save, replaying the journal on top of the saved diagram brings back the
+ * lost edits.
+ *
+ * The header identifies the saved version of the diagram the journal was
+ * started against; see stamp. Records use the same varint and String encoding as the
+ * binary diagram format. Each one is an op code followed by its arguments;
+ * class and link positions are the same indices the Model uses. Records collect in memory and are
+ * written and synced to disk at most once per sync interval, so a drag does
+ * not reach the disk once per mouse event.
+ */
+public class EditJournal {
+
+	public static final String EXTENSION = ".journal";
+	// Added to a journal that couldn't be replayed, when it is set aside
+	public static final String BAD_EXTENSION = ".bad";
+
+	private static final byte[] MAGIC = { 'U', 'M', 'L', 'J' };
+	private static final int VERSION = 1;
+
+	// Op codes
+	private static final byte ADD_CLASS = 1;
+	private static final byte REMOVE_CLASS = 2;
+	private static final byte SET_CLASS_INT = 3;
+	private static final byte SET_CLASS_TEXT = 4;
+	private static final byte ADD_LINK = 5;
+	private static final byte REMOVE_LINK = 6;
+	private static final byte SET_LINK_INT = 7;
+	private static final byte SET_LINK_LABEL = 8;
+	private static final byte CLEAR = 9;
+	private static final byte CLEAR_LINKS = 10;
+	private static final byte INSERT_CLASS = 11;
+	private static final byte INSERT_LINK = 12;
+	private static final byte RESTORE_CLASS_INT = 13;
+
+	/*
+	 * While a save is being written in the background the journal is detached:
+	 * stream is null and new records are held in memory until the save finishes
+	 * and says which file they belong after.
+	 */
+	private File diagram;
+	private FileOutputStream stream;
+	private ByteArrayOutputStream held;
+	private BinaryModelWriter writer;
+	private ScheduledExecutorService syncer;
+	private boolean dirty = false;
+	private long syncInterval;
+
+	/**
+	 * Opens the journal belonging to a diagram file. A new journal notes which
+	 * saved version of the diagram it belongs to, so that a journal left over
+	 * from a different version of the file is never replayed onto it.
+	 *
+	 * @constructor
+	 * @param diagramIn
+	 *            The diagram file the journal belongs to
+	 * @param append
+	 *            true to keep the records already in the journal, false to start
+	 *            an empty one
+	 * @param syncMillis
+	 *            How often buffered records are written and synced, in
+	 *            milliseconds. 0 syncs after every record.
+	 * @throws IOException
+	 *             Throws if the journal can't be opened
+	 */
+	public EditJournal(File diagramIn, boolean append, long syncMillis) throws IOException {
+		open(diagramIn, append);
+		startSyncer(syncMillis);
+	}
+
+	/**
+	 * Starts a detached journal for a diagram that has no file yet. Records are
+	 * held in memory until attach is called.
+	 *
+	 * @constructor
+	 * @param syncMillis
+	 *            How often buffered records are written and synced once attached
+	 */
+	public EditJournal(long syncMillis) {
+		held = new ByteArrayOutputStream();
+		try {
+			writer = new BinaryModelWriter(held, null, VERSION);
+		} catch (IOException ex) {
+			// Nothing is written without a header
+		}
+		startSyncer(syncMillis);
+	}
+
+	private void open(File diagramIn, boolean append) throws IOException {
+		File file = journalFile(diagramIn);
+		boolean header = !append || file.length() == 0;
+		stream = new FileOutputStream(file, !header);
+		writer = new BinaryModelWriter(stream, header ? MAGIC : null, VERSION);
+		if (header) {
+			long[] stamp = stamp(diagramIn);
+			writer.writeLong(stamp[0]);
+			writer.writeLong(stamp[1]);
+		}
+		diagram = diagramIn;
+	}
+
+	private void startSyncer(long syncMillis) {
+		syncInterval = syncMillis;
+
+		if (syncInterval > 0) {
+			syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Journal sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			syncer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					sync();
+				}
+			}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns the sidecar file a diagram's journal is kept in.
+	 *
+	 * @param diagram
+	 *            The diagram file
+	 * @return the journal file next to it
+	 */
+	public static File journalFile(File diagram) {
+		return new File(diagram.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Replays a diagram's journal, if it has one, on top of a model that has just
+	 * loaded the diagram. A record cut short at the very end of the file, as a
+	 * crash leaves it, ends the replay, and the file is trimmed back to the last
+	 * whole record so new records can follow it.
+	 *
+	 * Nothing else is ever trimmed or deleted. A journal that fails for any other
+	 * reason, or that was started against another version of the diagram, is
+	 * renamed aside with BAD_EXTENSION and the model reports it. The records
+	 * replayed before the failure are copied into a new journal, since the model
+	 * now holds their edits.
+	 *
+	 * @param diagram
+	 *            The diagram file the journal belongs to
+	 * @param model
+	 *            The model to apply the recorded edits to
+	 * @return the number of edits replayed
+	 * @throws IOException
+	 *             Throws if the journal can't be read, trimmed or set aside
+	 */
+	public static int replay(File diagram, Model model) throws IOException {
+		File file = journalFile(diagram);
+		if (file.length() == 0)
+			return 0;
+
+		int count = 0;
+		long valid = 0;
+		boolean stale = false;
+		boolean torn = false;
+		Exception failure = null;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			BinaryModelReader reader = null;
+			try {
+				reader = new BinaryModelReader(in, MAGIC, VERSION);
+				long[] stamp = stamp(diagram);
+				if (reader.readLong() != stamp[0] || reader.readLong() != stamp[1]) {
+					// Written against another version of the diagram, which was saved
+					// over before the journal could be replaced
+					stale = true;
+				} else {
+					valid = reader.offset();
+					while (!reader.atEnd()) {
+						apply(reader, model);
+						valid = reader.offset();
+						++count;
+					}
+				}
+			} catch (IOException | RuntimeException ex) {
+				failure = ex;
+				// Only a record the file ends partway through is a torn write
+				torn = valid != 0 && reader.isTruncated();
+			}
+		} finally {
+			in.close();
+		}
+
+		if (stale) {
+			File bad = setAside(file);
+			model.reportProblem("The journal of " + diagram.getName()
+					+ " belongs to another version of it and wasn't replayed. It was kept as " + bad.getName() + ".");
+		} else if (torn) {
+			RandomAccessFile trim = new RandomAccessFile(file, "rw");
+			try {
+				trim.setLength(valid);
+			} finally {
+				trim.close();
+			}
+		} else if (failure != null) {
+			System.err.println("Journal replay stopped: " + failure);
+			File bad = setAside(file);
+			if (valid != 0)
+				copyStart(bad, file, valid);
+			model.reportProblem("Only " + count + " edits from the journal of " + diagram.getName()
+					+ " could be replayed (" + failure.getMessage() + "). It was kept as " + bad.getName() + ".");
+		}
+		return count;
+	}
+
+	/**
+	 * Renames a journal to the first free name ending in BAD_EXTENSION, so a new
+	 * one can be started without losing it.
+	 *
+	 * @return the journal's new name
+	 */
+	private static File setAside(File file) throws IOException {
+		File bad = new File(file.getPath() + BAD_EXTENSION);
+		for (int n = 2; bad.exists(); ++n)
+			bad = new File(file.getPath() + BAD_EXTENSION + n);
+		Files.move(file.toPath(), bad.toPath());
+		return bad;
+	}
+
+	/**
+	 * Copies the first length bytes of one file to a new one.
+	 */
+	private static void copyStart(File from, File to, long length) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		try {
+			FileOutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[1 << 16];
+				while (length != 0) {
+					int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+					if (read == -1)
+						throw new IOException("unexpected end of file: " + from);
+					out.write(buffer, 0, read);
+					length -= read;
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Identifies the saved version of a diagram: the index offset and generation
+	 * of a chunked binary file, which only change once a save is complete, or
+	 * else the length and modification time of the file.
+	 */
+	private static long[] stamp(File diagram) throws IOException {
+		if (ChunkedModelFile.isChunked(diagram)) {
+			ChunkedModelFile index = ChunkedModelFile.readIndex(diagram);
+			return new long[] { index.getIndexOffset(), index.getGeneration() };
+		}
+		return new long[] { diagram.length(), diagram.lastModified() };
+	}
+
+	/**
+	 * Deletes a diagram's journal.
+	 *
+	 * @param diagram
+	 *            The diagram file the journal belongs to
+	 */
+	public static void delete(File diagram) {
+		journalFile(diagram).delete();
+	}
+
+	/*****************************
+	 * RECORDS
+	 ****************************/
+
+	/**
+	 * Records a new class.
+	 *
+	 * @param model
+	 *            the class that was added
+	 */
+	public synchronized void addClass(ClassModel model) {
+		writeClass(ADD_CLASS, model);
+	}
+
+	/**
+	 * Records a class put back at a position before the end, as undo does.
+	 *
+	 * @param model
+	 *            the class that was inserted; its index is its position
+	 */
+	public synchronized void insertClass(ClassModel model) {
+		writeClass(INSERT_CLASS, model);
+	}
+
+	private void writeClass(byte op, ClassModel model) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(op);
+			writer.writeInt(model.getIndex());
+			writer.writeInt(model.getXPos());
+			writer.writeInt(model.getYPos());
+			writer.writeInt(model.getWidth());
+			writer.writeInt(model.getHeight());
+			writer.writeString(model.getName());
+			writer.writeString(model.getAttr());
+			writer.writeString(model.getOper());
+			writer.writeString(model.getDesc());
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records the removal of a class.
+	 *
+	 * @param index
+	 *            the index the class had
+	 */
+	public synchronized void removeClass(int index) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(REMOVE_CLASS);
+			writer.writeVarInt(index);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records a change to one of a class's ints.
+	 *
+	 * @param index
+	 *            the class's index
+	 * @param field
+	 *            1 for x, 2 y, 3 width, 4 height
+	 * @param value
+	 *            the value passed to the setter, before it was snapped to the
+	 *            grid, so replaying it through the setter gives the same result
+	 */
+	public synchronized void setClassInt(int index, int field, int value) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(SET_CLASS_INT);
+			writer.writeVarInt(index);
+			writer.writeVarInt(field);
+			writer.writeInt(value);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records one of a class's ints being put back to a value it had before, as
+	 * undo does. Unlike setClassInt the value is stored as it is, without
+	 * snapping it to the grid.
+	 *
+	 * @param index
+	 *            the class's index
+	 * @param field
+	 *            1 for x, 2 y, 3 width, 4 height
+	 * @param value
+	 *            the value stored
+	 */
+	public synchronized void restoreClassInt(int index, int field, int value) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(RESTORE_CLASS_INT);
+			writer.writeVarInt(index);
+			writer.writeVarInt(field);
+			writer.writeInt(value);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records a change to one of a class's Strings.
+	 *
+	 * @param index
+	 *            the class's index
+	 * @param field
+	 *            0 for the name, 1 attributes, 2 operations, 3 description
+	 * @param value
+	 *            the new value
+	 */
+	public synchronized void setClassText(int index, int field, String value) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(SET_CLASS_TEXT);
+			writer.writeVarInt(index);
+			writer.writeVarInt(field);
+			writer.writeString(value);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records a new link.
+	 *
+	 * @param model
+	 *            the link that was added
+	 */
+	public synchronized void addLink(LinkModel model) {
+		writeLink(ADD_LINK, model);
+	}
+
+	/**
+	 * Records a link put back at a position before the end, as undo does.
+	 *
+	 * @param model
+	 *            the link that was inserted; its index is its position
+	 */
+	public synchronized void insertLink(LinkModel model) {
+		writeLink(INSERT_LINK, model);
+	}
+
+	private void writeLink(byte op, LinkModel model) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(op);
+			writer.writeInt(model.getIndex());
+			writer.writeInt(model.getType());
+			writer.writeInt(model.getSource());
+			writer.writeInt(model.getDest());
+			writer.writeInt(model.getSourceMin());
+			writer.writeInt(model.getSourceMax());
+			writer.writeInt(model.getDestMin());
+			writer.writeInt(model.getDestMax());
+			writer.writeString(model.getLabel());
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records the removal of a link.
+	 *
+	 * @param index
+	 *            the index the link had
+	 */
+	public synchronized void removeLink(int index) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(REMOVE_LINK);
+			writer.writeVarInt(index);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records a change to one of a link's ints.
+	 *
+	 * @param index
+	 *            the link's index
+	 * @param field
+	 *            1 for type, 2 source, 3 dest, 4 source min, 5 source max, 6 dest
+	 *            min, 7 dest max
+	 * @param value
+	 *            the new value
+	 */
+	public synchronized void setLinkInt(int index, int field, int value) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(SET_LINK_INT);
+			writer.writeVarInt(index);
+			writer.writeVarInt(field);
+			writer.writeInt(value);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records a change to a link's label.
+	 *
+	 * @param index
+	 *            the link's index
+	 * @param label
+	 *            the new label
+	 */
+	public synchronized void setLinkLabel(int index, String label) {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(SET_LINK_LABEL);
+			writer.writeVarInt(index);
+			writer.writeString(label);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records that every class and link was removed.
+	 */
+	public synchronized void clear() {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(CLEAR);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Records that every link was removed.
+	 */
+	public synchronized void clearLinks() {
+		if (writer == null)
+			return;
+		try {
+			writer.writeByte(CLEAR_LINKS);
+			written();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Returns the diagram whose journal file this journal writes to
+	 *
+	 * @return the diagram, or null if the journal has never had a file
+	 */
+	public synchronized File getDiagram() {
+		return diagram;
+	}
+
+	/**
+	 * Syncs and closes the journal file and holds further records in memory, so a
+	 * snapshot of the model can be saved in the background without the file and
+	 * journal disagreeing about which edits it contains. Detaching an already
+	 * detached journal only marks the records held so far.
+	 *
+	 * @return a mark for attach: the records held before this point are already
+	 *         in the snapshot being saved
+	 */
+	public synchronized int detach() {
+		if (writer == null)
+			return 0;
+		try {
+			if (stream == null) {
+				writer.flush();
+				return held.size();
+			}
+			writer.flush();
+			stream.getFD().sync();
+			writer.close();
+			stream = null;
+			dirty = false;
+			held = new ByteArrayOutputStream();
+			writer = new BinaryModelWriter(held, null, VERSION);
+		} catch (IOException ex) {
+			failed(ex);
+		}
+		return 0;
+	}
+
+	/**
+	 * Ends a detach by writing the held records to a journal file.
+	 *
+	 * @param diagramIn
+	 *            The diagram file the journal belongs to
+	 * @param mark
+	 *            The mark returned by detach; held records before it are dropped
+	 * @param append
+	 *            true to add the records to the diagram's existing journal, as
+	 *            when the save failed, or false to start a new journal against the
+	 *            diagram's current contents, as when it succeeded
+	 */
+	public synchronized void attach(File diagramIn, int mark, boolean append) {
+		if (writer == null || stream != null)
+			return;
+		try {
+			writer.flush();
+			byte[] records = held.toByteArray();
+			held = null;
+			open(diagramIn, append);
+			writer.flush();
+			stream.write(records, mark, records.length - mark);
+			dirty = true;
+			sync();
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Writes any buffered records and waits for them to reach the disk. Records
+	 * held while detached stay in memory.
+	 */
+	public synchronized void sync() {
+		if (!dirty || writer == null || stream == null)
+			return;
+		try {
+			writer.flush();
+			stream.getFD().sync();
+			dirty = false;
+		} catch (IOException ex) {
+			failed(ex);
+		}
+	}
+
+	/**
+	 * Syncs and closes the journal. Further records are ignored, as are any held
+	 * while detached.
+	 */
+	public void close() {
+		if (syncer != null)
+			syncer.shutdownNow();
+
+		synchronized (this) {
+			sync();
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ex) {
+					System.err.println("Journal failure: " + ex);
+				}
+				writer = null;
+			}
+		}
+	}
+
+	private void written() {
+		dirty = true;
+		if (syncInterval <= 0)
+			sync();
+	}
+
+	/**
+	 * A journal that can't be written to is dropped rather than interrupting the
+	 * edit that triggered it.
+	 */
+	private void failed(IOException ex) {
+		System.err.println("Journal failure: " + ex);
+		try {
+			if (stream != null)
+				stream.close();
+		} catch (IOException closeEx) {
+		}
+		writer = null;
+		dirty = false;
+		if (syncer != null)
+			syncer.shutdown();
+	}
+
+	/*****************************
+	 * REPLAY
+	 ****************************/
+
+	private static void apply(BinaryModelReader reader, Model model) throws IOException {
+		byte op = reader.readByte();
+		switch (op) {
+		case ADD_CLASS: {
+			int[] ints = new int[5];
+			String[] strings = new String[4];
+			reader.readClass(ints, strings);
+			model.addClassModel(ints, strings);
+			break;
+		}
+		case REMOVE_CLASS: {
+			model.removeClassModel(checkClass(reader.readVarInt(), model));
+			break;
+		}
+		case SET_CLASS_INT: {
+			ClassModel target = model.getClassModel(checkClass(reader.readVarInt(), model));
+			int field = reader.readVarInt();
+			int value = reader.readInt();
+			switch (field) {
+			case 1: target.setXPos(value); break;
+			case 2: target.setYPos(value); break;
+			case 3: target.setWidth(value); break;
+			case 4: target.setHeight(value); break;
+			default: throw new IOException("journal has an unknown class field " + field);
+			}
+			break;
+		}
+		case SET_CLASS_TEXT: {
+			ClassModel target = model.getClassModel(checkClass(reader.readVarInt(), model));
+			int field = reader.readVarInt();
+			String value = reader.readString();
+			switch (field) {
+			case 0: target.setName(value); break;
+			case 1: target.setAttr(value); break;
+			case 2: target.setOper(value); break;
+			case 3: target.setDesc(value); break;
+			default: throw new IOException("journal has an unknown class field " + field);
+			}
+			break;
+		}
+		case ADD_LINK: {
+			int[] ints = new int[8];
+			String label = reader.readLink(ints);
+			model.addLinkModel(ints, label);
+			break;
+		}
+		case REMOVE_LINK: {
+			model.removeLinkModel(checkLink(reader.readVarInt(), model));
+			break;
+		}
+		case SET_LINK_INT: {
+			LinkModel target = model.getLinkModel(checkLink(reader.readVarInt(), model));
+			int field = reader.readVarInt();
+			int value = reader.readInt();
+			switch (field) {
+			case 1: target.setType(value); break;
+			case 2: target.setSource(value); break;
+			case 3: target.setDest(value); break;
+			case 4: target.setSourceMin(value); break;
+			case 5: target.setSourceMax(value); break;
+			case 6: target.setDestMin(value); break;
+			case 7: target.setDestMax(value); break;
+			default: throw new IOException("journal has an unknown link field " + field);
+			}
+			break;
+		}
+		case SET_LINK_LABEL: {
+			LinkModel target = model.getLinkModel(checkLink(reader.readVarInt(), model));
+			target.setLabel(reader.readString());
+			break;
+		}
+		case CLEAR:
+			model.clear();
+			break;
+		case CLEAR_LINKS:
+			model.clearLinks();
+			break;
+		case INSERT_CLASS: {
+			int[] ints = new int[5];
+			String[] strings = new String[4];
+			reader.readClass(ints, strings);
+			model.insertClassModel(checkInsert(ints[0], model.getClassTail()), ints, strings);
+			break;
+		}
+		case INSERT_LINK: {
+			int[] ints = new int[8];
+			String label = reader.readLink(ints);
+			model.insertLinkModel(checkInsert(ints[0], model.getLinkTail()), ints, label);
+			break;
+		}
+		case RESTORE_CLASS_INT: {
+			int index = checkClass(reader.readVarInt(), model);
+			int field = reader.readVarInt();
+			int value = reader.readInt();
+			if (field < 1 || field > 4)
+				throw new IOException("journal has an unknown class field " + field);
+			model.restoreClassInt(index, field, value);
+			break;
+		}
+		default:
+			throw new IOException("journal has an unknown record type " + op);
+		}
+	}
+
+	private static int checkClass(int index, Model model) throws IOException {
+		if (index < 0 || index >= model.getClassTail())
+			throw new IOException("journal refers to missing class " + index);
+		return index;
+	}
+
+	private static int checkInsert(int index, int tail) throws IOException {
+		if (index < 0 || index > tail)
+			throw new IOException("journal inserts past the end at " + index);
+		return index;
+	}
+
+	private static int checkLink(int index, Model model) throws IOException {
+		if (index < 0 || index >= model.getLinkTail())
+			throw new IOException("journal refers to missing link " + index);
+		return index;
+	}
+}
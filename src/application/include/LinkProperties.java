@@ -0,0 +1,196 @@
+package application.include;
+
+import application.include.Model.LinkModel;
+
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+
+/**
+ * Properties for a link being edited. A LinkModel keeps its fields as plain
+ * values, which is all most links need; these follow the link's fields through
+ * the model's link listeners, and setting one sets the field, so they can be
+ * bound to controls. They are got from LinkModel.getProperties and should be
+ * released once the editing is done, so the model stops updating them.
+ */
+public class LinkProperties implements Model.LinkListener {
+
+	private final Model model;
+	private final LinkModel link;
+	// Set while the properties are being brought up to date with the link
+	private boolean following = false;
+
+	private final IntegerProperty type = new SimpleIntegerProperty();
+	private final IntegerProperty sourceMin = new SimpleIntegerProperty();
+	private final IntegerProperty sourceMax = new SimpleIntegerProperty();
+	private final IntegerProperty destMin = new SimpleIntegerProperty();
+	private final IntegerProperty destMax = new SimpleIntegerProperty();
+	private final StringProperty label = new SimpleStringProperty();
+
+	/**
+	 * Constructs a LinkProperties instance
+	 *
+	 * @constructor
+	 * @param model
+	 *            the model the link is in
+	 * @param link
+	 *            the link being edited
+	 */
+	LinkProperties(Model model, LinkModel link) {
+		this.model = model;
+		this.link = link;
+		for (int field = LinkModel.TYPE; field <= LinkModel.LABEL; ++field)
+			linkChanged(link, field);
+
+		type.addListener(new ChangeListener<Number>() {
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+				if (!following)
+					LinkProperties.this.link.setType(newValue.intValue());
+			}
+		});
+		sourceMin.addListener(new ChangeListener<Number>() {
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+				if (!following)
+					LinkProperties.this.link.setSourceMin(newValue.intValue());
+			}
+		});
+		sourceMax.addListener(new ChangeListener<Number>() {
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+				if (!following)
+					LinkProperties.this.link.setSourceMax(newValue.intValue());
+			}
+		});
+		destMin.addListener(new ChangeListener<Number>() {
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+				if (!following)
+					LinkProperties.this.link.setDestMin(newValue.intValue());
+			}
+		});
+		destMax.addListener(new ChangeListener<Number>() {
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+				if (!following)
+					LinkProperties.this.link.setDestMax(newValue.intValue());
+			}
+		});
+		label.addListener(new ChangeListener<String>() {
+			@Override
+			public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue) {
+				if (!following)
+					LinkProperties.this.link.setLabel(newValue);
+			}
+		});
+	}
+
+	/**
+	 * Brings a property up to date with the link's field
+	 */
+	@Override
+	public void linkChanged(LinkModel changed, int field) {
+		if (changed != link)
+			return;
+		following = true;
+		try {
+			switch (field) {
+			case LinkModel.TYPE:
+				type.set(link.getType());
+				break;
+			case LinkModel.SOURCE_MIN:
+				sourceMin.set(link.getSourceMin());
+				break;
+			case LinkModel.SOURCE_MAX:
+				sourceMax.set(link.getSourceMax());
+				break;
+			case LinkModel.DEST_MIN:
+				destMin.set(link.getDestMin());
+				break;
+			case LinkModel.DEST_MAX:
+				destMax.set(link.getDestMax());
+				break;
+			case LinkModel.LABEL:
+				label.set(link.getLabel());
+				break;
+			}
+		} finally {
+			following = false;
+		}
+	}
+
+	/**
+	 * Stops the properties following the link. The link gives out new ones the
+	 * next time they are asked for.
+	 */
+	public void release() {
+		model.releaseProperties(link);
+	}
+
+	/**
+	 * Returns the link the properties are for
+	 *
+	 * @return the LinkModel
+	 */
+	public LinkModel getLink() {
+		return link;
+	}
+
+	/**
+	 * Returns the IntegerProperty associated with the link's type
+	 *
+	 * @return the IntegerProperty associated with the link's type
+	 */
+	public IntegerProperty getTypeProp() {
+		return type;
+	}
+
+	/**
+	 * Returns the IntegerProperty associated with the link's source min
+	 *
+	 * @return the IntegerProperty associated with the link's source min
+	 */
+	public IntegerProperty getSourceMinProp() {
+		return sourceMin;
+	}
+
+	/**
+	 * Returns the IntegerProperty associated with the link's source max
+	 *
+	 * @return the IntegerProperty associated with the link's source max
+	 */
+	public IntegerProperty getSourceMaxProp() {
+		return sourceMax;
+	}
+
+	/**
+	 * Returns the IntegerProperty associated with the link's dest min
+	 *
+	 * @return the IntegerProperty associated with the link's dest min
+	 */
+	public IntegerProperty getDestMinProp() {
+		return destMin;
+	}
+
+	/**
+	 * Returns the IntegerProperty associated with the link's dest max
+	 *
+	 * @return the IntegerProperty associated with the link's dest max
+	 */
+	public IntegerProperty getDestMaxProp() {
+		return destMax;
+	}
+
+	/**
+	 * Returns the StringProperty associated with the link's label
+	 *
+	 * @return the StringProperty associated with the link's label
+	 */
+	public StringProperty getLabelProp() {
+		return label;
+	}
+}
@@ -0,0 +1,91 @@
+package application.include;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Measures how fast diagrams load. Run from the command line:
+ *
+ * java application.include.LoadBenchmark [classes] [runs]
+ *
+ * A synthetic diagram with the given number of classes (and about twice as many
+ * links) is written to a temp file. It is then parsed on its own, to time the
+ * tokenizer, and loaded into a fresh Model, to time the whole load. The same
+ * diagram is also saved and loaded in the binary format for comparison.
+ */
+public class LoadBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int classes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		File file = File.createTempFile("benchmark", ".uml");
+		file.deleteOnExit();
+		File binary = File.createTempFile("benchmark", Model.BINARY_EXTENSION);
+		binary.deleteOnExit();
+		Model model = generate(classes);
+		model.save(file);
+		model.save(binary);
+
+		double megabytes = file.length() / (1024.0 * 1024.0);
+		System.out.printf("%d classes, %.1f MB text, %.1f MB binary%n", classes, megabytes,
+				binary.length() / (1024.0 * 1024.0));
+
+		for (int run = 0; run != runs; ++run) {
+			long start = System.nanoTime();
+			parse(file);
+			long parsed = System.nanoTime();
+			new Model().load(file);
+			long loaded = System.nanoTime();
+			new Model().load(binary);
+			long binaryLoaded = System.nanoTime();
+
+			double parseSeconds = (parsed - start) / 1e9;
+			double loadSeconds = (loaded - parsed) / 1e9;
+			double binarySeconds = (binaryLoaded - loaded) / 1e9;
+			System.out.printf("run %2d: parse %7.1f ms (%6.1f MB/s)   load %7.1f ms (%8.0f classes/s)   binary %7.1f ms%n",
+					run, parseSeconds * 1000, megabytes / parseSeconds, loadSeconds * 1000, classes / loadSeconds,
+					binarySeconds * 1000);
+		}
+	}
+
+	/**
+	 * Reads every record without building a model.
+	 */
+	private static void parse(File file) throws IOException {
+		ModelReader reader = new ModelReader(new FileReader(file));
+		try {
+			int[] classInts = new int[5];
+			String[] strings = new String[4];
+			int size = reader.readClassCount();
+			for (int i = 0; i != size; ++i)
+				reader.readClass(classInts, strings);
+
+			int[] linkInts = new int[8];
+			size = reader.readLinkCount();
+			for (int i = 0; i != size; ++i)
+				reader.readLink(linkInts);
+			reader.readEnd();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Builds a diagram whose text looks like a typical hand-made one.
+	 */
+	private static Model generate(int classes) {
+		Model model = new Model();
+		for (int i = 0; i != classes; ++i) {
+			model.addClassModel(new int[] { i, (i % 100) * 150, (i / 100) * 150, 100, 100 },
+					new String[] { "Class" + i, "int count\nString name\nList<Class" + i + "> children",
+							"getName()\nsetName(String)\nupdate" + i + "()", "Description of class " + i });
+		}
+		for (int i = 0; i != classes * 2 && classes > 1; ++i) {
+			model.addLinkModel(new int[] { i, i % 5, i % classes, (i * 7 + 1) % classes, 0, 1, -2, -1 },
+					"Create Link");
+		}
+		return model;
+	}
+}
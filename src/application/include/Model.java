@@ -1,54 +1,223 @@
 package application.include;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Scanner;
-import java.util.Stack;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
 
-//import application.include.Model.classStackData;
 import application.objects.ClassBlock;
 import application.objects.Link;
 import application.view.ProgramWindow;
 //import application.view.context.ClassMenu;
 import javafx.beans.Observable;
-import javafx.beans.property.IntegerProperty;
-import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
-import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.scene.control.ProgressIndicator;
 import javafx.util.Callback;
 
 public class Model {
 
-	private Stack<classStackData> classUndoStack = new Stack<classStackData>();
-	private Stack<classStackData> classRedoStack = new Stack<classStackData>();
-	private Stack<Integer> classUndoStackSize = new Stack<Integer>();
-	private Stack<Integer> classRedoStackSize = new Stack<Integer>();
-	private Stack<linkStackData> linkUndoStack = new Stack<linkStackData>();
-	private Stack<linkStackData> linkRedoStack = new Stack<linkStackData>();
-	private Stack<Integer> linkUndoStackSize = new Stack<Integer>();
-	private Stack<Integer> linkRedoStackSize = new Stack<Integer>();
+	public static final String BINARY_EXTENSION = ".umlb";
+	// Put before the extension of a diagram's name for its recovery copy
+	private static final String RECOVERY = ".recovery";
+	// Text files at least this large are decoded on every core
+	private static final long PARALLEL_THRESHOLD = 1024 * 1024;
+
+	/*
+	 * Edits are recorded in history as they happen, so they can be undone.
+	 * undoPaused is raised while undo and redo apply their edits, which are
+	 * journaled like any other but mustn't be recorded again.
+	 */
+	private UndoHistory history = new UndoHistory();
+	private int undoPaused = 0;
+
+	/*
+	 * While a transaction is open the lists hold their changes back, and every
+	 * edit goes into the one undo step it started. transactionStart is the
+	 * revision before it, to tell whether it recorded anything.
+	 */
+	private int transactionDepth = 0;
+	private int transactionStart;
+
+	/*
+	 * Edits since the last save or load are journaled so they survive a crash.
+	 * journalPaused is raised while edits happen that are already on disk or
+	 * will be re-derived on replay.
+	 */
+	private EditJournal journal;
+	private int journalPaused = 0;
+	private long journalInterval = 1000;
+
+	/*
+	 * editCount goes up with every edit; savedEditCount is its value when the
+	 * model last matched currentFile, and autosavedEditCount when it last matched
+	 * the recovery copy, so autosave can tell if there is anything to write.
+	 * Background saves and autosaves run one at a time on the saver thread.
+	 */
+	private int editCount = 0;
+	private int savedEditCount = 0;
+	private int autosavedEditCount = 0;
+	private boolean autosaveFailing = false;
+	private File currentFile;
+	private ExecutorService saver;
+	private BackgroundSave pendingSave;
+
+	// The newest problem the user should be told of, such as a journal that
+	// couldn't be replayed; null while there is none
+	private final ReadOnlyStringWrapper problem = new ReadOnlyStringWrapper();
+
+	/*
+	 * A background load parses on the loader thread and hands its records over
+	 * in batches of LOAD_BATCH, as many as fit in FRAME_NANOS each time.
+	 */
+	private static final int LOAD_BATCH = 64;
+	private static final long FRAME_NANOS = 8 * 1000 * 1000;
+	private ExecutorService loader;
+	private BackgroundLoad pendingLoad;
+
+	/*
+	 * chunkBase is the chunked binary file the model matches apart from the
+	 * dirty chunks, which lets saving over it append only those. Chunks dirtied
+	 * since the newest save's snapshot are in dirty*Chunks; the ones handed to
+	 * saves that haven't finished yet are in unsaved*Chunks.
+	 */
+	private File chunkBase;
+	private long chunkGeneration;
+	private BitSet dirtyClassChunks = new BitSet();
+	private BitSet dirtyLinkChunks = new BitSet();
+	private BitSet unsavedClassChunks = new BitSet();
+	private BitSet unsavedLinkChunks = new BitSet();
+
+	/*
+	 * The newest snapshot, and the chunks changed since it was taken. The next
+	 * snapshot shares every other chunk with it.
+	 */
+	private ModelSnapshot lastSnapshot;
+	private BitSet changedClassChunks = new BitSet();
+	private BitSet changedLinkChunks = new BitSet();
+
+	/*
+	 * Link records name their classes by position, so classes moving up or
+	 * down the list changes the records of their links. Every class that has
+	 * moved since the last snapshot is at shiftedClasses or after; the next
+	 * snapshot marks those classes' links' chunks, so a delete doesn't have to.
+	 */
+	private int shiftedClasses = Integer.MAX_VALUE;
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
 	private Boolean duringUndo = false;
 	private Boolean duringRedo = false;
+
+	/*
+	 * Classes moved and links rewired by the current undo or redo. Adds, removes
+	 * and text already reach the view through the lists; these are the only
+	 * changes the view doesn't observe, so syncView applies them afterwards.
+	 */
+	private Set<ClassModel> movedClasses = Collections.newSetFromMap(new IdentityHashMap<ClassModel, Boolean>());
+	private Set<LinkModel> rewiredLinks = Collections.newSetFromMap(new IdentityHashMap<LinkModel, Boolean>());
 	private Boolean clearing = false;
 
-	public class classStackData {
-		private int[] intData = new int[5];
-		private String name;
-		private String attr;
-		private String oper;
-		private String desc;
-	}
+	/*
+	 * Classes and links have IDs that are never reused, looked up here, and links
+	 * refer to their classes by ID. Each holds its position in the list as its
+	 * index, kept lazily: indices below classIndexed and linkIndexed are known to
+	 * be right, and the rest are renumbered the next time one is asked for, so
+	 * adding or removing one in the middle renumbers nothing.
+	 */
+	private ClassModel[] classesById = new ClassModel[64];
+	private LinkModel[] linksById = new LinkModel[64];
+	private int nextClassId = 0;
+	private int nextLinkId = 0;
+	private int classIndexed = 0;
+	private int linkIndexed = 0;
 
-	public class linkStackData {
-		private int[] intData = new int[8];
-		private String label;
+	/*
+	 * The incidence index: by class ID, the IDs of the links leaving and entering
+	 * the class. A row is made when the first link is added, and only its first
+	 * outDegree or inDegree entries are used. A link to itself is in both rows of
+	 * its class.
+	 */
+	private int[][] outLinks = new int[64][];
+	private int[][] inLinks = new int[64][];
+	private int[] outDegree = new int[64];
+	private int[] inDegree = new int[64];
+
+	/*
+	 * Class geometry in columns: columns[1] to columns[4] hold x, y, width and
+	 * height, numbered as in ClassModel's intData, for the class in each slot.
+	 * Slots 0 to classList.size() - 1 are all in use, in no particular order; a
+	 * class leaving gives its slot to the class in the last one. Scans over every
+	 * class's geometry run down plain arrays instead of visiting each ClassModel.
+	 */
+	private int[][] columns = new int[5][64];
+	private ClassModel[] slotOwners = new ClassModel[64];
+	private int slotCount = 0;
+
+	/*
+	 * The words of every class's text, by class ID, for findClasses. It is only
+	 * built by the first search, so loads and diagrams never searched don't pay
+	 * for it, and from then on it follows every class added, removed or given
+	 * new text.
+	 */
+	private TextIndex textIndex;
+
+	/*
+	 * Links have no properties of their own. Changes to their fields go out on
+	 * one channel to linkListeners, which is copied rather than changed so a
+	 * listener can remove itself while being told. During a transaction the
+	 * changes are held back as link ID and field, packed in a long, and sent once
+	 * the lists have sent theirs. Links being edited get properties from
+	 * editedLinks, which listen on the channel.
+	 */
+	private static final Observable[] NO_OBSERVABLES = new Observable[0];
+	private LinkListener[] linkListeners = new LinkListener[0];
+	private boolean holdingLinkChanges = false;
+	private long[] heldLinkChanges = new long[16];
+	private int heldLinkChangeCount = 0;
+	private IdentityHashMap<LinkModel, LinkProperties> editedLinks = new IdentityHashMap<LinkModel, LinkProperties>();
+
+	/**
+	 * Told of every change to a field of a link in the model
+	 */
+	public interface LinkListener {
+		/**
+		 * Called after a field of a link changed
+		 * 
+		 * @param link
+		 *            the link that changed
+		 * @param field
+		 *            which field changed: LinkModel.TYPE, LinkModel.LABEL and so on
+		 */
+		void linkChanged(LinkModel link, int field);
 	}
 
 	public class ClassModel {
@@ -64,13 +233,21 @@ public class Model {
 		 * self explanatory. Depending on how we need to display the data, it might be
 		 * easier to have a lone string (Name) and an array[3] of linked lists, so the
 		 * lists of entries can be expanded indefinitely.
+		 * 
+		 * While the class is in the model, its x, y, width and height are kept in
+		 * the model's geometry columns at its slot instead, and intData only holds
+		 * the index.
 		 */
 		private int[] intData = new int[5];
-		private StringProperty name = new SimpleStringProperty();
-		private StringProperty attr = new SimpleStringProperty();
-		private StringProperty oper = new SimpleStringProperty();
-		private StringProperty desc = new SimpleStringProperty();
+		private int id = -1;
+		private int slot = -1;
+		private StringProperty name;
+		private StringProperty attr;
+		private StringProperty oper;
+		private StringProperty desc;
 		private final int STEP = 1;
+		// This class as of its last change, shared by every snapshot since
+		private ModelSnapshot.ClassRecord record;
 
 		/**
 		 * Constructs an instance of ClassModel
@@ -86,14 +263,35 @@ public class Model {
 				intData = intsIn;
 			}
 
+			name = new SimpleStringProperty();
+			attr = new SimpleStringProperty();
+			oper = new SimpleStringProperty();
+			desc = new SimpleStringProperty();
+
 			if (stringsIn.length == 4) {
-				name.set(stringsIn[0]);
-				attr.set(stringsIn[1]);
-				oper.set(stringsIn[2]);
-				desc.set(stringsIn[3]);
+				name.set(TextPool.intern(stringsIn[0]));
+				attr.set(TextPool.intern(stringsIn[1]));
+				oper.set(TextPool.intern(stringsIn[2]));
+				desc.set(TextPool.intern(stringsIn[3]));
 			}
 		}
 
+		/**
+		 * Takes over the data of a class read into another model.
+		 * 
+		 * @constructor
+		 * @param loaded
+		 *            the class to take over; it must not be used afterwards
+		 */
+		private ClassModel(ClassModel loaded) {
+			intData = loaded.ints();
+			name = loaded.name;
+			attr = loaded.attr;
+			oper = loaded.oper;
+			desc = loaded.desc;
+			record = loaded.record;
+		}
+
 		/*****************************
 		 * SETTERS
 		 ****************************/
@@ -106,6 +304,7 @@ public class Model {
 		 */
 		public void setIndex(int i) {
 			intData[0] = i;
+			classChanged(this);
 		}
 
 		/**
@@ -115,11 +314,18 @@ public class Model {
 		 *            the x position value to be stored
 		 */
 		public void setXPos(int x) {
+			int old = geometry(1);
 			if (x >= 0) {
-				intData[1] = (x % STEP < (STEP / 2) ? x - (x % STEP) : x + STEP - (x % STEP));
+				setGeometry(1, (x % STEP < (STEP / 2) ? x - (x % STEP) : x + STEP - (x % STEP)));
 			} else {
-				intData[1] = 0;
+				setGeometry(1, 0);
 			}
+			if (geometry(1) == old)
+				return;
+			if (recordEdit())
+				journal.setClassInt(getIndex(), 1, x);
+			intChanged(1, old);
+			classChanged(this);
 		}
 
 		/**
@@ -129,11 +335,18 @@ public class Model {
 		 *            the y position value to be stored
 		 */
 		public void setYPos(int y) {
+			int old = geometry(2);
 			if (y >= 0) {
-				intData[2] = (y % STEP < (STEP / 2) ? y - (y % STEP) : y + STEP - (y % STEP));
+				setGeometry(2, (y % STEP < (STEP / 2) ? y - (y % STEP) : y + STEP - (y % STEP)));
 			} else {
-				intData[2] = 0;
+				setGeometry(2, 0);
 			}
+			if (geometry(2) == old)
+				return;
+			if (recordEdit())
+				journal.setClassInt(getIndex(), 2, y);
+			intChanged(2, old);
+			classChanged(this);
 		}
 
 		/**
@@ -143,7 +356,14 @@ public class Model {
 		 *            the width value to be stored
 		 */
 		public void setWidth(int w) {
-			intData[3] = (w % STEP < (STEP / 2) ? w - (w % STEP) : w + STEP - (w % STEP));
+			int old = geometry(3);
+			setGeometry(3, (w % STEP < (STEP / 2) ? w - (w % STEP) : w + STEP - (w % STEP)));
+			if (geometry(3) == old)
+				return;
+			if (recordEdit())
+				journal.setClassInt(getIndex(), 3, w);
+			intChanged(3, old);
+			classChanged(this);
 		}
 
 		/**
@@ -153,7 +373,14 @@ public class Model {
 		 *            the height value to be stored
 		 */
 		public void setHeight(int h) {
-			intData[4] = (h % STEP < (STEP / 2) ? h - (h % STEP) : h + STEP - (h % STEP));
+			int old = geometry(4);
+			setGeometry(4, (h % STEP < (STEP / 2) ? h - (h % STEP) : h + STEP - (h % STEP)));
+			if (geometry(4) == old)
+				return;
+			if (recordEdit())
+				journal.setClassInt(getIndex(), 4, h);
+			intChanged(4, old);
+			classChanged(this);
 		}
 
 		/**
@@ -163,7 +390,15 @@ public class Model {
 		 *            the name value to be stored
 		 */
 		public void setName(String n) {
+			n = TextPool.intern(n);
+			String old = name.get();
+			if (Objects.equals(old, n))
+				return;
 			name.set(n);
+			if (recordEdit())
+				journal.setClassText(getIndex(), 0, n);
+			textChanged(0, old, n);
+			classChanged(this);
 		}
 
 		/**
@@ -173,7 +408,15 @@ public class Model {
 		 *            the attributes value to be stored
 		 */
 		public void setAttr(String a) {
+			a = TextPool.intern(a);
+			String old = attr.get();
+			if (Objects.equals(old, a))
+				return;
 			attr.set(a);
+			if (recordEdit())
+				journal.setClassText(getIndex(), 1, a);
+			textChanged(1, old, a);
+			classChanged(this);
 		}
 
 		/**
@@ -183,7 +426,15 @@ public class Model {
 		 *            the operations valie to be stored
 		 */
 		public void setOper(String o) {
+			o = TextPool.intern(o);
+			String old = oper.get();
+			if (Objects.equals(old, o))
+				return;
 			oper.set(o);
+			if (recordEdit())
+				journal.setClassText(getIndex(), 2, o);
+			textChanged(2, old, o);
+			classChanged(this);
 		}
 
 		/**
@@ -193,7 +444,68 @@ public class Model {
 		 *            the desctiption model to be stored
 		 */
 		public void setDesc(String d) {
+			d = TextPool.intern(d);
+			String old = desc.get();
+			if (Objects.equals(old, d))
+				return;
 			desc.set(d);
+			if (recordEdit())
+				journal.setClassText(getIndex(), 3, d);
+			textChanged(3, old, d);
+			classChanged(this);
+		}
+
+		/**
+		 * Returns a copy of the ClassModel with properties of its own
+		 * 
+		 * @return the copy
+		 */
+		private ClassModel copy() {
+			ClassModel copy = new ClassModel(ints(), new String[] { getName(), getAttr(), getOper(), getDesc() });
+			copy.record = record;
+			return copy;
+		}
+
+		/**
+		 * Records a change to one of the ints for undo, if it changed anything
+		 */
+		private void intChanged(int field, int old) {
+			if (old != geometry(field) && recordUndo())
+				history.recordClassInt(getIndex(), field, old, geometry(field));
+		}
+
+		/**
+		 * Returns x, y, width or height, from the geometry columns while the class
+		 * is in the model
+		 */
+		private int geometry(int field) {
+			return slot < 0 ? intData[field] : columns[field][slot];
+		}
+
+		private void setGeometry(int field, int value) {
+			if (slot < 0)
+				intData[field] = value;
+			else
+				columns[field][slot] = value;
+		}
+
+		/**
+		 * Returns a copy of the ints, laid out as intData
+		 */
+		private int[] ints() {
+			return new int[] { intData[0], geometry(1), geometry(2), geometry(3), geometry(4) };
+		}
+
+		/**
+		 * Records a change to one of the Strings for undo, if it changed anything
+		 */
+		private void textChanged(int field, String old, String value) {
+			if (Objects.equals(old, value))
+				return;
+			if (recordUndo())
+				history.recordClassText(getIndex(), field, old, value);
+			if (textIndex != null && id >= 0 && classesById[id] == this)
+				indexText(this);
 		}
 
 		/*****************************
@@ -206,16 +518,40 @@ public class Model {
 		 * @return the index value of the ClassModel
 		 */
 		public int getIndex() {
+			int i = intData[0];
+			if (i >= classIndexed && (i >= classList.size() || classList.get(i) != this))
+				renumberClasses();
 			return intData[0];
 		}
 
+		/**
+		 * Returns the ID of the ClassModel, which stays the same while it is in the
+		 * model, wherever it moves in the list
+		 * 
+		 * @return the ID of the ClassModel, or -1 if it was never added
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Returns an immutable copy of the ClassModel, made once per change or move
+		 * 
+		 * @return the ClassModel's current record
+		 */
+		ModelSnapshot.ClassRecord toRecord() {
+			if (record == null || record.index != getIndex())
+				record = new ModelSnapshot.ClassRecord(this);
+			return record;
+		}
+
 		/**
 		 * Returns the x position value of the ClassModel
 		 * 
 		 * @return the x position value of the ClassModel
 		 */
 		public int getXPos() {
-			return intData[1];
+			return geometry(1);
 		}
 
 		/**
@@ -224,7 +560,7 @@ public class Model {
 		 * @return the y position value of the ClassModel
 		 */
 		public int getYPos() {
-			return intData[2];
+			return geometry(2);
 		}
 
 		/**
@@ -233,7 +569,7 @@ public class Model {
 		 * @return the width value of the ClassModel
 		 */
 		public int getWidth() {
-			return intData[3];
+			return geometry(3);
 		}
 
 		/**
@@ -242,7 +578,7 @@ public class Model {
 		 * @return the height value of the ClassModel
 		 */
 		public int getHeight() {
-			return intData[4];
+			return geometry(4);
 		}
 
 		/**
@@ -330,17 +666,37 @@ public class Model {
 		 * Use -1 (or any negative) to denote ANY (*). Destination minimum and
 		 * destination maximum denote the cardinality of the connection with the
 		 * destination block. Same rules apply. Label is pretty straightforward.
+		 *
+		 * The fields are plain values, so a diagram can hold a great many links.
+		 * Changes are reported to the model's LinkListeners, and links being edited
+		 * can be given properties by getProperties.
 		 */
+
+		// The fields a LinkListener is told changed, numbered as in intData
+		public static final int TYPE = 1;
+		public static final int SOURCE = 2;
+		public static final int DEST = 3;
+		public static final int SOURCE_MIN = 4;
+		public static final int SOURCE_MAX = 5;
+		public static final int DEST_MIN = 6;
+		public static final int DEST_MAX = 7;
+		public static final int LABEL = 8;
+
 		private int index;
-		private IntegerProperty type = new SimpleIntegerProperty();
-		private IntegerProperty src = new SimpleIntegerProperty();
-		private IntegerProperty dest = new SimpleIntegerProperty();
-		private IntegerProperty srcMin = new SimpleIntegerProperty();
-		private IntegerProperty srcMax = new SimpleIntegerProperty();
-		private IntegerProperty destMin = new SimpleIntegerProperty();
-		private IntegerProperty destMax = new SimpleIntegerProperty();
-		
-		private StringProperty label = new SimpleStringProperty();
+		private int id = -1;
+		// Set once src and dest hold class IDs rather than positions
+		private boolean resolved = false;
+		private int type;
+		private int src;
+		private int dest;
+		private int srcMin;
+		private int srcMax;
+		private int destMin;
+		private int destMax;
+
+		private String label;
+		// This link as of its last change, shared by every snapshot since
+		private ModelSnapshot.LinkRecord record;
 
 		/**
 		 * Constructs an instance of LinkModel
@@ -354,16 +710,30 @@ public class Model {
 		public LinkModel(int[] data, String l) {
 			if (data.length == 8) {
 				index = data[0];
-				type.set(data[1]);
-				src.set(data[2]);
-				dest.set(data[3]);
-				srcMin.set(data[4]);
-				srcMax.set(data[5]);
-				destMin.set(data[6]);
-				destMax.set(data[7]);
+				type = data[1];
+				src = data[2];
+				dest = data[3];
+				srcMin = data[4];
+				srcMax = data[5];
+				destMin = data[6];
+				destMax = data[7];
 
 			}
-			label.set(l);
+			label = TextPool.intern(l);
+		}
+
+		/**
+		 * Copies a link read into another model.
+		 * 
+		 * @constructor
+		 * @param loaded
+		 *            the link to copy
+		 */
+		private LinkModel(LinkModel loaded) {
+			this(new int[] { loaded.getIndex(), loaded.getType(), loaded.getSource(), loaded.getDest(),
+					loaded.getSourceMin(), loaded.getSourceMax(), loaded.getDestMin(), loaded.getDestMax() },
+					loaded.getLabel());
+			record = loaded.record;
 		}
 
 		/*****************************
@@ -378,6 +748,7 @@ public class Model {
 		 */
 		public void setIndex(int i) {
 			index = i;
+			linkChanged(this);
 		}
 
 		/**
@@ -387,7 +758,14 @@ public class Model {
 		 *            the type value to be stored
 		 */
 		public void setType(int t) {
-			type.set(t);
+			int old = type;
+			if (t == old)
+				return;
+			type = t;
+			if (recordEdit())
+				journal.setLinkInt(getIndex(), TYPE, t);
+			intChanged(TYPE, old, t);
+			linkChanged(this);
 		}
 
 		/**
@@ -397,7 +775,16 @@ public class Model {
 		 *            the source index to be stored
 		 */
 		public void setSource(int s) {
-			src.set(s);
+			int old = getSource();
+			if (s == old)
+				return;
+			moveEnd(SOURCE, s);
+			if (recordEdit())
+				journal.setLinkInt(getIndex(), SOURCE, s);
+			intChanged(SOURCE, old, s);
+			if (duringUndo || duringRedo)
+				rewiredLinks.add(this);
+			linkChanged(this);
 		}
 
 		/**
@@ -407,7 +794,16 @@ public class Model {
 		 *            the destination index to be stored
 		 */
 		public void setDest(int d) {
-			dest.set(d);
+			int old = getDest();
+			if (d == old)
+				return;
+			moveEnd(DEST, d);
+			if (recordEdit())
+				journal.setLinkInt(getIndex(), DEST, d);
+			intChanged(DEST, old, d);
+			if (duringUndo || duringRedo)
+				rewiredLinks.add(this);
+			linkChanged(this);
 		}
 
 		/**
@@ -417,7 +813,14 @@ public class Model {
 		 *            the source minimum value to be stored
 		 */
 		public void setSourceMin(int s) {
-			srcMin.set(s);
+			int old = srcMin;
+			if (s == old)
+				return;
+			srcMin = s;
+			if (recordEdit())
+				journal.setLinkInt(getIndex(), SOURCE_MIN, s);
+			intChanged(SOURCE_MIN, old, s);
+			linkChanged(this);
 		}
 
 		/**
@@ -427,7 +830,14 @@ public class Model {
 		 *            the source maximum value to be stored
 		 */
 		public void setSourceMax(int s) {
-			srcMax.set(s);
+			int old = srcMax;
+			if (s == old)
+				return;
+			srcMax = s;
+			if (recordEdit())
+				journal.setLinkInt(getIndex(), SOURCE_MAX, s);
+			intChanged(SOURCE_MAX, old, s);
+			linkChanged(this);
 		}
 
 		/**
@@ -437,7 +847,14 @@ public class Model {
 		 *            the destination minimum value to be stored
 		 */
 		public void setDestMin(int d) {
-			destMin.set(d);
+			int old = destMin;
+			if (d == old)
+				return;
+			destMin = d;
+			if (recordEdit())
+				journal.setLinkInt(getIndex(), DEST_MIN, d);
+			intChanged(DEST_MIN, old, d);
+			linkChanged(this);
 		}
 
 		/**
@@ -447,7 +864,14 @@ public class Model {
 		 *            the destination maximum value to be stored
 		 */
 		public void setDestMax(int d) {
-			destMax.set(d);
+			int old = destMax;
+			if (d == old)
+				return;
+			destMax = d;
+			if (recordEdit())
+				journal.setLinkInt(getIndex(), DEST_MAX, d);
+			intChanged(DEST_MAX, old, d);
+			linkChanged(this);
 		}
 
 		/**
@@ -457,7 +881,50 @@ public class Model {
 		 *            the label to be stored
 		 */
 		public void setLabel(String l) {
-			label.set(l);
+			l = TextPool.intern(l);
+			String old = label;
+			if (Objects.equals(old, l))
+				return;
+			label = l;
+			if (recordEdit())
+				journal.setLinkLabel(getIndex(), l);
+			if (recordUndo())
+				history.recordLinkLabel(getIndex(), old, l);
+			fireLinkChanged(this, LABEL);
+			linkChanged(this);
+		}
+
+		/**
+		 * Points one end at the class at a position, keeping the incidence index up
+		 * to date. Once resolved, the end holds the class's ID. Moving it is an
+		 * update of the link in the list.
+		 */
+		private void moveEnd(int field, int position) {
+			int end = resolved ? classList.get(position).id : position;
+			if (end == (field == SOURCE ? src : dest))
+				return;
+			if (resolved)
+				detach(this);
+			if (field == SOURCE)
+				src = end;
+			else
+				dest = end;
+			if (resolved)
+				attach(this);
+			if (id >= 0 && linksById[id] == this)
+				linkList.elementUpdated(this);
+		}
+
+		/**
+		 * Records a change to one of the ints for undo and tells the listeners, if it
+		 * changed anything
+		 */
+		private void intChanged(int field, int old, int value) {
+			if (old == value)
+				return;
+			if (recordUndo())
+				history.recordLinkInt(getIndex(), field, old, value);
+			fireLinkChanged(this, field);
 		}
 
 		/*****************************
@@ -470,16 +937,41 @@ public class Model {
 		 * @return the index value of the LinkModel
 		 */
 		public int getIndex() {
+			if (index >= linkIndexed && (index >= linkList.size() || linkList.get(index) != this))
+				renumberLinks();
 			return index;
 		}
 
+		/**
+		 * Returns the ID of the LinkModel, which stays the same while it is in the
+		 * model, wherever it moves in the list
+		 * 
+		 * @return the ID of the LinkModel, or -1 if it was never added
+		 */
+		public int getId() {
+			return id;
+		}
+
+		/**
+		 * Returns an immutable copy of the LinkModel, made once per change or move
+		 * of it or its classes
+		 * 
+		 * @return the LinkModel's current record
+		 */
+		ModelSnapshot.LinkRecord toRecord() {
+			if (record == null || record.index != getIndex() || record.source != getSource()
+					|| record.dest != getDest())
+				record = new ModelSnapshot.LinkRecord(this);
+			return record;
+		}
+
 		/**
 		 * Returns the type value of the LinkModel
 		 * 
 		 * @return the type value of the LinkModel
 		 */
 		public int getType() {
-			return type.get();
+			return type;
 		}
 
 		/**
@@ -488,7 +980,7 @@ public class Model {
 		 * @return the source index of the LinkModel
 		 */
 		public int getSource() {
-			return src.get();
+			return resolved ? classIndex(src) : src;
 		}
 
 		/**
@@ -497,7 +989,7 @@ public class Model {
 		 * @return the destination index of the LinkModel
 		 */
 		public int getDest() {
-			return dest.get();
+			return resolved ? classIndex(dest) : dest;
 		}
 
 		/**
@@ -506,7 +998,7 @@ public class Model {
 		 * @return the source minimum value of the LinkModel
 		 */
 		public int getSourceMin() {
-			return srcMin.get();
+			return srcMin;
 		}
 
 		/**
@@ -515,7 +1007,7 @@ public class Model {
 		 * @return the source maximum value of the LinkModel
 		 */
 		public int getSourceMax() {
-			return srcMax.get();
+			return srcMax;
 		}
 
 		/**
@@ -524,7 +1016,7 @@ public class Model {
 		 * @return the destination minimum value of the LinkModel
 		 */
 		public int getDestMin() {
-			return destMin.get();
+			return destMin;
 		}
 
 		/**
@@ -533,7 +1025,7 @@ public class Model {
 		 * @return the destination maximum value of the LinkModel
 		 */
 		public int getDestMax() {
-			return destMax.get();
+			return destMax;
 		}
 
 		/**
@@ -542,85 +1034,30 @@ public class Model {
 		 * @return the label of the LinkModel
 		 */
 		public String getLabel() {
-			return label.get();
-		}
-
-		/**
-		 * Returns the IntegerProperty associated with the LinkModel's type
-		 * 
-		 * @return the IntegerProperty associated with the LinkModel's type
-		 */
-		public IntegerProperty getTypeProp() {
-			return type;
-		}
-		
-		/**
-		 * Returns the IntegerProperty associated with the LinkModel's source
-		 * 
-		 * @return the IntegerProperty associated with the LinkModel's source
-		 */
-		public IntegerProperty getSourceProp() {
-			return src;
+			return label;
 		}
 
 		/**
-		 * Returns the IntegerProperty associated with the LinkModel's destination
-		 * 
-		 * @return the IntegerProperty associated with the LinkModel's destination
-		 */
-		public IntegerProperty getDestProp() {
-			return dest;
-		}
-	
-		/**
-		 * Returns the IntegerProperty associated with the LinkModel's source min
-		 * 
-		 * @return the IntegerProperty associated with the LinkModel's source min
-		 */
-		public IntegerProperty getSourceMinProp() {
-			return srcMin;
-		}
-		
-		/**
-		 * Returns the IntegerProperty associated with the LinkModel's source max
-		 * 
-		 * @return the IntegerProperty associated with the LinkModel's source max
-		 */
-		public IntegerProperty getSourceMaxProp() {
-			return srcMax;
-		}
-		
-		/**
-		 * Returns the IntegerProperty associated with the LinkModel's dest min
-		 * 
-		 * @return the IntegerProperty associated with the LinkModel's dest min
-		 */
-		public IntegerProperty getDestMinProp() {
-			return destMin;
-		}
-		
-		/**
-		 * Returns the IntegerProperty associated with the LinkModel's dest max
+		 * Returns properties that follow the LinkModel and edit it when set, for
+		 * binding it to controls. Every caller gets the same ones until they are
+		 * released.
 		 * 
-		 * @return the IntegerProperty associated with the LinkModel's dest max
+		 * @return the properties of the LinkModel
 		 */
-		public IntegerProperty getDestMaxProp() {
-			return destMax;
+		public LinkProperties getProperties() {
+			LinkProperties properties = editedLinks.get(this);
+			if (properties == null) {
+				properties = new LinkProperties(Model.this, this);
+				editedLinks.put(this, properties);
+				addLinkListener(properties);
+			}
+			return properties;
 		}
 
-		/**
-		 * Returns the StringProperty associated with the LinkModel's label
-		 * 
-		 * @return the StringProperty associated with the LinkModel's label
-		 */
-		public StringProperty getLabelProp() {
-			return label;
-		}
-		
 	}
 
-	private ObservableList<ClassModel> classList;
-	private ObservableList<LinkModel> linkList;
+	private ModelList<ClassModel> classList;
+	private ModelList<LinkModel> linkList;
 	private List<ClassBlock> classes;
 	private List<Link> links;
 	private boolean createLinkMode = false;
@@ -639,20 +1076,31 @@ public class Model {
 	 * @constructor
 	 */
 	public Model() {
-		classList = FXCollections.observableArrayList(new Callback<ClassModel, Observable[]>() {
+		classList = new ModelList<ClassModel>(new Callback<ClassModel, Observable[]>() {
 			@Override
 			public Observable[] call(ClassModel param) {
 				return new Observable[] { param.getNameProp(), param.getAttrProp(), param.getOperProp(),
 						param.getDescProp() };
 			}
-		});
+		}) {
+			@Override
+			int positionOf(ClassModel element) {
+				return element.getIndex();
+			}
+		};
 
-		linkList = FXCollections.observableArrayList(new Callback<LinkModel, Observable[]>() {
+		linkList = new ModelList<LinkModel>(new Callback<LinkModel, Observable[]>() {
 			@Override
 			public Observable[] call(LinkModel param) {
-				return new Observable[] { param.getSourceProp(), param.getDestProp() };
+				// Links have no properties; moving an end reports the update itself
+				return NO_OBSERVABLES;
 			}
-		});
+		}) {
+			@Override
+			int positionOf(LinkModel element) {
+				return element.getIndex();
+			}
+		};
 
 		classes = new ArrayList<ClassBlock>();
 		links = new ArrayList<Link>();
@@ -676,6 +1124,75 @@ public class Model {
 		return linkList;
 	}
 
+	/**
+	 * Adds a listener to be told of changes to the fields of links
+	 * 
+	 * @param listener
+	 *            the listener to add
+	 */
+	public void addLinkListener(LinkListener listener) {
+		linkListeners = Arrays.copyOf(linkListeners, linkListeners.length + 1);
+		linkListeners[linkListeners.length - 1] = listener;
+	}
+
+	/**
+	 * Removes a listener added by addLinkListener
+	 * 
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public void removeLinkListener(LinkListener listener) {
+		for (int n = 0; n != linkListeners.length; ++n) {
+			if (linkListeners[n] == listener) {
+				LinkListener[] kept = new LinkListener[linkListeners.length - 1];
+				System.arraycopy(linkListeners, 0, kept, 0, n);
+				System.arraycopy(linkListeners, n + 1, kept, n, kept.length - n);
+				linkListeners = kept;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Tells the link listeners a field of a link changed
+	 */
+	private void fireLinkChanged(LinkModel link, int field) {
+		if (link.id < 0 || linksById[link.id] != link)
+			return;
+		if (holdingLinkChanges) {
+			if (heldLinkChangeCount == heldLinkChanges.length)
+				heldLinkChanges = Arrays.copyOf(heldLinkChanges, heldLinkChangeCount * 2);
+			heldLinkChanges[heldLinkChangeCount++] = (long) link.id << 32 | field;
+			return;
+		}
+		for (LinkListener listener : linkListeners)
+			listener.linkChanged(link, field);
+	}
+
+	/**
+	 * Sends the link changes held back by a transaction, leaving out links no
+	 * longer in the model.
+	 */
+	private void releaseLinkChanges() {
+		holdingLinkChanges = false;
+		long[] held = Arrays.copyOf(heldLinkChanges, heldLinkChangeCount);
+		heldLinkChangeCount = 0;
+		for (long change : held) {
+			LinkModel link = linksById[(int) (change >>> 32)];
+			if (link != null)
+				fireLinkChanged(link, (int) change);
+		}
+	}
+
+	/**
+	 * Drops the properties given out for a link, once they are released
+	 */
+	void releaseProperties(LinkModel link) {
+		LinkProperties properties = editedLinks.remove(link);
+		if (properties != null)
+			removeLinkListener(properties);
+	}
+
 	/**
 	 * Returns the smallest index that isn't presently storing a ClassModel object.
 	 * 
@@ -717,79 +1234,455 @@ public class Model {
 	}
 
 	/**
-	 * Returns the ClassBlock object stored at index i
+	 * Returns the ClassModel with an ID, wherever it is in the list
+	 *
+	 * @param id
+	 *            the ID of the ClassModel, from getId()
+	 * @return the ClassModel, or null if it has been removed
+	 */
+	public ClassModel getClassById(int id) {
+		return id >= 0 && id < nextClassId ? classesById[id] : null;
+	}
+
+	/**
+	 * Returns the LinkModel with an ID, wherever it is in the list
+	 *
+	 * @param id
+	 *            the ID of the LinkModel, from getId()
+	 * @return the LinkModel, or null if it has been removed
+	 */
+	public LinkModel getLinkById(int id) {
+		return id >= 0 && id < nextLinkId ? linksById[id] : null;
+	}
+
+	/**
+	 * Returns the number of links whose source is the class at index i
 	 * 
 	 * @param i
-	 *            the index of the ClassBlock object to be returned
-	 * @return the ClassBlock object stored at index i
+	 *            the index of the class
+	 * @return the number of links leaving it
 	 */
-	public ClassBlock getClass(int i) {
-		return classes.get(i);
+	public int getOutDegree(int i) {
+		return outDegree[classList.get(i).id];
 	}
 
 	/**
-	 * Returns the Link object stored at index i
+	 * Returns the number of links whose destination is the class at index i
 	 * 
 	 * @param i
-	 *            the index of the Link object to be returned
-	 * @return the Link object stored at index i
+	 *            the index of the class
+	 * @return the number of links entering it
 	 */
-	public Link getLink(int i) {
-		return links.get(i);
+	public int getInDegree(int i) {
+		return inDegree[classList.get(i).id];
 	}
 
 	/**
-	 * Creates a new ClassModel object and places it at the end of the list.
+	 * Returns the indices of the links whose source is the class at index i, in
+	 * no particular order. Takes time in proportion to their number.
 	 * 
-	 * @param ints
-	 *            A list of int arguments to be passed to the ClassModel
-	 *            constructor.
-	 * @param strings
-	 *            A list of String arguments to be passed to the ClassModel
-	 *            constructor.
-	 * @return the index of the new ClassModel object
+	 * @param i
+	 *            the index of the class
+	 * @return the indices of the links leaving it
 	 */
-	public int addClassModel(int[] ints, String[] strings) {
-		if (ints.length == 5 && strings.length == 4) {
-			classList.add(new ClassModel(ints, strings));
-		}
-		return (classList.size() - 1);
+	public int[] getLinksFrom(int i) {
+		int id = classList.get(i).id;
+		return linkIndices(outLinks[id], outDegree[id]);
 	}
 
 	/**
-	 * Removes the ClassModel object stored at index i and updates the linkList to
-	 * reflect the index changes.
+	 * Returns the indices of the links whose destination is the class at index
+	 * i, in no particular order. Takes time in proportion to their number.
 	 * 
 	 * @param i
-	 *            the index of the ClassModel to be removed
+	 *            the index of the class
+	 * @return the indices of the links entering it
 	 */
-	public void removeClassModel(int i) {
-		classList.remove(i);
+	public int[] getLinksTo(int i) {
+		int id = classList.get(i).id;
+		return linkIndices(inLinks[id], inDegree[id]);
+	}
 
-		refreshLines();
+	/**
+	 * Returns the indices of every link leaving or entering the class at index i,
+	 * in order and each once
+	 * 
+	 * @param i
+	 *            the index of the class
+	 * @return the indices of the links attached to it
+	 */
+	public int[] getLinksOf(int i) {
+		return attachedLinks(classList.get(i).id);
 	}
-	
+
 	/**
-	 * Refresh all lines, arrowheads, labels, etc for each Line
+	 * Returns the indices of the classes the class at index i links to, in order
+	 * and each once
 	 * 
+	 * @param i
+	 *            the index of the class
+	 * @return the indices of the classes it depends on
 	 */
-	public void refreshLines() {
-		for (Link link : links)
-			link.updateLine();
+	public int[] getDependencies(int i) {
+		int id = classList.get(i).id;
+		return otherEnds(outLinks[id], outDegree[id], false);
 	}
-	
+
 	/**
-	 * Remove the current width & height of each ClassBlock to prepare for updating line connectivity (before CSS change)
+	 * Returns the indices of the classes that link to the class at index i, in
+	 * order and each once
 	 * 
+	 * @param i
+	 *            the index of the class
+	 * @return the indices of the classes that depend on it
 	 */
-	public void prepClassBlocks() {
-		for (ClassBlock classy: classes)
-			classy.prepWidthHeight();
+	public int[] getDependents(int i) {
+		int id = classList.get(i).id;
+		return otherEnds(inLinks[id], inDegree[id], true);
 	}
-	
-	
+
 	/**
-	 * Refresh the width & heights of each ClassBlock for proper line connectivity (after CSS change)
+	 * Returns the smallest rectangle holding every class
+	 * 
+	 * @return the left, top, right and bottom edges, or null if there are no
+	 *         classes
+	 */
+	public int[] getBounds() {
+		if (slotCount == 0)
+			return null;
+		int[] xs = columns[1], ys = columns[2], widths = columns[3], heights = columns[4];
+		int left = Integer.MAX_VALUE, top = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE, bottom = Integer.MIN_VALUE;
+		for (int s = 0; s != slotCount; ++s) {
+			left = Math.min(left, xs[s]);
+			top = Math.min(top, ys[s]);
+			right = Math.max(right, xs[s] + widths[s]);
+			bottom = Math.max(bottom, ys[s] + heights[s]);
+		}
+		return new int[] { left, top, right, bottom };
+	}
+
+	/**
+	 * Returns the class under a point. Where classes overlap, the one added last
+	 * is on top.
+	 * 
+	 * @param x
+	 *            the x position of the point
+	 * @param y
+	 *            the y position of the point
+	 * @return the index of the class on top at the point, or -1 if there is none
+	 */
+	public int getClassAt(int x, int y) {
+		int[] xs = columns[1], ys = columns[2], widths = columns[3], heights = columns[4];
+		int top = -1;
+		for (int s = 0; s != slotCount; ++s) {
+			if (x >= xs[s] && x < xs[s] + widths[s] && y >= ys[s] && y < ys[s] + heights[s])
+				top = Math.max(top, slotOwners[s].getIndex());
+		}
+		return top;
+	}
+
+	/**
+	 * Returns the classes that lie wholly inside a rectangle
+	 * 
+	 * @param left
+	 *            the left edge of the rectangle
+	 * @param top
+	 *            the top edge of the rectangle
+	 * @param right
+	 *            the right edge of the rectangle
+	 * @param bottom
+	 *            the bottom edge of the rectangle
+	 * @return the indices of the classes, in order
+	 */
+	public int[] getClassesWithin(int left, int top, int right, int bottom) {
+		int[] xs = columns[1], ys = columns[2], widths = columns[3], heights = columns[4];
+		int[] found = new int[16];
+		int count = 0;
+		for (int s = 0; s != slotCount; ++s) {
+			if (xs[s] >= left && ys[s] >= top && xs[s] + widths[s] <= right && ys[s] + heights[s] <= bottom) {
+				if (count == found.length)
+					found = Arrays.copyOf(found, count * 2);
+				found[count++] = slotOwners[s].getIndex();
+			}
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		return found;
+	}
+
+	/**
+	 * Returns the classes whose name, attributes, operations or description have
+	 * a word starting with each word of the query, ignoring case. "get name"
+	 * finds a class with getName() among its operations, as do "getn" and
+	 * "name". The first search indexes every class; later ones only look the
+	 * words up.
+	 * 
+	 * @param query
+	 *            the words to look for
+	 * @return the indices of the classes, in order; none if the query has no
+	 *         words
+	 */
+	public int[] findClasses(String query) {
+		if (textIndex == null) {
+			textIndex = new TextIndex();
+			for (ClassModel model : classList)
+				indexText(model);
+		}
+		int[] ids = textIndex.find(query);
+		int[] found = new int[ids.length];
+		if (ids.length == classList.size()) {
+			// All of them
+			for (int n = 0; n != found.length; ++n)
+				found[n] = n;
+		} else if (ids.length > classList.size() / 8) {
+			// Many found: walk the classes in order, picking them out by ID
+			BitSet byId = new BitSet(nextClassId);
+			for (int id : ids)
+				byId.set(id);
+			int n = 0;
+			for (int index = 0; n != found.length; ++index)
+				if (byId.get(classList.get(index).id))
+					found[n++] = index;
+		} else {
+			for (int n = 0; n != ids.length; ++n)
+				found[n] = classesById[ids[n]].getIndex();
+			Arrays.sort(found);
+		}
+		return found;
+	}
+
+	/**
+	 * Indexes the text of a class in the model, replacing what was indexed for it
+	 */
+	private void indexText(ClassModel model) {
+		textIndex.put(model.id, model.getName(), model.getAttr(), model.getOper(), model.getDesc());
+	}
+
+	/**
+	 * Returns the ClassBlock object stored at index i
+	 * 
+	 * @param i
+	 *            the index of the ClassBlock object to be returned
+	 * @return the ClassBlock object stored at index i
+	 */
+	public ClassBlock getClass(int i) {
+		return classes.get(i);
+	}
+
+	/**
+	 * Returns the Link object stored at index i
+	 * 
+	 * @param i
+	 *            the index of the Link object to be returned
+	 * @return the Link object stored at index i
+	 */
+	public Link getLink(int i) {
+		return links.get(i);
+	}
+
+	/**
+	 * Creates a new ClassModel object and places it at the end of the list.
+	 * 
+	 * @param ints
+	 *            A list of int arguments to be passed to the ClassModel
+	 *            constructor.
+	 * @param strings
+	 *            A list of String arguments to be passed to the ClassModel
+	 *            constructor.
+	 * @return the index of the new ClassModel object
+	 */
+	public int addClassModel(int[] ints, String[] strings) {
+		if (ints.length == 5 && strings.length == 4) {
+			ClassModel model = new ClassModel(ints, strings);
+			enterClass(model, classList.size());
+			classList.add(model);
+			if (recordEdit())
+				journal.addClass(classList.get(classList.size() - 1));
+			if (recordUndo())
+				history.recordAddClass(classList.size() - 1, classList.get(classList.size() - 1).toRecord());
+			classChanged(classList.get(classList.size() - 1));
+		}
+		return (classList.size() - 1);
+	}
+
+	/**
+	 * Places new ClassModel objects at the end of the list, in the order given,
+	 * as one change to the list.
+	 * 
+	 * @param models
+	 *            ClassModels made for this model and not yet added to it
+	 * @return the index of the first of them
+	 */
+	public int addClassModels(Collection<ClassModel> models) {
+		int first = classList.size();
+		int i = first;
+		for (ClassModel model : models)
+			enterClass(model, i++);
+		classList.addAll(models);
+		classesShifted(first);
+
+		boolean editable = recordEdit();
+		boolean undoable = recordUndo();
+		for (i = first; i != classList.size(); ++i) {
+			ClassModel model = classList.get(i);
+			if (editable)
+				journal.addClass(model);
+			if (undoable)
+				history.recordAddClass(i, model.toRecord());
+		}
+		return first;
+	}
+
+	/**
+	 * Creates a new ClassModel object and places it at position i, moving the
+	 * classes after it up one. Undo uses this to put back a class that was
+	 * removed.
+	 * 
+	 * @param i
+	 *            the position of the new ClassModel, from 0 to getClassTail()
+	 * @param ints
+	 *            A list of int arguments to be passed to the ClassModel
+	 *            constructor. The index is replaced by i.
+	 * @param strings
+	 *            A list of String arguments to be passed to the ClassModel
+	 *            constructor.
+	 */
+	public void insertClassModel(int i, int[] ints, String[] strings) {
+		if (ints.length != 5 || strings.length != 4)
+			return;
+		ClassModel model = new ClassModel(ints, strings);
+		boolean undoable = recordUndo();
+
+		enterClass(model, i);
+		classList.add(i, model);
+		classesShifted(i);
+		linkEndsShifted(i + 1);
+
+		if (recordEdit())
+			journal.insertClass(model);
+		if (undoable)
+			history.recordAddClass(i, model.toRecord());
+	}
+
+	/**
+	 * Removes the ClassModel object stored at index i along with the links that
+	 * connect to it. Only those links are looked at; the others keep their
+	 * classes by ID, so nothing needs renumbering.
+	 * 
+	 * @param i
+	 *            the index of the ClassModel to be removed
+	 */
+	public void removeClassModel(int i) {
+		if (recordEdit())
+			journal.removeClass(i);
+		boolean undoable = recordUndo();
+		ClassModel model = classList.get(i);
+		// Known here, so the classes before it don't need renumbering
+		model.intData[0] = i;
+		ModelSnapshot.ClassRecord removed = model.toRecord();
+
+		int[] linkIndices = attachedLinks(model.id);
+		int connected = linkIndices.length;
+		ModelSnapshot.LinkRecord[] removedLinks = new ModelSnapshot.LinkRecord[connected];
+		for (int n = 0; n != connected; ++n)
+			removedLinks[n] = linkList.get(linkIndices[n]).toRecord();
+
+		// The links cleaned up along with the class are re-derived on replay
+		++journalPaused;
+		try {
+			// Remove links that connected to the class, last first
+			for (int n = connected - 1; n != -1; --n)
+				removeLinkModel(linkIndices[n]);
+
+			leaveClass(model, i);
+			classList.remove(i);
+			classesShifted(i);
+			linkEndsShifted(i);
+		} finally {
+			--journalPaused;
+		}
+
+		if (undoable)
+			history.recordRemoveClass(i, removed, linkIndices, removedLinks);
+	}
+
+	/**
+	 * Removes the ClassModel objects from index from up to, but not including,
+	 * index to, along with the links that connect to them.
+	 * 
+	 * @param from
+	 *            the index of the first ClassModel to be removed
+	 * @param to
+	 *            the index after the last one
+	 */
+	public void removeClassModels(int from, int to) {
+		BitSet positions = new BitSet(to);
+		positions.set(from, to);
+		removeClassModels(positions);
+	}
+
+	/**
+	 * Removes the ClassModel objects at the indices set, along with the links
+	 * that connect to them. The links go first, then the classes, each as one
+	 * change to its list, and the remaining lines are redrawn once.
+	 * 
+	 * For the journal and undo the links and then the classes are recorded as
+	 * removed one at a time, last first, so every index recorded is right for
+	 * when it is replayed.
+	 * 
+	 * @param positions
+	 *            the indices of the ClassModels to be removed
+	 */
+	public void removeClassModels(BitSet positions) {
+		int first = positions.nextSetBit(0);
+		if (first < 0)
+			return;
+		BitSet linkPositions = new BitSet(linkList.size());
+		for (int i = first; i >= 0; i = positions.nextSetBit(i + 1)) {
+			for (int link : attachedLinks(classList.get(i).id))
+				linkPositions.set(link);
+		}
+		dropLinks(linkPositions);
+
+		boolean editable = recordEdit();
+		boolean undoable = recordUndo();
+		for (int i = positions.length() - 1; i >= 0; i = positions.previousSetBit(i - 1)) {
+			ClassModel model = classList.get(i);
+			model.intData[0] = i;
+			if (editable)
+				journal.removeClass(i);
+			if (undoable)
+				history.recordRemoveClass(i, model.toRecord(), new int[0], new ModelSnapshot.LinkRecord[0]);
+			leaveClass(model, i);
+		}
+		classList.removePositions(positions);
+		classesShifted(first);
+		linkEndsShifted(first);
+		refreshLines();
+	}
+	
+	/**
+	 * Refresh all lines, arrowheads, labels, etc for each Line
+	 * 
+	 */
+	public void refreshLines() {
+		for (Link link : links)
+			link.updateLine();
+	}
+	
+	/**
+	 * Remove the current width & height of each ClassBlock to prepare for updating line connectivity (before CSS change)
+	 * 
+	 */
+	public void prepClassBlocks() {
+		for (ClassBlock classy: classes)
+			classy.prepWidthHeight();
+	}
+	
+	
+	/**
+	 * Refresh the width & heights of each ClassBlock for proper line connectivity (after CSS change)
 	 * 
 	 */
 	public void refreshClassBlocks() {
@@ -803,18 +1696,74 @@ public class Model {
 	}
 
 	/**
-	 * Removes the LinkModel object stored at index i and decrements later indices
+	 * Removes the LinkModel object stored at index i. Later links find their new
+	 * indices the next time they are asked for one.
 	 * 
 	 * @param i
 	 *            the index of the LinkModel to be removed
 	 */
 	public void removeLinkModel(int i) {
+		if (recordEdit())
+			journal.removeLink(i);
+		linkList.get(i).index = i;
+		if (recordUndo())
+			history.recordRemoveLink(i, linkList.get(i).toRecord());
 //		links.get(i).warnLinkNodes();
+		leaveLink(linkList.get(i), i);
 		linkList.remove(i);
-		for (int l = i; l != linkList.size(); ++l) {
-			linkList.get(l).setIndex(l);
-//			links.get(i).warnLinkNodes();
-		}
+		linksShifted(i);
+	}
+
+	/**
+	 * Removes the LinkModel objects from index from up to, but not including,
+	 * index to.
+	 * 
+	 * @param from
+	 *            the index of the first LinkModel to be removed
+	 * @param to
+	 *            the index after the last one
+	 */
+	public void removeLinkModels(int from, int to) {
+		BitSet positions = new BitSet(to);
+		positions.set(from, to);
+		removeLinkModels(positions);
+	}
+
+	/**
+	 * Removes the LinkModel objects at the indices set as one change to the
+	 * list, and redraws the remaining lines once.
+	 * 
+	 * @param positions
+	 *            the indices of the LinkModels to be removed
+	 */
+	public void removeLinkModels(BitSet positions) {
+		if (positions.isEmpty())
+			return;
+		dropLinks(positions);
+		refreshLines();
+	}
+
+	/**
+	 * Removes the links at the positions set as one change, recording each for
+	 * the journal and undo last first.
+	 */
+	private void dropLinks(BitSet positions) {
+		int first = positions.nextSetBit(0);
+		if (first < 0)
+			return;
+		boolean editable = recordEdit();
+		boolean undoable = recordUndo();
+		for (int i = positions.length() - 1; i >= 0; i = positions.previousSetBit(i - 1)) {
+			LinkModel model = linkList.get(i);
+			model.index = i;
+			if (editable)
+				journal.removeLink(i);
+			if (undoable)
+				history.recordRemoveLink(i, model.toRecord());
+			leaveLink(model, i);
+		}
+		linkList.removePositions(positions);
+		linksShifted(first);
 	}
 
 	/**
@@ -829,11 +1778,158 @@ public class Model {
 	 */
 	public int addLinkModel(int[] ints, String label) {
 		if (ints.length == 8) {
-			linkList.add(new LinkModel(ints, label));
+			LinkModel model = new LinkModel(ints, label);
+			enterLink(model, linkList.size());
+			linkList.add(model);
+			if (recordEdit())
+				journal.addLink(linkList.get(linkList.size() - 1));
+			if (recordUndo())
+				history.recordAddLink(linkList.size() - 1, linkList.get(linkList.size() - 1).toRecord());
+			linkChanged(linkList.get(linkList.size() - 1));
 		}
 		return (linkList.size() - 1);
 	}
 
+	/**
+	 * Places new LinkModel objects at the end of the list, in the order given, as
+	 * one change to the list, and redraws the lines once. Their sources and
+	 * destinations are positions of classes already in the model.
+	 * 
+	 * @param models
+	 *            LinkModels made for this model and not yet added to it
+	 * @return the index of the first of them
+	 */
+	public int addLinkModels(Collection<LinkModel> models) {
+		int first = linkList.size();
+		int i = first;
+		for (LinkModel model : models)
+			enterLink(model, i++);
+		linkList.addAll(models);
+		linksShifted(first);
+
+		boolean editable = recordEdit();
+		boolean undoable = recordUndo();
+		for (i = first; i != linkList.size(); ++i) {
+			LinkModel model = linkList.get(i);
+			if (editable)
+				journal.addLink(model);
+			if (undoable)
+				history.recordAddLink(i, model.toRecord());
+		}
+		refreshLines();
+		return first;
+	}
+
+	/**
+	 * Creates a new LinkModel object and places it at position i, moving the
+	 * links after it up one. Undo uses this to put back a link that was removed.
+	 * 
+	 * @param i
+	 *            the position of the new LinkModel, from 0 to getLinkTail()
+	 * @param ints
+	 *            A list of int arguments to be passed to the LinkModel
+	 *            constructor. The index is replaced by i.
+	 * @param label
+	 *            The label to be passed to the LinkModel constructor.
+	 */
+	public void insertLinkModel(int i, int[] ints, String label) {
+		if (ints.length != 8)
+			return;
+		LinkModel model = new LinkModel(ints, label);
+		boolean undoable = recordUndo();
+
+		enterLink(model, i);
+		linkList.add(i, model);
+		linksShifted(i);
+
+		if (recordEdit())
+			journal.insertLink(model);
+		if (undoable)
+			history.recordAddLink(i, model.toRecord());
+	}
+
+	/**
+	 * Puts one of a class's ints back to a value it had before, without snapping
+	 * it to the grid again.
+	 * 
+	 * @param i
+	 *            the index of the class
+	 * @param field
+	 *            1 for x, 2 y, 3 width, 4 height
+	 * @param value
+	 *            the value to store
+	 */
+	void restoreClassInt(int i, int field, int value) {
+		ClassModel model = classList.get(i);
+		int old = model.geometry(field);
+		model.setGeometry(field, value);
+		if (recordEdit())
+			journal.restoreClassInt(i, field, value);
+		if (duringUndo || duringRedo)
+			movedClasses.add(model);
+		model.intChanged(field, old);
+		classChanged(model);
+	}
+
+	/**
+	 * Adds the classes and links of a snapshot at the end of the lists, as one
+	 * change to each list.
+	 * 
+	 * @param snapshot
+	 *            the records to add
+	 * @param withClasses
+	 *            false to add only the snapshot's links
+	 */
+	void addRecords(ModelSnapshot snapshot, boolean withClasses) {
+		int classCount = withClasses ? snapshot.getClassCount() : 0;
+		List<ClassModel> newClasses = new ArrayList<ClassModel>(classCount);
+		for (int i = 0; i != classCount; ++i) {
+			ModelSnapshot.ClassRecord record = snapshot.getClassRecord(i);
+			newClasses.add(new ClassModel(UndoHistory.classInts(record), UndoHistory.classStrings(record)));
+		}
+		List<LinkModel> newLinks = new ArrayList<LinkModel>(snapshot.getLinkCount());
+		for (int i = 0; i != snapshot.getLinkCount(); ++i) {
+			ModelSnapshot.LinkRecord record = snapshot.getLinkRecord(i);
+			newLinks.add(new LinkModel(UndoHistory.linkInts(record), record.label));
+		}
+		addDecoded(newClasses, newLinks);
+	}
+
+	/**
+	 * Places classes and links decoded off the FX thread at the end of the lists,
+	 * in the order given, as one change to each list.
+	 * 
+	 * @param classes
+	 *            the new classes, whose indices continue from the current end
+	 * @param links
+	 *            the new links, whose indices continue from the current end
+	 */
+	void addDecoded(List<ClassModel> classes, List<LinkModel> links) {
+		int firstClass = classList.size();
+		int firstLink = linkList.size();
+		for (int i = 0; i != classes.size(); ++i)
+			enterClass(classes.get(i), firstClass + i);
+		classList.addAll(classes);
+		for (int i = 0; i != links.size(); ++i)
+			enterLink(links.get(i), firstLink + i);
+		linkList.addAll(links);
+
+		if (recordEdit()) {
+			for (ClassModel model : classes)
+				journal.addClass(model);
+			for (LinkModel model : links)
+				journal.addLink(model);
+		}
+		if (recordUndo()) {
+			for (ClassModel model : classes)
+				history.recordAddClass(model.getIndex(), model.toRecord());
+			for (LinkModel model : links)
+				history.recordAddLink(model.getIndex(), model.toRecord());
+		}
+		classesShifted(firstClass);
+		linksShifted(firstLink);
+	}
+
 	/**
 	 * Stores a Class Block object in the classes list
 	 * 
@@ -845,6 +1941,18 @@ public class Model {
 		classes.add(in);
 	}
 
+	/**
+	 * Stores a Class Block object in the classes list at position i
+	 * 
+	 * @param i
+	 *            The position of the Class Block, matching its ClassModel
+	 * @param in
+	 *            The Class Block to be stored
+	 */
+	public void addClass(int i, ClassBlock in) {
+		classes.add(i, in);
+	}
+
 	/**
 	 * Removes the ClassBlock object stored at index i
 	 * 
@@ -856,6 +1964,19 @@ public class Model {
 		// menuUpdate(i);
 	}
 
+	/**
+	 * Removes the ClassBlock objects from index from up to, but not including,
+	 * index to
+	 * 
+	 * @param from
+	 *            The index of the first ClassBlock to be removed
+	 * @param to
+	 *            The index after the last one
+	 */
+	public void removeClasses(int from, int to) {
+		classes.subList(from, to).clear();
+	}
+
 	/**
 	 * Stores a Link object in the links list
 	 * 
@@ -867,6 +1988,18 @@ public class Model {
 		links.add(in);
 	}
 
+	/**
+	 * Stores a Link object in the links list at position i
+	 * 
+	 * @param i
+	 *            The position of the Link, matching its LinkModel
+	 * @param in
+	 *            The Link object to be stored
+	 */
+	public void addLink(int i, Link in) {
+		links.add(i, in);
+	}
+
 	/**
 	 * Removes the Link object stored at index i
 	 * 
@@ -877,6 +2010,18 @@ public class Model {
 		links.remove(i);
 	}
 
+	/**
+	 * Removes the Link objects from index from up to, but not including, index to
+	 * 
+	 * @param from
+	 *            The index of the first Link to be removed
+	 * @param to
+	 *            The index after the last one
+	 */
+	public void removeLinks(int from, int to) {
+		links.subList(from, to).clear();
+	}
+
 	/**
 	 * menu container system - disabled
 	 * 
@@ -914,12 +2059,22 @@ public class Model {
 	 * 
 	 */
 	public void clearLinks() {
-		clearing = true;
-		for (Link linky : links)
-			linky.warnLinkNodes();
-
-		links.clear();
+		if (recordEdit())
+			journal.clearLinks();
+		if (recordUndo() && !linkList.isEmpty())
+			history.recordClearLinks(snapshot());
+
+		boolean views = transactionDepth == 0;
+		clearing = views;
+		leaveLinks();
 		linkList.clear();
+		if (views) {
+			for (Link linky : links)
+				linky.warnLinkNodes();
+
+			links.clear();
+		}
+		linksShifted(0);
 		
 		clearing = false;
 	}
@@ -952,220 +2107,417 @@ public class Model {
 	}
 
 	/**
-	 * Sets flag that undo is in process.
 	 * 
+	 * @return returns true if the Undo Stack is empty
 	 */
-	public void setUndoState() {
-		duringUndo = true;
-
+	public Boolean isUndoEmpty() {
+		return !history.canUndo();
 	}
 
 	/**
-	 * Sets flag that redo is in process.
 	 * 
+	 * @return returns true if the Redo stack is empty
 	 */
-	public void setRedoState() {
-		duringRedo = true;
+	public Boolean isRedoEmpty() {
+		return !history.canRedo();
 	}
 
 	/**
-	 * clears the entire Redo stack (because of a branch in user choices).
+	 * Starts a new undo step. Every edit made from now until the next call is
+	 * undone together; if there are none, no step is added.
 	 * 
 	 */
-	public void clearRedoState() {
-		while (!classRedoStackSize.isEmpty()) {
-			int size = classRedoStackSize.pop();
-			for (int i = 0; i != size; ++i)
-				classRedoStack.pop();
-		}
-
-		while (!linkRedoStackSize.isEmpty()) {
-			int size = linkRedoStackSize.pop();
-
-			for (int i = 0; i != size; ++i)
-				linkRedoStack.pop();
-		}
+	public void saveUndoState() {
+		if (transactionDepth == 0)
+			history.begin();
 	}
 
 	/**
+	 * Starts a new undo step for a gesture on one object, such as dragging a
+	 * class. Moves within the step are folded into one edit per field, and if
+	 * the last step was on the same object and ended within a second, it is
+	 * carried on instead, so a run of quick nudges is undone at once.
 	 * 
-	 * @return returns true if the Undo Stack is empty
+	 * @param target
+	 *            the object the gesture edits
 	 */
-	public Boolean isUndoEmpty() {
-		return classUndoStackSize.size() == 0 ? true : false;
+	public void saveUndoState(Object target) {
+		if (transactionDepth == 0)
+			history.begin(target);
 	}
 
 	/**
+	 * Undoes the latest action done by the user, by reversing just the edits it
+	 * made. The edits are journaled like any other, and only the views they
+	 * touch are updated.
 	 * 
-	 * @return returns true if the Redo stack is empty
 	 */
-	public Boolean isRedoEmpty() {
-		return classRedoStackSize.size() == 0 ? true : false;
+	public void undo() {
+		if (!history.canUndo() || transactionDepth != 0)
+			return;
+		duringUndo = true;
+		++undoPaused;
+		try {
+			history.undo(this);
+		} finally {
+			--undoPaused;
+			duringUndo = false;
+		}
+		syncView();
 	}
 
 	/**
-	 * Saves an undoState onto the classUndoStack.
+	 * Re-does what the user choose to undo. If edits were made after undoing,
+	 * this follows the branch visited most recently.
 	 * 
 	 */
-	public void saveUndoState() {
-		if (classList.size() != 0) {
-			classUndoStackSize.push(classList.size());
-
-			for (int i = classList.size() - 1; i != -1; --i) {
-				classStackData state = new classStackData();
-
-				state.intData[0] = classList.get(i).getIndex();
-				state.intData[1] = classList.get(i).getXPos();
-				state.intData[2] = classList.get(i).getYPos();
-				state.intData[3] = classList.get(i).getWidth();
-				state.intData[4] = classList.get(i).getHeight();
-				state.name = classList.get(i).getName();
-				state.attr = classList.get(i).getAttr();
-				state.oper = classList.get(i).getOper();
-				state.desc = classList.get(i).getDesc();
-
-				classUndoStack.push(state);
-			}
-
-			linkUndoStackSize.push(linkList.size());
-
-			for (int i = linkList.size() - 1; i != -1; --i) {
-				linkStackData lstate = new linkStackData();
-
-				lstate.intData[0] = linkList.get(i).getIndex();
-				lstate.intData[1] = linkList.get(i).getType();
-				lstate.intData[2] = linkList.get(i).getSource();
-				lstate.intData[3] = linkList.get(i).getDest();
-				lstate.intData[4] = linkList.get(i).getSourceMin();
-				lstate.intData[5] = linkList.get(i).getSourceMax();
-				lstate.intData[6] = linkList.get(i).getDestMin();
-				lstate.intData[7] = linkList.get(i).getDestMax();
-				lstate.label = linkList.get(i).getLabel();
-
-				linkUndoStack.push(lstate);
-			}
-		}
+	public void redo() {
+		if (!history.canRedo() || transactionDepth != 0)
+			return;
+		duringRedo = true;
+		++undoPaused;
+		try {
+			history.redo(this);
+		} finally {
+			--undoPaused;
+			duringRedo = false;
+		}
+		syncView();
 	}
 
 	/**
-	 * Saves the current model state to the Redo Stack.
+	 * Goes to any revision in the undo history, applying only the steps between
+	 * it and the current one. Steps that were undone stay in the history when
+	 * new edits are made, so this can return to them.
 	 * 
+	 * @param revision
+	 *            the revision to go to, from 0 to getRevisionCount() - 1
 	 */
-	public void saveRedoState() {
-		if (classList.size() != 0) {
-			classRedoStackSize.push(classList.size());
-
-			for (int i = classList.size() - 1; i != -1; --i) {
-				classStackData state = new classStackData();
-
-				state.intData[0] = classList.get(i).getIndex();
-				state.intData[1] = classList.get(i).getXPos();
-				state.intData[2] = classList.get(i).getYPos();
-				state.intData[3] = classList.get(i).getWidth();
-				state.intData[4] = classList.get(i).getHeight();
-				state.name = classList.get(i).getName();
-				state.attr = classList.get(i).getAttr();
-				state.oper = classList.get(i).getOper();
-				state.desc = classList.get(i).getDesc();
-
-				classRedoStack.push(state);
-			}
+	public void goToRevision(int revision) {
+		if (transactionDepth != 0)
+			return;
+		duringUndo = true;
+		++undoPaused;
+		try {
+			history.jumpTo(this, revision);
+		} finally {
+			--undoPaused;
+			duringUndo = false;
+		}
+		syncView();
+	}
 
-			linkRedoStackSize.push(linkList.size());
+	/*****************************
+	 * TRANSACTIONS
+	 ****************************/
 
-			for (int i = linkList.size() - 1; i != -1; --i) {
-				linkStackData lstate = new linkStackData();
+	/**
+	 * Starts a transaction. Until it is committed or aborted, listeners of the
+	 * class and link lists hear nothing; they are then sent every addition,
+	 * removal and update it made as one change, and link listeners are told of
+	 * the links it changed. Its edits are one undo step,
+	 * and undo, redo and saveUndoState do nothing while it is open. A
+	 * transaction begun inside another is part of it.
+	 */
+	public void beginTransaction() {
+		if (transactionDepth++ != 0)
+			return;
+		history.begin();
+		transactionStart = history.getRevision();
+		classList.holdChanges();
+		linkList.holdChanges();
+		holdingLinkChanges = true;
+	}
 
-				lstate.intData[0] = linkList.get(i).getIndex();
-				lstate.intData[1] = linkList.get(i).getType();
-				lstate.intData[2] = linkList.get(i).getSource();
-				lstate.intData[3] = linkList.get(i).getDest();
-				lstate.intData[4] = linkList.get(i).getSourceMin();
-				lstate.intData[5] = linkList.get(i).getSourceMax();
-				lstate.intData[6] = linkList.get(i).getDestMin();
-				lstate.intData[7] = linkList.get(i).getDestMax();
-				lstate.label = linkList.get(i).getLabel();
+	/**
+	 * Ends a transaction, keeping its edits. Once the outermost one ends, the
+	 * lists send their changes, classes first so that links find their classes'
+	 * views.
+	 */
+	public void commitTransaction() {
+		if (transactionDepth == 0 || --transactionDepth != 0)
+			return;
+		// The next edit starts a step of its own
+		history.begin();
+		classList.releaseChanges();
+		linkList.releaseChanges();
+		releaseLinkChanges();
+	}
 
-				linkRedoStack.push(lstate);
+	/**
+	 * Ends the outermost transaction open, putting back everything it changed and
+	 * dropping its undo step. Edits that weren't recorded for undo, such as those
+	 * of a load, stay.
+	 */
+	public void abortTransaction() {
+		if (transactionDepth == 0)
+			return;
+		transactionDepth = 0;
+		if (history.getRevision() != transactionStart) {
+			duringUndo = true;
+			++undoPaused;
+			try {
+				history.discard(this);
+			} finally {
+				--undoPaused;
+				duringUndo = false;
 			}
 		}
+		classList.releaseChanges();
+		linkList.releaseChanges();
+		// Only now do the views match the lists again
+		syncView();
+		releaseLinkChanges();
 	}
 
 	/**
-	 * Undoes the latest action done by the user.
+	 * Makes a batch of edits as one transaction: committed if they finish,
+	 * aborted if they throw.
 	 * 
+	 * @param edits
+	 *            the edits to make
 	 */
-	public void undo() {
-		this.saveRedoState();
-
-		if (!classUndoStackSize.isEmpty()) {
-			int size = classUndoStackSize.pop();
-
-			for (int i = 0; i != size; ++i) {
-				classStackData state = classUndoStack.pop();
-
-				int[] ints = { state.intData[0], state.intData[1], state.intData[2], state.intData[3],
-						state.intData[4] };
-
-				String[] strings = { state.name, state.attr, state.oper, state.desc };
-				classList.add(new ClassModel(ints, strings));
-			}
-		}
-
-		if (!linkUndoStackSize.isEmpty()) {
-			int size = linkUndoStackSize.pop();
-
-			for (int i = 0; i != size; ++i) {
-				linkStackData lstate = linkUndoStack.pop();
-
-				int[] ints = { lstate.intData[0], lstate.intData[1], lstate.intData[2], lstate.intData[3],
-						lstate.intData[4], lstate.intData[5], lstate.intData[6], lstate.intData[7] };
-
-				String label = lstate.label;
-				linkList.add(new LinkModel(ints, label));
-			}
+	public void transaction(Runnable edits) {
+		beginTransaction();
+		boolean finished = false;
+		try {
+			edits.run();
+			finished = true;
+		} finally {
+			if (finished)
+				commitTransaction();
+			else
+				abortTransaction();
 		}
-
-		duringUndo = false;
 	}
 
 	/**
-	 * Re-does what the user choose to undo.
 	 * 
+	 * @return true if a transaction is open
 	 */
-	public void redo() {
-		if (!classRedoStackSize.isEmpty()) {
-			int size = classRedoStackSize.pop();
-
-			for (int i = 0; i != size; ++i) {
-				classStackData state = classRedoStack.pop();
+	public boolean inTransaction() {
+		return transactionDepth != 0;
+	}
 
-				int[] ints = { state.intData[0], state.intData[1], state.intData[2], state.intData[3],
-						state.intData[4] };
+	/**
+	 * 
+	 * @return the revision of the undo history the diagram is at; 0 is the
+	 *         diagram before any undoable edit
+	 */
+	public int getRevision() {
+		return history.getRevision();
+	}
 
-				String[] strings = { state.name, state.attr, state.oper, state.desc };
-				classList.add(new ClassModel(ints, strings));
-			}
-		}
+	/**
+	 * 
+	 * @return the number of revisions in the undo history, all branches included
+	 */
+	public int getRevisionCount() {
+		return history.getRevisionCount();
+	}
 
-		if (!linkRedoStackSize.isEmpty()) {
-			int size = linkRedoStackSize.pop();
+	/**
+	 * Returns the revision undo goes back to from the given one
+	 * 
+	 * @param revision
+	 *            a revision other than 0
+	 * @return its parent revision
+	 */
+	public int getRevisionParent(int revision) {
+		return history.getParent(revision);
+	}
 
-			for (int i = 0; i != size; ++i) {
-				linkStackData lstate = linkRedoStack.pop();
+	/**
+	 * Returns when the edits leading to a revision were made
+	 * 
+	 * @param revision
+	 *            the revision
+	 * @return the time, in milliseconds since the epoch
+	 */
+	public long getRevisionTime(int revision) {
+		return history.getTime(revision);
+	}
 
-				int[] ints = { lstate.intData[0], lstate.intData[1], lstate.intData[2], lstate.intData[3],
-						lstate.intData[4], lstate.intData[5], lstate.intData[6], lstate.intData[7] };
+	/**
+	 * Returns a short description of the edits leading to a revision
+	 * 
+	 * @param revision
+	 *            the revision
+	 * @return the description, such as "Move class"
+	 */
+	public String describeRevision(int revision) {
+		return history.describe(revision);
+	}
 
-				String label = lstate.label;
-				linkList.add(new LinkModel(ints, label));
+	/**
+	 * Returns a property that changes whenever a revision is added to or dropped
+	 * from the undo history, or the diagram moves to another revision.
+	 * 
+	 * @return the property
+	 */
+	public ReadOnlyIntegerProperty getHistoryProp() {
+		return history.getChangesProp();
+	}
+
+	/**
+	 * Returns a property holding the newest problem the user should be told of,
+	 * such as a journal that couldn't be replayed, or null while there is none.
+	 * Only changes on the thread that edits the model.
+	 * 
+	 * @return the property
+	 */
+	public ReadOnlyStringProperty getProblemProp() {
+		return problem.getReadOnlyProperty();
+	}
+
+	/**
+	 * Tells the user of a problem by way of getProblemProp.
+	 * 
+	 * @param message
+	 *            what went wrong and what was done about it
+	 */
+	void reportProblem(String message) {
+		System.err.println("IO Failure: " + message);
+		problem.set(message);
+	}
+
+	/**
+	 * Notes that the user has seen the newest problem.
+	 */
+	public void dismissProblem() {
+		problem.set(null);
+	}
+
+	/**
+	 * Brings the views of the classes and links an undo or redo changed in line
+	 * with their models. A moved class is put back in place along with the ends of
+	 * its links; a link whose ends now name other classes is drawn again.
+	 */
+	private void syncView() {
+		for (ClassModel model : movedClasses) {
+			int i = model.getIndex();
+			if (i < classes.size() && classList.get(i) == model)
+				placeClass(classes.get(i), model);
+		}
+		movedClasses.clear();
+
+		// The model is already right, so the relinking isn't an edit
+		++journalPaused;
+		++undoPaused;
+		try {
+			for (LinkModel model : rewiredLinks) {
+				int i = model.getIndex();
+				if (i >= links.size() || linkList.get(i) != model || model.getSource() >= classes.size()
+						|| model.getDest() >= classes.size())
+					continue;
+				Link view = links.get(i);
+				if (view.getSourceNode() != classes.get(model.getSource()).getNode()
+						|| view.getDestNode() != classes.get(model.getDest()).getNode()) {
+					ModelSnapshot.LinkRecord record = model.toRecord();
+					removeLinkModel(i);
+					insertLinkModel(i, UndoHistory.linkInts(record), record.label);
+				}
 			}
+		} finally {
+			--undoPaused;
+			--journalPaused;
 		}
-		duringRedo = false;
+		rewiredLinks.clear();
 	}
 
 	/**
-	 * Saves the model data in a format that can be reread later.
+	 * Moves a class's block and LinkNode to where its model says, and redraws the
+	 * links attached to it.
+	 * 
+	 * @param block
+	 *            the ClassBlock to move
+	 * @param model
+	 *            the ClassModel it shows
+	 */
+	private void placeClass(ClassBlock block, ClassModel model) {
+		int x = model.getXPos();
+		int y = model.getYPos();
+		block.setLayoutX(x);
+		block.setLayoutY(y);
+		block.getNode().setX((int) (x + (block.getWidth() / 2)));
+		block.getNode().setY((int) (y + (block.getHeight() / 2)));
+		block.getNode().setBounds(x, (int) (x + block.getWidth()), y, (int) (y + block.getHeight()));
+		block.getNode().updateLink();
+	}
+
+	/**
+	 * Sets how much memory the undo history may use. Past it, the oldest steps are
+	 * written to a temporary file and read back when undo or redo reaches them.
+	 *
+	 * @param bytes
+	 *            the budget, in bytes
+	 */
+	public void setUndoMemoryBudget(long bytes) {
+		history.setBudget(bytes);
+	}
+
+	/**
+	 *
+	 * @return the most memory the undo history may use, in bytes
+	 */
+	public long getUndoMemoryBudget() {
+		return history.getBudget();
+	}
+
+	/**
+	 *
+	 * @return an estimate of the memory the undo history is using, in bytes
+	 */
+	public long getUndoMemoryUsage() {
+		return history.getMemoryUsed();
+	}
+
+	/**
+	 *
+	 * @return the size of the undo steps written to disk, in bytes
+	 */
+	public long getUndoSpilledSize() {
+		return history.getSpilledBytes();
+	}
+
+	/**
+	 * Replaces every class and link with a copy of itself, so that the view is
+	 * built again from the lists, positions and sizes included. Nothing changes,
+	 * so nothing is journaled or marked as needing to be saved.
+	 */
+	public void refresh() {
+		List<ClassModel> classCopies = new ArrayList<ClassModel>(classList.size());
+		for (ClassModel model : classList)
+			classCopies.add(model.copy());
+		List<LinkModel> linkCopies = new ArrayList<LinkModel>(linkList.size());
+		for (LinkModel model : linkList)
+			linkCopies.add(new LinkModel(model));
+
+		clearLists();
+		addEntered(classCopies, linkCopies);
+	}
+
+	/**
+	 * Takes an immutable copy of every class and link, cheap enough to do on the
+	 * FX thread. The copy can then be written on any thread. Chunks that haven't
+	 * changed since the last snapshot are shared with it.
+	 * 
+	 * @return the snapshot
+	 */
+	public ModelSnapshot snapshot() {
+		markShiftedLinks();
+		lastSnapshot = new ModelSnapshot(classList, linkList, lastSnapshot, changedClassChunks, changedLinkChunks);
+		changedClassChunks.clear();
+		changedLinkChunks.clear();
+		return lastSnapshot;
+	}
+
+	/**
+	 * Saves the model data in a format that can be reread later. Files ending in
+	 * .umlb are written in the binary format, files ending in .umlz are
+	 * compressed, and everything else is text. Once the file is written, a fresh
+	 * edit journal is started next to it. The caller waits for the whole file to
+	 * be written; see saveInBackground.
 	 * 
 	 * @param file
 	 *            The file to be written to.
@@ -1173,104 +2525,1205 @@ public class Model {
 	 *             Throws if the file can't be written to.
 	 */
 	public void save(File file) throws IOException {
-		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-
-		writer.write("CLASSLIST_START\n");
-		writer.write(classList.size() + "\n");
-		for (int i = 0; i != classList.size(); ++i) {
-			writer.write(classList.get(i).getIndex() + " ");
-			writer.write(classList.get(i).getXPos() + " ");
-			writer.write(classList.get(i).getYPos() + " ");
-			writer.write(classList.get(i).getWidth() + " ");
-			writer.write(classList.get(i).getHeight() + " \n");
-			writer.write(classList.get(i).getName() + "\n\n");
-			writer.write(classList.get(i).getAttr() + "\n\n");
-			writer.write(classList.get(i).getOper() + "\n\n");
-			writer.write(classList.get(i).getDesc() + "\n\n");
-		}
-		writer.write("CLASSLIST_END\n");
-		writer.write("LINKLIST_BEGIN\n");
-		writer.write(linkList.size() + "\n");
-		for (int i = 0; i != linkList.size(); ++i) {
-			writer.write(linkList.get(i).getIndex() + " ");
-			writer.write(linkList.get(i).getType() + " ");
-			writer.write(linkList.get(i).getSource() + " ");
-			writer.write(linkList.get(i).getDest() + " ");
-			writer.write(linkList.get(i).getSourceMin() + " ");
-			writer.write(linkList.get(i).getSourceMax() + " ");
-			writer.write(linkList.get(i).getDestMin() + " ");
-			writer.write(linkList.get(i).getDestMax() + " \n");
-			writer.write(linkList.get(i).getLabel() + "\n");
-		}
-		writer.write("LINKLIST_END\n");
-
-		writer.close();
-	}
-
-	/**
-	 * Reads in the model data and rebuilds the model.
+		// An older background save must not land on top of this one
+		finishSaves();
+		ModelSnapshot snapshot = snapshotForSave();
+		snapshot.save(file);
+		saved(file, snapshot);
+		recoveryFile(file).delete();
+
+		// Everything journaled so far is in the file now
+		closeJournal();
+		openJournal(file, false);
+		currentFile = file;
+		savedEditCount = editCount;
+	}
+
+	/**
+	 * Saves the model data like save, but only takes a snapshot on the calling
+	 * thread and writes it on a background thread, so the window doesn't freeze
+	 * while a large diagram is written. A save still writing the same file is
+	 * cancelled, since this one supersedes it.
+	 * 
+	 * The journal is detached for the length of the save: edits made meanwhile
+	 * are held in memory and go to a fresh journal if the save succeeds, or are
+	 * added to the old one if it fails.
+	 * 
+	 * @param file
+	 *            The file to be written to.
+	 * @param uiThread
+	 *            Runs the end of the save on the thread that edits the model,
+	 *            normally by way of Platform.runLater
+	 */
+	public void saveInBackground(File file, Executor uiThread) {
+		if (journal == null)
+			journal = new EditJournal(journalInterval);
+		int mark = journal.detach();
+
+		BackgroundSave save = new BackgroundSave(snapshotForSave(), file, mark, editCount, uiThread);
+		if (pendingSave != null && pendingSave.file.equals(file))
+			pendingSave.cancel(true);
+		pendingSave = save;
+		saver().execute(save);
+	}
+
+	/**
+	 * Writes a recovery copy of the model in the background if it has changed
+	 * since it was last saved, loaded or autosaved. The copy goes to the
+	 * recoveryFile next to the diagram; the diagram itself is only written by an
+	 * explicit save, which deletes the copy. Does nothing for a diagram that has
+	 * never been saved. A failure is reported by way of getProblemProp, once
+	 * until an autosave succeeds again.
+	 * 
+	 * @param uiThread
+	 *            Runs the end of the autosave on the thread that edits the model
+	 */
+	public void autosave(final Executor uiThread) {
+		if (currentFile == null || editCount == savedEditCount || editCount == autosavedEditCount)
+			return;
+		if (pendingSave != null && pendingSave.edits == editCount)
+			return;
+
+		final ModelSnapshot snapshot = snapshot();
+		snapshot.setCompressionLevel(compressionLevel);
+		final File recovery = recoveryFile(currentFile);
+		final int edits = editCount;
+		autosavedEditCount = edits;
+		saver().execute(new Runnable() {
+			@Override
+			public void run() {
+				IOException failure = null;
+				try {
+					snapshot.save(recovery);
+				} catch (IOException ex) {
+					failure = ex;
+				}
+				final IOException problem = failure;
+				uiThread.execute(new Runnable() {
+					@Override
+					public void run() {
+						autosaved(recovery, edits, problem);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Wraps up an autosave on the thread that edits the model.
+	 */
+	private void autosaved(File recovery, int edits, IOException failure) {
+		if (failure == null) {
+			autosaveFailing = false;
+			// Saved for real meanwhile, so the copy has nothing the diagram lacks
+			if (savedEditCount == edits)
+				recovery.delete();
+			return;
+		}
+		// Try again next time
+		if (autosavedEditCount == edits)
+			autosavedEditCount = savedEditCount;
+		if (!autosaveFailing)
+			reportProblem("Couldn't autosave a recovery copy to " + recovery + ": " + failure.getMessage());
+		autosaveFailing = true;
+	}
+
+	/**
+	 * Returns the file autosave writes a diagram's recovery copy to: the
+	 * diagram's name with ".recovery" before its extension, so the copy opens
+	 * in the same format.
+	 * 
+	 * @param diagram
+	 *            The diagram file
+	 * @return the recovery file next to it
+	 */
+	public static File recoveryFile(File diagram) {
+		String name = diagram.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot <= 0)
+			return new File(diagram.getPath() + RECOVERY);
+		return new File(diagram.getAbsoluteFile().getParentFile(), name.substring(0, dot) + RECOVERY + name.substring(dot));
+	}
+
+	/**
+	 * Waits for every background save to finish and wraps up the newest one
+	 * straight away, rather than when the FX thread gets to it.
+	 */
+	public void finishSaves() {
+		if (saver == null)
+			return;
+		try {
+			// The saver runs one save at a time, so this waits for all of them
+			saver.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException | ExecutionException ex) {
+			reportProblem("Couldn't wait for a save to finish: " + ex);
+		}
+		if (pendingSave != null)
+			pendingSave.finish();
+	}
+
+	/**
+	 * A snapshot being written by the saver thread.
+	 */
+	private class BackgroundSave extends FutureTask<Void> {
+		private final ModelSnapshot snapshot;
+		private final File file;
+		private final int mark;
+		private final int edits;
+		private final Executor uiThread;
+		private boolean finished = false;
+
+		BackgroundSave(final ModelSnapshot snapshotIn, final File fileIn, int markIn, int editsIn,
+				Executor uiThreadIn) {
+			super(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					snapshotIn.save(fileIn);
+					return null;
+				}
+			});
+			snapshot = snapshotIn;
+			file = fileIn;
+			mark = markIn;
+			edits = editsIn;
+			uiThread = uiThreadIn;
+		}
+
+		@Override
+		protected void done() {
+			uiThread.execute(new Runnable() {
+				@Override
+				public void run() {
+					finish();
+				}
+			});
+		}
+
+		/**
+		 * Hands the journal back once the save is over. Only the newest save does
+		 * that; an older one only reports its failure.
+		 */
+		void finish() {
+			if (finished)
+				return;
+			finished = true;
+
+			boolean newest = pendingSave == this;
+			if (newest)
+				pendingSave = null;
+			// A save cancelled by a newer one leaves the journal to that one
+			if (isCancelled())
+				return;
+
+			IOException failure = null;
+			try {
+				get();
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException)
+					failure = (IOException) ex.getCause();
+				else
+					failure = new IOException(ex.getCause());
+			} catch (InterruptedException ex) {
+				return;
+			}
+			if (failure != null)
+				reportProblem("Couldn't save " + file + ": " + failure.getMessage());
+
+			if (!newest)
+				return;
+			if (failure == null) {
+				saved(file, snapshot);
+				recoveryFile(file).delete();
+				currentFile = file;
+				savedEditCount = edits;
+			}
+
+			if (journal == null)
+				return;
+			if (failure == null) {
+				journal.attach(file, mark, false);
+			} else if (journal.getDiagram() != null) {
+				journal.attach(journal.getDiagram(), 0, true);
+			} else {
+				journal.close();
+				journal = null;
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot for saving, noting the chunks that changed since the
+	 * model last matched its chunked file. Those chunks count as unsaved until
+	 * a save succeeds.
+	 */
+	private ModelSnapshot snapshotForSave() {
+		ModelSnapshot snapshot = snapshot();
+		snapshot.setCompressionLevel(compressionLevel);
+		unsavedClassChunks.or(dirtyClassChunks);
+		unsavedLinkChunks.or(dirtyLinkChunks);
+		dirtyClassChunks.clear();
+		dirtyLinkChunks.clear();
+		if (chunkBase != null)
+			snapshot.setBase(chunkBase, chunkGeneration, (BitSet) unsavedClassChunks.clone(),
+					(BitSet) unsavedLinkChunks.clone());
+		return snapshot;
+	}
+
+	/**
+	 * Notes that the newest save succeeded, so the file now matches the model as
+	 * it was when the snapshot was taken.
+	 */
+	private void saved(File file, ModelSnapshot snapshot) {
+		unsavedClassChunks.clear();
+		unsavedLinkChunks.clear();
+		if (snapshot.getSavedGeneration() != 0) {
+			chunkBase = file;
+			chunkGeneration = snapshot.getSavedGeneration();
+		} else {
+			chunkBase = null;
+		}
+	}
+
+	private ExecutorService saver() {
+		if (saver == null) {
+			saver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Background save");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return saver;
+	}
+
+	/**
+	 * Reads in the model data and rebuilds the model. Small text files are parsed
+	 * in a single pass by a ModelReader, large ones by a ParallelModelReader. Any edits left in the file's journal by an
+	 * editor that closed without saving are replayed on top, and the journal
+	 * stays open for further edits.
 	 * 
 	 * @param file
 	 *            The file to be read from.
 	 * @throws IOException
-	 *             Throws if the file can't be read from.
+	 *             Throws if the file can't be read from, or a
+	 *             ModelFormatException giving the line and column of a malformed
+	 *             entry.
 	 */
 	public void load(File file) throws IOException {
-		this.clearRedoState();
+		cancelLoad();
+		closeJournal();
+		history.clear();
+
+		// Loaded and replayed edits are already on disk
+		++journalPaused;
+		try {
+			read(file);
+			matchFile(file);
+		} finally {
+			--journalPaused;
+		}
+
+		openJournal(file, true);
+		currentFile = file;
+		savedEditCount = editCount;
+	}
+
+	/**
+	 * Adds the contents of a file in any format to the model.
+	 */
+	private void read(File file) throws IOException {
+		if (CompressedModelFile.isCompressedFile(file))
+			loadCompressed(file);
+		else if (isBinaryFile(file))
+			loadBinary(file);
+		else
+			loadText(file);
+	}
+
+	/**
+	 * Notes that the model matches a file it was just read from, then replays
+	 * the file's journal on top. Must be called with the journal paused.
+	 */
+	private void matchFile(File file) throws IOException {
+		chunkBase = null;
+		if (isBinaryFile(file) && ChunkedModelFile.isChunked(file)) {
+			chunkBase = file;
+			chunkGeneration = ChunkedModelFile.readIndex(file).getGeneration();
+		}
+		dirtyClassChunks.clear();
+		dirtyLinkChunks.clear();
+		unsavedClassChunks.clear();
+		unsavedLinkChunks.clear();
+
+		EditJournal.replay(file, this);
+	}
+
+	/**
+	 * Starts loading a file without blocking the FX thread. The file is parsed
+	 * on a background thread into a model of its own; its classes and then its
+	 * links are then handed to this model in batches, each taking about a frame
+	 * on the FX thread, so the window keeps drawing and scrolling while the
+	 * diagram fills in. The journal is replayed once everything is in.
+	 * 
+	 * The model should be cleared first. Cancelling the load, or a failure,
+	 * clears away whatever was added.
+	 * 
+	 * @param file
+	 *            The file to be read from.
+	 * @param uiThread
+	 *            Runs the batches and the end of the load on the thread that
+	 *            edits the model
+	 * @return the load, for following its progress or cancelling it
+	 */
+	public BackgroundLoad loadInBackground(File file, Executor uiThread) {
+		cancelLoad();
+		closeJournal();
+		history.clear();
+		currentFile = null;
+
+		pendingLoad = new BackgroundLoad(file, uiThread);
+		loader().execute(pendingLoad);
+		return pendingLoad;
+	}
+
+	/**
+	 * Cancels a background load that is still running and clears away what it
+	 * had added.
+	 */
+	public void cancelLoad() {
+		if (pendingLoad == null)
+			return;
+		pendingLoad.cancel();
+		pendingLoad.finish();
+	}
+
+	/**
+	 * Tells whether a background load is still running
+	 * 
+	 * @return true until the newest background load has finished
+	 */
+	public boolean isLoading() {
+		return pendingLoad != null;
+	}
+
+	/**
+	 * A file being read by the loader thread and handed over in batches.
+	 */
+	public class BackgroundLoad implements Runnable {
+		private final File file;
+		private final Executor uiThread;
+		private volatile boolean cancelled = false;
+		private volatile Thread worker;
+		private volatile Throwable failure;
+		private List<ClassModel> loadedClasses;
+		private List<LinkModel> loadedLinks;
+		private int classesAdded = 0;
+		private int linksAdded = 0;
+		private boolean finished = false;
+		private boolean loaded = false;
+		private ReadOnlyDoubleWrapper progress = new ReadOnlyDoubleWrapper(ProgressIndicator.INDETERMINATE_PROGRESS);
+		private ReadOnlyBooleanWrapper done = new ReadOnlyBooleanWrapper(false);
+
+		BackgroundLoad(File fileIn, Executor uiThreadIn) {
+			file = fileIn;
+			uiThread = uiThreadIn;
+		}
+
+		/**
+		 * Parses the file, then feeds it to the FX thread one batch at a time,
+		 * waiting for each to be added before handing over the next.
+		 */
+		@Override
+		public void run() {
+			worker = Thread.currentThread();
+			try {
+				if (cancelled)
+					return;
+				Model scratch = new Model();
+				scratch.read(file);
+				List<ClassModel> classesIn = new ArrayList<ClassModel>(scratch.classList.size());
+				for (ClassModel loaded : scratch.classList)
+					classesIn.add(new ClassModel(loaded));
+				List<LinkModel> linksIn = new ArrayList<LinkModel>(scratch.linkList.size());
+				for (LinkModel loaded : scratch.linkList)
+					linksIn.add(new LinkModel(loaded));
+				loadedClasses = classesIn;
+				loadedLinks = linksIn;
+
+				boolean last = false;
+				while (!last && !cancelled) {
+					FutureTask<Boolean> batch = new FutureTask<Boolean>(new Callable<Boolean>() {
+						@Override
+						public Boolean call() {
+							return addBatch();
+						}
+					});
+					uiThread.execute(batch);
+					last = batch.get();
+				}
+			} catch (ExecutionException ex) {
+				failure = ex.getCause();
+			} catch (InterruptedException ex) {
+				// Only cancel interrupts the loader
+			} catch (Throwable ex) {
+				failure = ex;
+			} finally {
+				worker = null;
+				uiThread.execute(new Runnable() {
+					@Override
+					public void run() {
+						finish();
+					}
+				});
+			}
+		}
+
+		/**
+		 * Stops the load. What it had added is cleared away when it finishes.
+		 */
+		public void cancel() {
+			cancelled = true;
+			Thread thread = worker;
+			if (thread != null)
+				thread.interrupt();
+		}
+
+		/**
+		 * Tells whether the load was cancelled
+		 * 
+		 * @return true once cancel has been called
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Adds records to the model until a frame's worth of time is used up.
+		 * Classes go first, since their blocks must exist before links can attach
+		 * to them.
+		 * 
+		 * @return true once everything has been added
+		 */
+		private boolean addBatch() {
+			if (cancelled)
+				return true;
+
+			long start = System.nanoTime();
+			++journalPaused;
+			try {
+				do {
+					if (classesAdded != loadedClasses.size()) {
+						int end = Math.min(classesAdded + LOAD_BATCH, loadedClasses.size());
+						addDecoded(loadedClasses.subList(classesAdded, end), Collections.<LinkModel>emptyList());
+						classesAdded = end;
+					} else if (linksAdded != loadedLinks.size()) {
+						int end = Math.min(linksAdded + LOAD_BATCH, loadedLinks.size());
+						addDecoded(Collections.<ClassModel>emptyList(), loadedLinks.subList(linksAdded, end));
+						linksAdded = end;
+					} else {
+						return true;
+					}
+				} while (System.nanoTime() - start < FRAME_NANOS);
+			} finally {
+				--journalPaused;
+				progress.set((double) (classesAdded + linksAdded) / (loadedClasses.size() + loadedLinks.size()));
+			}
+			return classesAdded == loadedClasses.size() && linksAdded == loadedLinks.size();
+		}
+
+		/**
+		 * Replays the journal and opens it once everything is in, or clears the
+		 * model if the load was cancelled or failed. A failure is reported by way
+		 * of getProblemProp, so the user learns why the diagram is gone.
+		 */
+		void finish() {
+			if (finished)
+				return;
+			finished = true;
+			if (pendingLoad == this)
+				pendingLoad = null;
+
+			IOException problem = null;
+			if (failure instanceof IOException)
+				problem = (IOException) failure;
+			else if (failure != null)
+				problem = new IOException(failure);
+
+			++journalPaused;
+			try {
+				if (!cancelled && problem == null)
+					matchFile(file);
+			} catch (IOException ex) {
+				problem = ex;
+			} finally {
+				--journalPaused;
+			}
+
+			if (problem != null && !cancelled)
+				reportProblem("Couldn't open " + file.getName() + ": " + problem.getMessage());
+			if (cancelled || problem != null) {
+				++journalPaused;
+				try {
+					clear();
+				} finally {
+					--journalPaused;
+				}
+			} else {
+				openJournal(file, true);
+				currentFile = file;
+				savedEditCount = editCount;
+				loaded = true;
+			}
+			progress.set(1);
+			done.set(true);
+		}
+
+		/**
+		 * Returns the file being loaded
+		 * 
+		 * @return the file
+		 */
+		public File getFile() {
+			return file;
+		}
 
-		Scanner reader = new Scanner(file);
-		reader.next();
+		/**
+		 * Returns how much of the diagram has been added to the model, from 0 to 1,
+		 * or ProgressIndicator.INDETERMINATE_PROGRESS while the file is still being
+		 * parsed. Only changes on the FX thread.
+		 * 
+		 * @return the progress property
+		 */
+		public ReadOnlyDoubleProperty progressProperty() {
+			return progress.getReadOnlyProperty();
+		}
 
-		int size = Integer.parseInt(reader.next().trim());
-		for (int i = 0; i != size; ++i) {
+		/**
+		 * Becomes true on the FX thread once the load is over, whether it
+		 * succeeded, failed or was cancelled.
+		 * 
+		 * @return the done property
+		 */
+		public ReadOnlyBooleanProperty doneProperty() {
+			return done.getReadOnlyProperty();
+		}
 
-			reader.useDelimiter(" ");
+		/**
+		 * Tells whether the whole diagram made it into the model
+		 * 
+		 * @return true once a load has succeeded
+		 */
+		public boolean isLoaded() {
+			return loaded;
+		}
+	}
 
-			int[] ints = { Integer.parseInt(reader.next().trim()), Integer.parseInt(reader.next().trim()),
-					Integer.parseInt(reader.next().trim()), Integer.parseInt(reader.next().trim()),
-					Integer.parseInt(reader.next().trim()) };
-			reader.useDelimiter("\n\n");
-			String[] strings = { reader.next().trim(), reader.next(), reader.next(), reader.next() };
-			classList.add(new ClassModel(ints, strings));
-			reader.useDelimiter("\n");
-			reader.next();
+	private ExecutorService loader() {
+		if (loader == null) {
+			loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Background load");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return loader;
+	}
 
+	/**
+	 * Reads in model data saved in the text format.
+	 */
+	private void loadText(File file) throws IOException {
+		history.clear();
+
+		Charset charset = Charset.defaultCharset();
+		if (file.length() >= PARALLEL_THRESHOLD && file.length() <= Integer.MAX_VALUE
+				&& ParallelModelReader.supports(charset)) {
+			// Read whole, so every core can decode its own part of it
+			ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			try {
+				new ParallelModelReader(bytes, charset).read(this);
+				return;
+			} catch (ModelFormatException ex) {
+				// Read it again in order, for the line and column of the problem
+			}
 		}
 
-		reader.next();
-		reader.next();
+		ModelReader reader = new ModelReader(new FileReader(file));
+		try {
+			reader.read(this);
+		} finally {
+			reader.close();
+		}
+	}
 
-		// From here down will almost certainly need to be rewritten once links are
-		// implemented.
-		size = Integer.parseInt(reader.next().trim());
-		for (int i = 0; i != size; ++i) {
-			reader.useDelimiter(" ");
-			int[] ints = { Integer.parseInt(reader.next().trim()), Integer.parseInt(reader.next().trim()),
-					Integer.parseInt(reader.next().trim()), Integer.parseInt(reader.next().trim()),
-					Integer.parseInt(reader.next().trim()), Integer.parseInt(reader.next().trim()),
-					Integer.parseInt(reader.next().trim()), Integer.parseInt(reader.next().trim()) };
-			reader.useDelimiter("\n");
-			reader.next();
-			String label = reader.next().trim();
+	/**
+	 * Saves the model data in the compact binary format, whatever the file is
+	 * named. Like save, a failed save never leaves a half written diagram behind.
+	 * 
+	 * @param file
+	 *            The file to be written to.
+	 * @throws IOException
+	 *             Throws if the file can't be written to.
+	 */
+	public void saveBinary(File file) throws IOException {
+		snapshot().save(file, true);
+	}
+
+	/**
+	 * Reads in model data saved in the binary format and rebuilds the model.
+	 * Chunked files are read into memory whole, and older sequential files are
+	 * streamed.
+	 * 
+	 * @param file
+	 *            The file to be read from.
+	 * @throws IOException
+	 *             Throws if the file can't be read from or isn't a binary diagram.
+	 */
+	public void loadBinary(File file) throws IOException {
+		history.clear();
+		++undoPaused;
+		try {
+			if (ChunkedModelFile.isChunked(file)) {
+				ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+				ChunkedModelFile.readIndex(bytes).read(bytes, this);
+				return;
+			}
+
+			BinaryModelReader reader = new BinaryModelReader(new FileInputStream(file));
+			try {
+				reader.read(this);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			--undoPaused;
+		}
+	}
 
-			linkList.add(new LinkModel(ints, label));
+	/**
+	 * Reads in model data saved in a compressed container, decompressing it as it
+	 * is parsed.
+	 * 
+	 * @param file
+	 *            The file to be read from.
+	 * @throws IOException
+	 *             Throws if the file can't be read from or isn't a compressed
+	 *             diagram.
+	 */
+	public void loadCompressed(File file) throws IOException {
+		history.clear();
+		++undoPaused;
+		try {
+			CompressedModelFile.read(file, this);
+		} finally {
+			--undoPaused;
 		}
+	}
 
-		reader.close();
+	/**
+	 * Sets how hard diagrams saved as .umlz files are compressed, trading save
+	 * speed against file size.
+	 * 
+	 * @param level
+	 *            Deflater.NO_COMPRESSION (0) to Deflater.BEST_COMPRESSION (9), or
+	 *            Deflater.DEFAULT_COMPRESSION
+	 */
+	public void setCompressionLevel(int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION
+				&& (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+			throw new IllegalArgumentException("compression level " + level);
+		compressionLevel = level;
+	}
+
+	/**
+	 * Returns the compression level used for .umlz files
+	 * 
+	 * @return the Deflater compression level
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets how often journaled edits are written and synced to disk. Takes effect
+	 * the next time a diagram is saved or loaded.
+	 * 
+	 * @param millis
+	 *            The sync interval in milliseconds, or 0 to sync every edit
+	 */
+	public void setJournalInterval(long millis) {
+		journalInterval = millis;
+	}
+
+	/**
+	 * Waits for any background save, then syncs and closes the edit journal, if
+	 * one is open. Edits made after this are not journaled until the next save or
+	 * load.
+	 */
+	public void closeJournal() {
+		finishSaves();
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * Starts journaling edits to a diagram. A journal that can't be opened only
+	 * costs crash recovery, so the failure is reported rather than thrown.
+	 */
+	private void openJournal(File file, boolean append) {
+		try {
+			journal = new EditJournal(file, append, journalInterval);
+		} catch (IOException ex) {
+			reportProblem("Couldn't open the journal of " + file.getName() + " (" + ex.getMessage()
+					+ "). Edits won't be journaled, so a crash before the next save loses them.");
+		}
+	}
+
+	/**
+	 * Drops a class's cached record and marks its chunk as needing to be saved.
+	 */
+	private void classChanged(ClassModel model) {
+		model.record = null;
+		// A class out of the model has no chunk; one in it knows its index
+		if (model.id < 0 || classesById[model.id] != model)
+			return;
+		int chunk = model.getIndex() / ChunkedModelFile.CHUNK_SIZE;
+		dirtyClassChunks.set(chunk);
+		changedClassChunks.set(chunk);
+	}
+
+	/**
+	 * Drops a link's cached record and marks its chunk as needing to be saved.
+	 */
+	private void linkChanged(LinkModel model) {
+		model.record = null;
+		if (model.id < 0 || linksById[model.id] != model)
+			return;
+		int chunk = model.getIndex() / ChunkedModelFile.CHUNK_SIZE;
+		dirtyLinkChunks.set(chunk);
+		changedLinkChunks.set(chunk);
+	}
+
+	/**
+	 * Marks every chunk from the one holding position i on, after classes were
+	 * added or removed there.
+	 */
+	private void classesShifted(int i) {
+		dirtyClassChunks.set(i / ChunkedModelFile.CHUNK_SIZE, ChunkedModelFile.chunkCount(classList.size()) + 1);
+		changedClassChunks.set(i / ChunkedModelFile.CHUNK_SIZE, ChunkedModelFile.chunkCount(classList.size()) + 1);
+	}
+
+	/**
+	 * Marks every chunk from the one holding position i on, after links were
+	 * added or removed there.
+	 */
+	private void linksShifted(int i) {
+		dirtyLinkChunks.set(i / ChunkedModelFile.CHUNK_SIZE, ChunkedModelFile.chunkCount(linkList.size()) + 1);
+		changedLinkChunks.set(i / ChunkedModelFile.CHUNK_SIZE, ChunkedModelFile.chunkCount(linkList.size()) + 1);
+	}
+
+	/**
+	 * Notes that the classes from position i on have moved, after classes were
+	 * added or removed before them. The chunks of their links are marked by the
+	 * next snapshot, in markShiftedLinks.
+	 */
+	private void linkEndsShifted(int i) {
+		shiftedClasses = Math.min(shiftedClasses, i);
+	}
+
+	/**
+	 * Marks the chunks holding links to the classes that have moved since the
+	 * last snapshot. The incidence index finds those links without looking at
+	 * the rest.
+	 */
+	private void markShiftedLinks() {
+		for (int j = shiftedClasses; j < classList.size(); ++j) {
+			int id = classList.get(j).id;
+			linkRowChanged(outLinks[id], outDegree[id]);
+			linkRowChanged(inLinks[id], inDegree[id]);
+		}
+		shiftedClasses = Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Marks the chunks holding the links in one row of the incidence index.
+	 */
+	private void linkRowChanged(int[] row, int used) {
+		for (int n = 0; n != used; ++n) {
+			int chunk = linksById[row[n]].getIndex() / ChunkedModelFile.CHUNK_SIZE;
+			dirtyLinkChunks.set(chunk);
+			changedLinkChunks.set(chunk);
+		}
+	}
+
+	/**
+	 * Gives a class about to be placed at position i a new ID, and marks the
+	 * indices from i on as needing to be renumbered.
+	 */
+	private void enterClass(ClassModel model, int i) {
+		if (nextClassId == classesById.length) {
+			classesById = Arrays.copyOf(classesById, nextClassId * 2);
+			outLinks = Arrays.copyOf(outLinks, nextClassId * 2);
+			inLinks = Arrays.copyOf(inLinks, nextClassId * 2);
+			outDegree = Arrays.copyOf(outDegree, nextClassId * 2);
+			inDegree = Arrays.copyOf(inDegree, nextClassId * 2);
+		}
+		model.id = nextClassId++;
+		classesById[model.id] = model;
+		model.intData[0] = i;
+		if (i < classIndexed)
+			classIndexed = i;
+
+		if (slotCount == slotOwners.length) {
+			slotOwners = Arrays.copyOf(slotOwners, slotCount * 2);
+			for (int field = 1; field != 5; ++field)
+				columns[field] = Arrays.copyOf(columns[field], slotCount * 2);
+		}
+		for (int field = 1; field != 5; ++field)
+			columns[field][slotCount] = model.intData[field];
+		model.slot = slotCount;
+		slotOwners[slotCount++] = model;
+
+		if (textIndex != null)
+			indexText(model);
+	}
+
+	/**
+	 * Moves a class's geometry out of the columns and back into the class, and
+	 * gives its slot to the class in the last one.
+	 */
+	private void freeSlot(ClassModel model) {
+		int slot = model.slot;
+		int last = --slotCount;
+		for (int field = 1; field != 5; ++field) {
+			model.intData[field] = columns[field][slot];
+			columns[field][slot] = columns[field][last];
+		}
+		slotOwners[slot] = slotOwners[last];
+		slotOwners[slot].slot = slot;
+		slotOwners[last] = null;
+		model.slot = -1;
+	}
+
+	/**
+	 * Drops the ID of a class about to be removed from position i. The class
+	 * keeps i as its index, for whoever is told of the removal.
+	 */
+	private void leaveClass(ClassModel model, int i) {
+		if (textIndex != null)
+			textIndex.remove(model.id);
+		classesById[model.id] = null;
+		outLinks[model.id] = null;
+		inLinks[model.id] = null;
+		outDegree[model.id] = 0;
+		inDegree[model.id] = 0;
+		freeSlot(model);
+		model.intData[0] = i;
+		if (i < classIndexed)
+			classIndexed = i;
+	}
+
+	/**
+	 * Drops the ID of every class, before the list is cleared.
+	 */
+	private void leaveClasses() {
+		for (ClassModel model : classList) {
+			classesById[model.id] = null;
+			outLinks[model.id] = null;
+			inLinks[model.id] = null;
+			outDegree[model.id] = 0;
+			inDegree[model.id] = 0;
+			for (int field = 1; field != 5; ++field)
+				model.intData[field] = columns[field][model.slot];
+			model.slot = -1;
+		}
+		Arrays.fill(slotOwners, 0, slotCount, null);
+		slotCount = 0;
+		classIndexed = 0;
+		// Built again by the next search, not as the classes that follow arrive
+		textIndex = null;
+	}
+
+	/**
+	 * Gives a link about to be placed at position i a new ID, turns its source
+	 * and destination from positions into class IDs, and adds it to the
+	 * incidence index. A link whose ends aren't classes yet keeps them as
+	 * positions.
+	 */
+	private void enterLink(LinkModel model, int i) {
+		if (nextLinkId == linksById.length)
+			linksById = Arrays.copyOf(linksById, nextLinkId * 2);
+		model.id = nextLinkId++;
+		linksById[model.id] = model;
+		model.index = i;
+		if (i < linkIndexed)
+			linkIndexed = i;
+
+		int source = model.src;
+		int dest = model.dest;
+		if (!model.resolved && source >= 0 && source < classList.size() && dest >= 0 && dest < classList.size()) {
+			model.src = classList.get(source).id;
+			model.dest = classList.get(dest).id;
+			model.resolved = true;
+		}
+		attach(model);
+	}
+
+	/**
+	 * Drops the ID of a link about to be removed from position i, takes it out of
+	 * the incidence index, and releases any properties given out for it.
+	 */
+	private void leaveLink(LinkModel model, int i) {
+		detach(model);
+		linksById[model.id] = null;
+		if (!editedLinks.isEmpty())
+			releaseProperties(model);
+		model.index = i;
+		if (i < linkIndexed)
+			linkIndexed = i;
+	}
+
+	/**
+	 * Drops the ID of every link, before the list is cleared, and releases the
+	 * properties given out for links.
+	 */
+	private void leaveLinks() {
+		for (LinkModel model : linkList) {
+			detach(model);
+			linksById[model.id] = null;
+		}
+		for (LinkProperties properties : editedLinks.values())
+			removeLinkListener(properties);
+		editedLinks.clear();
+		linkIndexed = 0;
+	}
+
+	/**
+	 * Adds models that haven't been in the lists at the end of them, without
+	 * journaling or recording them for undo.
+	 */
+	private void addEntered(List<ClassModel> newClasses, List<LinkModel> newLinks) {
+		int firstClass = classList.size();
+		for (int i = 0; i != newClasses.size(); ++i)
+			enterClass(newClasses.get(i), firstClass + i);
+		classList.addAll(newClasses);
+		int firstLink = linkList.size();
+		for (int i = 0; i != newLinks.size(); ++i)
+			enterLink(newLinks.get(i), firstLink + i);
+		linkList.addAll(newLinks);
+	}
+
+	/**
+	 * Adds a link to the incidence index, under its source and destination.
+	 */
+	private void attach(LinkModel link) {
+		if (!link.resolved)
+			return;
+		int source = link.src;
+		int dest = link.dest;
+		if (classesById[source] != null) {
+			outLinks[source] = addLinkId(outLinks[source], outDegree[source], link.id);
+			++outDegree[source];
+		}
+		if (classesById[dest] != null) {
+			inLinks[dest] = addLinkId(inLinks[dest], inDegree[dest], link.id);
+			++inDegree[dest];
+		}
+	}
+
+	private static int[] addLinkId(int[] row, int used, int id) {
+		if (row == null)
+			row = new int[2];
+		else if (used == row.length)
+			row = Arrays.copyOf(row, used * 2);
+		row[used] = id;
+		return row;
+	}
+
+	/**
+	 * Takes a link out of the incidence index.
+	 */
+	private void detach(LinkModel link) {
+		if (!link.resolved)
+			return;
+		int source = link.src;
+		int dest = link.dest;
+		if (removeLinkId(outLinks[source], outDegree[source], link.id))
+			--outDegree[source];
+		if (removeLinkId(inLinks[dest], inDegree[dest], link.id))
+			--inDegree[dest];
+	}
+
+	/**
+	 * Removes an ID from the used part of a row by moving the last one into its
+	 * place.
+	 */
+	private static boolean removeLinkId(int[] row, int used, int id) {
+		if (row == null)
+			return false;
+		for (int n = used - 1; n != -1; --n) {
+			if (row[n] == id) {
+				row[n] = row[used - 1];
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the indices of the links leaving or entering a class, sorted and
+	 * each once.
+	 */
+	private int[] attachedLinks(int id) {
+		int[] indices = new int[outDegree[id] + inDegree[id]];
+		int count = 0;
+		for (int n = 0; n != outDegree[id]; ++n)
+			indices[count++] = linksById[outLinks[id][n]].getIndex();
+		for (int n = 0; n != inDegree[id]; ++n) {
+			LinkModel link = linksById[inLinks[id][n]];
+			// Links to itself were counted leaving
+			if (link.src != id)
+				indices[count++] = link.getIndex();
+		}
+		indices = Arrays.copyOf(indices, count);
+		Arrays.sort(indices);
+		return indices;
+	}
+
+	/**
+	 * Returns the indices of the links in one row of the incidence index, in no
+	 * particular order.
+	 */
+	private int[] linkIndices(int[] row, int used) {
+		int[] indices = new int[used];
+		for (int n = 0; n != used; ++n)
+			indices[n] = linksById[row[n]].getIndex();
+		return indices;
+	}
+
+	/**
+	 * Returns the indices of the classes at the other end of one row of the
+	 * incidence index, each once.
+	 */
+	private int[] otherEnds(int[] row, int used, boolean sources) {
+		int[] ends = new int[used];
+		for (int n = 0; n != used; ++n) {
+			LinkModel link = linksById[row[n]];
+			ends[n] = sources ? link.getSource() : link.getDest();
+		}
+		Arrays.sort(ends);
+		int count = 0;
+		for (int n = 0; n != used; ++n) {
+			if (count == 0 || ends[n] != ends[count - 1])
+				ends[count++] = ends[n];
+		}
+		return Arrays.copyOf(ends, count);
+	}
+
+	/**
+	 * Returns the index of the class with an ID
+	 * 
+	 * @return the index, or -1 if no class in the model has the ID
+	 */
+	private int classIndex(int id) {
+		ClassModel model = getClassById(id);
+		return model == null ? -1 : model.getIndex();
+	}
+
+	/**
+	 * Brings the index of every class from classIndexed on up to date.
+	 */
+	private void renumberClasses() {
+		for (int c = classIndexed; c < classList.size(); ++c)
+			classList.get(c).intData[0] = c;
+		classIndexed = classList.size();
+	}
+
+	/**
+	 * Brings the index of every link from linkIndexed on up to date.
+	 */
+	private void renumberLinks() {
+		for (int l = linkIndexed; l < linkList.size(); ++l)
+			linkList.get(l).index = l;
+		linkIndexed = linkList.size();
+	}
+
+	/**
+	 * Counts an edit for autosave and tells whether it should be written to the
+	 * journal. Edits made while the journal is paused are already on disk, so
+	 * they count for neither.
+	 */
+	private boolean recordEdit() {
+		if (journalPaused != 0)
+			return false;
+		++editCount;
+		return journal != null;
+	}
+
+	/**
+	 * Tells whether an edit should be recorded for undo. Edits made while the
+	 * journal is paused come from a file or are re-derived from another edit, and
+	 * the ones undo and redo make are already in the history.
+	 */
+	private boolean recordUndo() {
+		return journalPaused == 0 && undoPaused == 0;
+	}
+
+	/**
+	 * Tells whether a file should be read and written in the binary format.
+	 * 
+	 * @param file
+	 *            The file to check
+	 * @return true if the file name ends in .umlb
+	 */
+	public static boolean isBinaryFile(File file) {
+		return file.getName().toLowerCase().endsWith(BINARY_EXTENSION);
 	}
 
 	/**
 	 * Clears the model of all data.
 	 */
 	public void clear() {
-		clearing = true;
+		if (recordEdit())
+			journal.clear();
+		if (recordUndo() && !(classList.isEmpty() && linkList.isEmpty()))
+			history.recordClear(snapshot());
+
+		clearLists();
+		classesShifted(0);
+		linksShifted(0);
+	}
+
+	/**
+	 * Empties the lists of models and views, leaving the chunks alone.
+	 */
+	private void clearLists() {
+		// In a transaction the listeners hear of the removals later, and take the
+		// views away one by one themselves
+		boolean views = transactionDepth == 0;
+		clearing = views;
+		leaveLinks();
+		leaveClasses();
 		classList.clear();
-		classes.clear();
 		linkList.clear();
-		for (Link linky : links)
-			linky.warnLinkNodes();
+		if (views) {
+			classes.clear();
+			for (Link linky : links)
+				linky.warnLinkNodes();
 
-		links.clear();
+			links.clear();
+		}
 		
 		clearing = false;
 	}
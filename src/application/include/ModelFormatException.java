@@ -0,0 +1,60 @@
+package application.include;
+
+import java.io.IOException;
+
+public class ModelFormatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private int line;
+	private int column;
+
+	/**
+	 * Constructs an instance of ModelFormatException
+	 *
+	 * @constructor
+	 * @param message
+	 *            what was wrong with the input
+	 * @param line
+	 *            the line (starting at 1) the problem was found on
+	 * @param column
+	 *            the column (starting at 1) the problem was found on
+	 */
+	public ModelFormatException(String message, int line, int column) {
+		super("line " + line + ", column " + column + ": " + message);
+		this.line = line;
+		this.column = column;
+	}
+
+	/**
+	 * Constructs an instance of ModelFormatException for binary input, which has
+	 * no lines. getLine and getColumn return 0.
+	 *
+	 * @constructor
+	 * @param message
+	 *            what was wrong with the input
+	 * @param offset
+	 *            the byte offset the problem was found at
+	 */
+	public ModelFormatException(String message, long offset) {
+		super("byte " + offset + ": " + message);
+	}
+
+	/**
+	 * Returns the line the problem was found on
+	 *
+	 * @return the line the problem was found on
+	 */
+	public int getLine() {
+		return line;
+	}
+
+	/**
+	 * Returns the column the problem was found on
+	 *
+	 * @return the column the problem was found on
+	 */
+	public int getColumn() {
+		return column;
+	}
+}
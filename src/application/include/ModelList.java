@@ -0,0 +1,270 @@
+package application.include;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.collections.ObservableListBase;
+import javafx.util.Callback;
+
+/**
+ * The observable list behind the model's classes and links. Like a list made
+ * by FXCollections with an extractor, it reports a change to any property the
+ * extractor names as an update of the element. It can also hold its changes
+ * back: from holdChanges to the matching releaseChanges nothing is sent, and
+ * the release sends one change taking the list from how it was to how it is.
+ *
+ * Elements find their own position, so an update costs nothing like the
+ * search through the list the FXCollections list makes for each one. They are
+ * only ever added and removed, never moved, and are never in the list twice.
+ */
+abstract class ModelList<E> extends ObservableListBase<E> {
+
+	private final ArrayList<E> elements = new ArrayList<E>();
+	private final Callback<E, Observable[]> extractor;
+	private final IdentityHashMap<E, InvalidationListener> observers = new IdentityHashMap<E, InvalidationListener>();
+
+	// While held, the list as it was and the elements updated since
+	private int holds = 0;
+	private List<E> before;
+	private Set<E> updated;
+
+	/**
+	 * Constructs a ModelList instance
+	 *
+	 * @constructor
+	 * @param extractor
+	 *            gives the properties of an element whose changes are updates
+	 */
+	ModelList(Callback<E, Observable[]> extractor) {
+		this.extractor = extractor;
+	}
+
+	/**
+	 * Returns the position of an element in the list
+	 *
+	 * @param element
+	 *            an element that is in the list
+	 * @return its position
+	 */
+	abstract int positionOf(E element);
+
+	/**
+	 * Starts holding changes back. Holds nest.
+	 */
+	void holdChanges() {
+		if (holds++ != 0)
+			return;
+		before = new ArrayList<E>(elements);
+		updated = Collections.newSetFromMap(new IdentityHashMap<E, Boolean>());
+	}
+
+	/**
+	 * Ends a hold. Once the last one ends, sends what changed since the first
+	 * as one change: the elements removed and added, found by walking the list
+	 * as it was and as it is side by side, and the updates to those in both.
+	 */
+	void releaseChanges() {
+		if (holds == 0 || --holds != 0)
+			return;
+		Set<E> was = Collections.newSetFromMap(new IdentityHashMap<E, Boolean>(before.size()));
+		was.addAll(before);
+		Set<E> is = Collections.newSetFromMap(new IdentityHashMap<E, Boolean>(elements.size()));
+		is.addAll(elements);
+
+		beginChange();
+		int i = 0;
+		int j = 0;
+		while (i != before.size() || j != elements.size()) {
+			if (i != before.size() && !is.contains(before.get(i))) {
+				nextRemove(j, before.get(i++));
+			} else if (j != elements.size() && !was.contains(elements.get(j))) {
+				nextAdd(j, j + 1);
+				++j;
+			} else {
+				++i;
+				++j;
+			}
+		}
+		for (E element : updated) {
+			if (was.contains(element) && is.contains(element))
+				nextUpdate(positionOf(element));
+		}
+		before = null;
+		updated = null;
+		endChange();
+	}
+
+	/**
+	 * Reports an update of an element, for changes the extractor can't see
+	 *
+	 * @param element
+	 *            an element that is in the list
+	 */
+	void elementUpdated(E element) {
+		if (holds != 0) {
+			updated.add(element);
+			return;
+		}
+		beginChange();
+		nextUpdate(positionOf(element));
+		endChange();
+	}
+
+	@Override
+	public E get(int index) {
+		return elements.get(index);
+	}
+
+	@Override
+	public int size() {
+		return elements.size();
+	}
+
+	@Override
+	public void add(int index, E element) {
+		elements.add(index, element);
+		++modCount;
+		observe(element);
+		if (holds == 0) {
+			beginChange();
+			nextAdd(index, index + 1);
+			endChange();
+		}
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends E> added) {
+		return addAll(elements.size(), added);
+	}
+
+	@Override
+	public boolean addAll(int index, Collection<? extends E> added) {
+		if (added.isEmpty())
+			return false;
+		elements.addAll(index, added);
+		++modCount;
+		for (E element : added)
+			observe(element);
+		if (holds == 0) {
+			beginChange();
+			nextAdd(index, index + added.size());
+			endChange();
+		}
+		return true;
+	}
+
+	@Override
+	public E set(int index, E element) {
+		E old = elements.set(index, element);
+		unobserve(old);
+		observe(element);
+		if (holds == 0) {
+			beginChange();
+			nextSet(index, old);
+			endChange();
+		}
+		return old;
+	}
+
+	@Override
+	public E remove(int index) {
+		E old = elements.remove(index);
+		++modCount;
+		unobserve(old);
+		if (holds == 0) {
+			beginChange();
+			nextRemove(index, old);
+			endChange();
+		}
+		return old;
+	}
+
+	/**
+	 * Removes every element as one change, without shifting the rest of the list
+	 * down for each one.
+	 */
+	@Override
+	public void clear() {
+		if (elements.isEmpty())
+			return;
+		List<E> removed = new ArrayList<E>(elements);
+		for (E element : removed)
+			unobserve(element);
+		elements.clear();
+		++modCount;
+		if (holds == 0) {
+			beginChange();
+			nextRemove(0, removed);
+			endChange();
+		}
+	}
+
+	/**
+	 * Removes the elements at the positions set, closing the gaps in one pass,
+	 * as one change with a removal for each run of positions.
+	 *
+	 * @param positions
+	 *            the positions to remove, all below size()
+	 */
+	void removePositions(BitSet positions) {
+		int first = positions.nextSetBit(0);
+		if (first < 0)
+			return;
+		List<E> removed = new ArrayList<E>(positions.cardinality());
+		int kept = first;
+		for (int i = first; i != elements.size(); ++i) {
+			E element = elements.get(i);
+			if (positions.get(i)) {
+				removed.add(element);
+				unobserve(element);
+			} else {
+				elements.set(kept++, element);
+			}
+		}
+		elements.subList(kept, elements.size()).clear();
+		++modCount;
+		if (holds == 0) {
+			beginChange();
+			// Each run is reported where it is once the runs before it are gone
+			int gone = 0;
+			int start = first;
+			while (start >= 0) {
+				int end = positions.nextClearBit(start);
+				nextRemove(start - gone, removed.subList(gone, gone + end - start));
+				gone += end - start;
+				start = positions.nextSetBit(end);
+			}
+			endChange();
+		}
+	}
+
+	private void observe(final E element) {
+		Observable[] observables = extractor.call(element);
+		if (observables.length == 0)
+			return;
+		InvalidationListener listener = new InvalidationListener() {
+			@Override
+			public void invalidated(Observable observable) {
+				elementUpdated(element);
+			}
+		};
+		for (Observable observable : observables)
+			observable.addListener(listener);
+		observers.put(element, listener);
+	}
+
+	private void unobserve(E element) {
+		InvalidationListener listener = observers.remove(element);
+		if (listener == null)
+			return;
+		for (Observable observable : extractor.call(element))
+			observable.removeListener(listener);
+	}
+}
@@ -0,0 +1,385 @@
+package application.include;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+import application.include.Model.ClassModel;
+import application.include.Model.LinkModel;
+
+public class ModelReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/*
+	 * Input is pulled one buffer at a time either from a Reader or by decoding a
+	 * ByteBuffer, so the whole document is never held as characters at once. Only
+	 * one of reader/bytes is ever set.
+	 */
+	private Reader reader;
+	private ByteBuffer bytes;
+	private CharsetDecoder decoder;
+	private char[] buffer = new char[BUFFER_SIZE];
+	private CharBuffer chars = CharBuffer.wrap(buffer);
+	private int pos = 0;
+	private int limit = 0;
+	private boolean flushed = false;
+
+	// Position of the next unread character, reported with format errors
+	private int line = 1;
+	private int column = 1;
+
+	// Reused between fields so only the final String is allocated
+	private StringBuilder field = new StringBuilder();
+
+	/**
+	 * Constructs a ModelReader that pulls characters from a Reader. The Reader
+	 * does not need to be buffered.
+	 *
+	 * @constructor
+	 * @param in
+	 *            the Reader to parse
+	 */
+	public ModelReader(Reader in) {
+		reader = in;
+	}
+
+	/**
+	 * Constructs a ModelReader that decodes the remaining bytes of a ByteBuffer.
+	 *
+	 * @constructor
+	 * @param in
+	 *            the bytes to parse
+	 * @param charset
+	 *            the charset the bytes were written with
+	 */
+	public ModelReader(ByteBuffer in, Charset charset) {
+		bytes = in;
+		decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Reads a whole document and adds every class and link to the model, in file
+	 * order, as one change to each of its lists.
+	 *
+	 * @param model
+	 *            The Model to add the classes and links to
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public void read(Model model) throws IOException {
+		int size = readClassCount();
+		List<ClassModel> classes = new ArrayList<ClassModel>(Math.min(size, 1 << 16));
+		for (int i = 0; i != size; ++i) {
+			int[] ints = new int[5];
+			String[] strings = new String[4];
+			readClass(ints, strings);
+			classes.add(model.new ClassModel(ints, strings));
+		}
+
+		size = readLinkCount();
+		List<LinkModel> links = new ArrayList<LinkModel>(Math.min(size, 1 << 16));
+		for (int i = 0; i != size; ++i) {
+			int[] ints = new int[8];
+			String label = readLink(ints);
+			links.add(model.new LinkModel(ints, label));
+		}
+
+		model.addClassModels(classes);
+		model.addLinkModels(links);
+
+		readEnd();
+	}
+
+	/**
+	 * Reads the start of the class list.
+	 *
+	 * @return the number of class records that follow
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public int readClassCount() throws IOException {
+		readKeyword("CLASSLIST_START");
+		return readCount();
+	}
+
+	/**
+	 * Reads one class record.
+	 *
+	 * @param ints
+	 *            filled with [index] [x] [y] [width] [height]
+	 * @param strings
+	 *            filled with [name] [attributes] [operations] [description]
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public void readClass(int[] ints, String[] strings) throws IOException {
+		for (int i = 0; i != 5; ++i)
+			ints[i] = readInt();
+		endLine();
+
+		strings[0] = readField().trim();
+		strings[1] = readField();
+		strings[2] = readField();
+		strings[3] = readField();
+	}
+
+	/**
+	 * Reads the end of the class list and the start of the link list.
+	 *
+	 * @return the number of link records that follow
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public int readLinkCount() throws IOException {
+		readKeyword("CLASSLIST_END");
+		readKeyword("LINKLIST_BEGIN");
+		return readCount();
+	}
+
+	/**
+	 * Reads one link record.
+	 *
+	 * @param ints
+	 *            filled with [index] [type] [source] [dest] [source min] [source
+	 *            max] [dest min] [dest max]
+	 * @return the link's label
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public String readLink(int[] ints) throws IOException {
+		for (int i = 0; i != 8; ++i)
+			ints[i] = readInt();
+		endLine();
+
+		return readLine().trim();
+	}
+
+	/**
+	 * Reads the end of the link list. Anything after it is left unread.
+	 *
+	 * @throws IOException
+	 *             Throws if the input can't be read or is not a valid diagram
+	 */
+	public void readEnd() throws IOException {
+		readKeyword("LINKLIST_END");
+	}
+
+	/**
+	 * Returns the line of the next unread character
+	 *
+	 * @return the current line, starting at 1
+	 */
+	public int getLine() {
+		return line;
+	}
+
+	/**
+	 * Returns the column of the next unread character
+	 *
+	 * @return the current column, starting at 1
+	 */
+	public int getColumn() {
+		return column;
+	}
+
+	/**
+	 * Closes the underlying Reader, if there is one.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (reader != null)
+			reader.close();
+	}
+
+	/*****************************
+	 * TOKENS
+	 ****************************/
+
+	/**
+	 * Reads a non-negative record count on a line of its own.
+	 */
+	private int readCount() throws IOException {
+		int count = readInt();
+		if (count < 0)
+			throw error("record count can't be negative");
+		endLine();
+		return count;
+	}
+
+	/**
+	 * Reads an int straight from the buffer without building a token String.
+	 */
+	private int readInt() throws IOException {
+		skipWhitespace();
+
+		boolean negative = false;
+		int c = peek();
+		if (c == '-') {
+			negative = true;
+			next();
+			c = peek();
+		}
+		if (c < '0' || c > '9')
+			throw error(c == -1 ? "unexpected end of file, expected a number" : "expected a number");
+
+		long value = 0;
+		while (c >= '0' && c <= '9') {
+			value = value * 10 + (c - '0');
+			if (value > (long) Integer.MAX_VALUE + 1)
+				throw error("number is too large");
+			next();
+			c = peek();
+		}
+
+		if (negative)
+			value = -value;
+		if (value > Integer.MAX_VALUE)
+			throw error("number is too large");
+		return (int) value;
+	}
+
+	/**
+	 * Skips the trailing spaces after a row of numbers and the newline that ends
+	 * it.
+	 */
+	private void endLine() throws IOException {
+		int c = peek();
+		while (c == ' ' || c == '\t' || c == '\r') {
+			next();
+			c = peek();
+		}
+		if (c != '\n')
+			throw error(c == -1 ? "unexpected end of file" : "unexpected text at end of line");
+		next();
+	}
+
+	/**
+	 * Matches a section keyword, skipping any whitespace before it.
+	 */
+	private void readKeyword(String keyword) throws IOException {
+		skipWhitespace();
+		int startLine = line;
+		int startColumn = column;
+
+		for (int i = 0; i != keyword.length(); ++i) {
+			if (peek() != keyword.charAt(i))
+				throw new ModelFormatException("expected " + keyword, startLine, startColumn);
+			next();
+		}
+
+		int c = peek();
+		if (c != -1 && !Character.isWhitespace(c))
+			throw new ModelFormatException("expected " + keyword, startLine, startColumn);
+	}
+
+	/**
+	 * Reads a class field, which runs up to the next blank line.
+	 */
+	private String readField() throws IOException {
+		field.setLength(0);
+		for (;;) {
+			int c = next();
+			if (c == -1)
+				throw error("unexpected end of file inside a class record");
+			if (c == '\n' && peek() == '\n') {
+				next();
+				break;
+			}
+			field.append((char) c);
+		}
+		return field.toString();
+	}
+
+	/**
+	 * Reads the rest of the current line.
+	 */
+	private String readLine() throws IOException {
+		field.setLength(0);
+		int c = next();
+		while (c != '\n' && c != -1) {
+			field.append((char) c);
+			c = next();
+		}
+		return field.toString();
+	}
+
+	private void skipWhitespace() throws IOException {
+		int c = peek();
+		while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+			next();
+			c = peek();
+		}
+	}
+
+	/*****************************
+	 * BUFFER
+	 ****************************/
+
+	private int peek() throws IOException {
+		if (pos == limit && !fill())
+			return -1;
+		return buffer[pos];
+	}
+
+	private int next() throws IOException {
+		if (pos == limit && !fill())
+			return -1;
+		char c = buffer[pos++];
+		if (c == '\n') {
+			++line;
+			column = 1;
+		} else {
+			++column;
+		}
+		return c;
+	}
+
+	/**
+	 * Refills the character buffer.
+	 *
+	 * @return false once the input is exhausted
+	 */
+	private boolean fill() throws IOException {
+		pos = 0;
+		limit = 0;
+
+		if (reader != null) {
+			int read = reader.read(buffer, 0, buffer.length);
+			while (read == 0)
+				read = reader.read(buffer, 0, buffer.length);
+			if (read > 0)
+				limit = read;
+			return limit > 0;
+		}
+
+		while (limit == 0 && !flushed) {
+			chars.clear();
+			CoderResult result = decoder.decode(bytes, chars, true);
+			if (result.isError())
+				result.throwException();
+			if (!bytes.hasRemaining() && result.isUnderflow()) {
+				decoder.flush(chars);
+				flushed = true;
+			}
+			limit = chars.position();
+		}
+		return limit > 0;
+	}
+
+	/**
+	 * Builds an exception pointing at the next unread character.
+	 */
+	private ModelFormatException error(String message) {
+		return new ModelFormatException(message, line, column);
+	}
+}
@@ -0,0 +1,476 @@
+package application.include;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import application.include.Model.ClassModel;
+import application.include.Model.LinkModel;
+
+/**
+ * An immutable copy of every class and link in a Model at one moment. Each
+ * model keeps its record until it changes, so taking a snapshot only copies
+ * references to the records of unchanged ones and is cheap enough to do on the
+ * FX thread; the slow part, writing it to disk, can then run on any thread
+ * while the user keeps editing.
+ *
+ * Records are held in arrays of ChunkedModelFile.CHUNK_SIZE, which are never
+ * modified once built. A snapshot shares every chunk that hasn't changed with
+ * the one taken before it, so keeping many snapshots of a large diagram costs
+ * little more than the chunks edited in between.
+ */
+public class ModelSnapshot {
+
+	// How many records are written between checks for cancellation
+	private static final int CANCEL_CHECK = 1024;
+
+	private final ClassRecord[][] classChunks;
+	private final LinkRecord[][] linkChunks;
+	private final int classCount;
+	private final int linkCount;
+
+	/*
+	 * Set when the model knows which chunked file it matches apart from the
+	 * dirty chunks, so saving over that file can be incremental.
+	 */
+	private File base;
+	private long baseGeneration;
+	private BitSet dirtyClasses;
+	private BitSet dirtyLinks;
+	private long savedGeneration = 0;
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	/**
+	 * One class, as it was when the snapshot was taken.
+	 */
+	public static final class ClassRecord {
+		public final int index;
+		public final int xPos;
+		public final int yPos;
+		public final int width;
+		public final int height;
+		public final String name;
+		public final String attr;
+		public final String oper;
+		public final String desc;
+
+		ClassRecord(ClassModel model) {
+			index = model.getIndex();
+			xPos = model.getXPos();
+			yPos = model.getYPos();
+			width = model.getWidth();
+			height = model.getHeight();
+			name = model.getName();
+			attr = model.getAttr();
+			oper = model.getOper();
+			desc = model.getDesc();
+		}
+
+		ClassRecord(int[] ints, String[] strings) {
+			index = ints[0];
+			xPos = ints[1];
+			yPos = ints[2];
+			width = ints[3];
+			height = ints[4];
+			name = strings[0];
+			attr = strings[1];
+			oper = strings[2];
+			desc = strings[3];
+		}
+	}
+
+	/**
+	 * One link, as it was when the snapshot was taken.
+	 */
+	public static final class LinkRecord {
+		public final int index;
+		public final int type;
+		public final int source;
+		public final int dest;
+		public final int sourceMin;
+		public final int sourceMax;
+		public final int destMin;
+		public final int destMax;
+		public final String label;
+
+		LinkRecord(LinkModel model) {
+			index = model.getIndex();
+			type = model.getType();
+			source = model.getSource();
+			dest = model.getDest();
+			sourceMin = model.getSourceMin();
+			sourceMax = model.getSourceMax();
+			destMin = model.getDestMin();
+			destMax = model.getDestMax();
+			label = model.getLabel();
+		}
+
+		LinkRecord(int[] ints, String labelIn) {
+			index = ints[0];
+			type = ints[1];
+			source = ints[2];
+			dest = ints[3];
+			sourceMin = ints[4];
+			sourceMax = ints[5];
+			destMin = ints[6];
+			destMax = ints[7];
+			label = labelIn;
+		}
+	}
+
+	/**
+	 * Copies the current contents of a model's lists. Must be called on the
+	 * thread that edits the model.
+	 *
+	 * @constructor
+	 * @param classList
+	 *            the model's classes
+	 * @param linkList
+	 *            the model's links
+	 * @param previous
+	 *            the model's previous snapshot, or null to copy every chunk
+	 * @param changedClasses
+	 *            the class chunks changed since the previous snapshot
+	 * @param changedLinks
+	 *            the link chunks changed since the previous snapshot
+	 */
+	ModelSnapshot(List<ClassModel> classList, List<LinkModel> linkList, ModelSnapshot previous,
+			BitSet changedClasses, BitSet changedLinks) {
+		classCount = classList.size();
+		classChunks = new ClassRecord[ChunkedModelFile.chunkCount(classCount)][];
+		for (int c = 0; c != classChunks.length; ++c) {
+			int first = c * ChunkedModelFile.CHUNK_SIZE;
+			int length = Math.min(ChunkedModelFile.CHUNK_SIZE, classCount - first);
+			if (previous != null && !changedClasses.get(c) && c < previous.classChunks.length
+					&& previous.classChunks[c].length == length) {
+				classChunks[c] = previous.classChunks[c];
+				continue;
+			}
+			classChunks[c] = new ClassRecord[length];
+			for (int i = 0; i != length; ++i)
+				classChunks[c][i] = classList.get(first + i).toRecord();
+		}
+
+		linkCount = linkList.size();
+		linkChunks = new LinkRecord[ChunkedModelFile.chunkCount(linkCount)][];
+		for (int c = 0; c != linkChunks.length; ++c) {
+			int first = c * ChunkedModelFile.CHUNK_SIZE;
+			int length = Math.min(ChunkedModelFile.CHUNK_SIZE, linkCount - first);
+			if (previous != null && !changedLinks.get(c) && c < previous.linkChunks.length
+					&& previous.linkChunks[c].length == length) {
+				linkChunks[c] = previous.linkChunks[c];
+				continue;
+			}
+			linkChunks[c] = new LinkRecord[length];
+			for (int i = 0; i != length; ++i)
+				linkChunks[c][i] = linkList.get(first + i).toRecord();
+		}
+	}
+
+	/**
+	 * Makes a snapshot of records read back from somewhere else, such as undo
+	 * history that was written to disk.
+	 *
+	 * @constructor
+	 * @param classes
+	 *            the classes, in order
+	 * @param links
+	 *            the links, in order
+	 */
+	ModelSnapshot(ClassRecord[] classes, LinkRecord[] links) {
+		classCount = classes.length;
+		classChunks = new ClassRecord[ChunkedModelFile.chunkCount(classCount)][];
+		for (int c = 0; c != classChunks.length; ++c)
+			classChunks[c] = Arrays.copyOfRange(classes, c * ChunkedModelFile.CHUNK_SIZE,
+					Math.min(classCount, (c + 1) * ChunkedModelFile.CHUNK_SIZE));
+
+		linkCount = links.length;
+		linkChunks = new LinkRecord[ChunkedModelFile.chunkCount(linkCount)][];
+		for (int c = 0; c != linkChunks.length; ++c)
+			linkChunks[c] = Arrays.copyOfRange(links, c * ChunkedModelFile.CHUNK_SIZE,
+					Math.min(linkCount, (c + 1) * ChunkedModelFile.CHUNK_SIZE));
+	}
+
+	/**
+	 * Notes the chunked file the model was last saved to or loaded from and which
+	 * of its chunks have changed since. Must be called before the snapshot is
+	 * handed to another thread.
+	 *
+	 * @param file
+	 *            the chunked file
+	 * @param generation
+	 *            the generation of the file's index at the time
+	 * @param classChunks
+	 *            the class chunks changed since; not modified afterwards
+	 * @param linkChunks
+	 *            the link chunks changed since; not modified afterwards
+	 */
+	void setBase(File file, long generation, BitSet classChunks, BitSet linkChunks) {
+		base = file;
+		baseGeneration = generation;
+		dirtyClasses = classChunks;
+		dirtyLinks = linkChunks;
+	}
+
+	/**
+	 * Sets how hard a compressed diagram is compressed when saved.
+	 *
+	 * @param level
+	 *            the Deflater compression level
+	 */
+	public void setCompressionLevel(int level) {
+		compressionLevel = level;
+	}
+
+	/**
+	 * Returns the generation of the chunked file written by the last save, once
+	 * the save is over
+	 *
+	 * @return the generation, or 0 if the last save wasn't in the binary format
+	 */
+	public long getSavedGeneration() {
+		return savedGeneration;
+	}
+
+	/**
+	 * Returns the number of classes in the snapshot
+	 *
+	 * @return the number of classes
+	 */
+	public int getClassCount() {
+		return classCount;
+	}
+
+	/**
+	 * Returns the class at position i
+	 *
+	 * @param i
+	 *            the position of the class
+	 * @return the class's record
+	 */
+	public ClassRecord getClassRecord(int i) {
+		return classChunks[i / ChunkedModelFile.CHUNK_SIZE][i % ChunkedModelFile.CHUNK_SIZE];
+	}
+
+	/**
+	 * Returns the number of links in the snapshot
+	 *
+	 * @return the number of links
+	 */
+	public int getLinkCount() {
+		return linkCount;
+	}
+
+	/**
+	 * Returns the link at position i
+	 *
+	 * @param i
+	 *            the position of the link
+	 * @return the link's record
+	 */
+	public LinkRecord getLinkRecord(int i) {
+		return linkChunks[i / ChunkedModelFile.CHUNK_SIZE][i % ChunkedModelFile.CHUNK_SIZE];
+	}
+
+	/**
+	 * Writes the snapshot to a file: compressed for files ending in .umlz, in the
+	 * binary format for files ending in .umlb and as text otherwise. A failed or cancelled save never leaves a half
+	 * written diagram behind: text and new binary files are written to a
+	 * temporary file first, which then replaces the target, and a binary file the
+	 * snapshot's model was loaded from or saved to is only appended to.
+	 *
+	 * A save running on another thread can be cancelled by interrupting that
+	 * thread; it then stops with an InterruptedIOException.
+	 *
+	 * @param file
+	 *            The file to be written to.
+	 * @throws IOException
+	 *             Throws if the file can't be written to or the save was
+	 *             interrupted.
+	 */
+	public void save(File file) throws IOException {
+		if (CompressedModelFile.isCompressedFile(file)) {
+			File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+			try {
+				CompressedModelFile.write(temp, this, compressionLevel);
+				checkCancelled();
+				replaceFile(temp, file);
+			} finally {
+				temp.delete();
+			}
+			savedGeneration = 0;
+			return;
+		}
+		save(file, Model.isBinaryFile(file));
+	}
+
+	/**
+	 * Writes the snapshot to a file in a chosen format, the same way as save.
+	 *
+	 * @param file
+	 *            The file to be written to.
+	 * @param binary
+	 *            true for the binary format, false for text
+	 * @throws IOException
+	 *             Throws if the file can't be written to or the save was
+	 *             interrupted.
+	 */
+	public void save(File file, boolean binary) throws IOException {
+		savedGeneration = 0;
+		if (binary && file.equals(base) && saveIncremental(file))
+			return;
+
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			if (binary) {
+				RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+				try {
+					savedGeneration = ChunkedModelFile.write(raf, null, this, null, null);
+				} finally {
+					raf.close();
+				}
+			} else {
+				BufferedWriter writer = new BufferedWriter(new FileWriter(temp));
+				try {
+					writeText(writer);
+				} finally {
+					writer.close();
+				}
+			}
+			checkCancelled();
+			replaceFile(temp, file);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Appends the dirty chunks to the base file, if it is still the version the
+	 * snapshot's model knows about and isn't mostly dead chunks already.
+	 *
+	 * @return false if the file needs rewriting in full instead
+	 */
+	private boolean saveIncremental(File file) throws IOException {
+		if (!ChunkedModelFile.isChunked(file))
+			return false;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			ChunkedModelFile old;
+			try {
+				old = ChunkedModelFile.readIndex(raf);
+			} catch (ModelFormatException ex) {
+				return false;
+			}
+			// Files from before the index footer are brought up to date in full
+			if (old.getGeneration() != baseGeneration || !old.hasFooter()
+					|| raf.length() - old.getLiveBytes() > old.getLiveBytes())
+				return false;
+			savedGeneration = ChunkedModelFile.write(raf, old, this, dirtyClasses, dirtyLinks);
+			return true;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes every record in the sequential binary format of version 1.
+	 *
+	 * @param writer
+	 *            the writer to use; its header is already written
+	 * @throws IOException
+	 *             Throws if the stream can't be written to or the save was
+	 *             interrupted.
+	 */
+	public void writeBinary(BinaryModelWriter writer) throws IOException {
+		writer.writeClassCount(classCount);
+		for (int i = 0; i != classCount; ++i) {
+			if (i % CANCEL_CHECK == 0)
+				checkCancelled();
+			writer.writeClass(getClassRecord(i));
+		}
+
+		writer.writeLinkCount(linkCount);
+		for (int i = 0; i != linkCount; ++i) {
+			if (i % CANCEL_CHECK == 0)
+				checkCancelled();
+			writer.writeLink(getLinkRecord(i));
+		}
+	}
+
+	/**
+	 * Writes every record in the text format.
+	 *
+	 * @param writer
+	 *            the writer to use
+	 * @throws IOException
+	 *             Throws if the stream can't be written to or the save was
+	 *             interrupted.
+	 */
+	public void writeText(Writer writer) throws IOException {
+
+		writer.write("CLASSLIST_START\n");
+		writer.write(classCount + "\n");
+		for (int i = 0; i != classCount; ++i) {
+			if (i % CANCEL_CHECK == 0)
+				checkCancelled();
+			ClassRecord c = getClassRecord(i);
+			writer.write(c.index + " ");
+			writer.write(c.xPos + " ");
+			writer.write(c.yPos + " ");
+			writer.write(c.width + " ");
+			writer.write(c.height + " \n");
+			writer.write(c.name + "\n\n");
+			writer.write(c.attr + "\n\n");
+			writer.write(c.oper + "\n\n");
+			writer.write(c.desc + "\n\n");
+		}
+		writer.write("CLASSLIST_END\n");
+		writer.write("LINKLIST_BEGIN\n");
+		writer.write(linkCount + "\n");
+		for (int i = 0; i != linkCount; ++i) {
+			if (i % CANCEL_CHECK == 0)
+				checkCancelled();
+			LinkRecord l = getLinkRecord(i);
+			writer.write(l.index + " ");
+			writer.write(l.type + " ");
+			writer.write(l.source + " ");
+			writer.write(l.dest + " ");
+			writer.write(l.sourceMin + " ");
+			writer.write(l.sourceMax + " ");
+			writer.write(l.destMin + " ");
+			writer.write(l.destMax + " \n");
+			writer.write(l.label + "\n");
+		}
+		writer.write("LINKLIST_END\n");
+	}
+
+	static void checkCancelled() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted())
+			throw new InterruptedIOException("save cancelled");
+	}
+
+	/**
+	 * Moves a finished temporary file over the target, atomically where the file
+	 * system allows it.
+	 */
+	static void replaceFile(File temp, File target) throws IOException {
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package application.include;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import application.include.Model.ClassModel;
+import application.include.Model.LinkModel;
+
+/**
+ * Reads a text diagram on every core. A first pass over the raw bytes finds
+ * where each class and link record starts, without decoding anything; the
+ * records are then decoded in batches on the common fork-join pool, each batch
+ * by its own ModelReader, and handed to the model in index order in one bulk
+ * step.
+ *
+ * Only the layout is checked by the first pass. Any error stops the read before
+ * the model is touched, so the caller can fall back to a sequential
+ * ModelReader, which reports the exact line and column.
+ */
+public class ParallelModelReader {
+
+	// Records decoded by one fork-join task
+	private static final int BATCH = 512;
+
+	private ByteBuffer bytes;
+	private Charset charset;
+	private int pos;
+	private int limit;
+
+	// Offset of each record, plus one past the end of the last
+	private int[] classStarts;
+	private int[] linkStarts;
+
+	/**
+	 * Constructs a ParallelModelReader over a whole text diagram.
+	 *
+	 * @constructor
+	 * @param in
+	 *            the file's bytes, from position 0
+	 * @param charsetIn
+	 *            the charset the file was written in; see supports
+	 */
+	public ParallelModelReader(ByteBuffer in, Charset charsetIn) {
+		bytes = in;
+		charset = charsetIn;
+		pos = in.position();
+		limit = in.limit();
+	}
+
+	/**
+	 * Tells whether record boundaries can be found in the raw bytes of a
+	 * charset, which needs newlines, digits and spaces to be single ASCII bytes.
+	 *
+	 * @param charset
+	 *            the charset of the file
+	 * @return true if the charset is ASCII compatible
+	 */
+	public static boolean supports(Charset charset) {
+		String probe = "\n\r\t -0123456789CLASSLIST_ENDLINKLIST_BEGIN";
+		return Arrays.equals(probe.getBytes(charset), probe.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Reads the whole diagram and adds every class and link to the model.
+	 *
+	 * @param model
+	 *            The Model to add the classes and links to
+	 * @throws IOException
+	 *             Throws if the diagram is malformed; the model is unchanged
+	 */
+	public void read(Model model) throws IOException {
+		scan();
+
+		final ClassModel[] classes = new ClassModel[classStarts.length - 1];
+		final LinkModel[] links = new LinkModel[linkStarts.length - 1];
+		try {
+			new Decode(model, classes, links, 0, classes.length + links.length).invoke();
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+
+		model.addDecoded(Arrays.asList(classes), Arrays.asList(links));
+	}
+
+	/*****************************
+	 * SCAN
+	 ****************************/
+
+	/**
+	 * Walks the file once, noting where each record starts. Mirrors the way
+	 * ModelReader splits records, so each one can be decoded on its own.
+	 */
+	private void scan() throws ModelFormatException {
+		keyword("CLASSLIST_START");
+		classStarts = new int[count() + 1];
+		for (int i = 0; i != classStarts.length - 1; ++i) {
+			classStarts[i] = pos;
+			for (int n = 0; n != 5; ++n)
+				number();
+			endLine();
+			for (int n = 0; n != 4; ++n)
+				field();
+		}
+		classStarts[classStarts.length - 1] = pos;
+
+		keyword("CLASSLIST_END");
+		keyword("LINKLIST_BEGIN");
+		linkStarts = new int[count() + 1];
+		for (int i = 0; i != linkStarts.length - 1; ++i) {
+			linkStarts[i] = pos;
+			for (int n = 0; n != 8; ++n)
+				number();
+			endLine();
+			line();
+		}
+		linkStarts[linkStarts.length - 1] = pos;
+
+		keyword("LINKLIST_END");
+	}
+
+	private int count() throws ModelFormatException {
+		long count = number();
+		if (count < 0)
+			throw error("record count can't be negative");
+		// Each record takes at least two bytes, which bounds a corrupt count
+		if (count > (limit - pos) / 2 + 1)
+			throw error("record count is larger than the file");
+		endLine();
+		return (int) count;
+	}
+
+	private long number() throws ModelFormatException {
+		skipWhitespace();
+		boolean negative = pos != limit && bytes.get(pos) == '-';
+		if (negative)
+			++pos;
+
+		int start = pos;
+		long value = 0;
+		while (pos != limit && bytes.get(pos) >= '0' && bytes.get(pos) <= '9') {
+			value = value * 10 + (bytes.get(pos++) - '0');
+			if (value > (long) Integer.MAX_VALUE + 1)
+				throw error("number is too large");
+		}
+		if (pos == start)
+			throw error("expected a number");
+		return negative ? -value : value;
+	}
+
+	private void endLine() throws ModelFormatException {
+		while (pos != limit && (bytes.get(pos) == ' ' || bytes.get(pos) == '\t' || bytes.get(pos) == '\r'))
+			++pos;
+		if (pos == limit || bytes.get(pos) != '\n')
+			throw error("unexpected text at end of line");
+		++pos;
+	}
+
+	/**
+	 * Steps over a class field, which runs up to a blank line.
+	 */
+	private void field() throws ModelFormatException {
+		for (;;) {
+			if (pos == limit)
+				throw error("unexpected end of file inside a class record");
+			if (bytes.get(pos++) == '\n' && pos != limit && bytes.get(pos) == '\n') {
+				++pos;
+				return;
+			}
+		}
+	}
+
+	private void line() {
+		while (pos != limit && bytes.get(pos++) != '\n')
+			;
+	}
+
+	private void keyword(String keyword) throws ModelFormatException {
+		skipWhitespace();
+		for (int i = 0; i != keyword.length(); ++i) {
+			if (pos == limit || bytes.get(pos) != keyword.charAt(i))
+				throw error("expected " + keyword);
+			++pos;
+		}
+	}
+
+	private void skipWhitespace() {
+		while (pos != limit) {
+			byte b = bytes.get(pos);
+			if (b != ' ' && b != '\t' && b != '\r' && b != '\n')
+				return;
+			++pos;
+		}
+	}
+
+	private ModelFormatException error(String message) {
+		return new ModelFormatException(message, pos);
+	}
+
+	/*****************************
+	 * DECODE
+	 ****************************/
+
+	/**
+	 * Decodes records [from, to), counting the classes first and then the links,
+	 * splitting the range in half until it is one batch.
+	 */
+	private class Decode extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Model model;
+		private ClassModel[] classes;
+		private LinkModel[] links;
+		private int from;
+		private int to;
+
+		Decode(Model modelIn, ClassModel[] classesIn, LinkModel[] linksIn, int fromIn, int toIn) {
+			model = modelIn;
+			classes = classesIn;
+			links = linksIn;
+			from = fromIn;
+			to = toIn;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > BATCH) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Decode(model, classes, links, from, middle),
+						new Decode(model, classes, links, middle, to));
+				return;
+			}
+
+			try {
+				// A batch straddling the end of the classes is split there, each
+				// part decoded as its own kind of record
+				int split = Math.min(Math.max(classes.length, from), to);
+				if (from < split)
+					decodeClasses(from, split);
+				if (split < to)
+					decodeLinks(split - classes.length, to - classes.length);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+
+		private void decodeClasses(int first, int end) throws IOException {
+			ModelReader reader = new ModelReader(slice(classStarts[first], classStarts[end]), charset);
+			for (int i = first; i != end; ++i) {
+				int[] ints = new int[5];
+				String[] strings = new String[4];
+				reader.readClass(ints, strings);
+				classes[i] = model.new ClassModel(ints, strings);
+			}
+		}
+
+		private void decodeLinks(int first, int end) throws IOException {
+			ModelReader reader = new ModelReader(slice(linkStarts[first], linkStarts[end]), charset);
+			for (int i = first; i != end; ++i) {
+				int[] ints = new int[8];
+				String label = reader.readLink(ints);
+				links[i] = model.new LinkModel(ints, label);
+			}
+		}
+
+		private ByteBuffer slice(int start, int end) {
+			ByteBuffer slice = bytes.duplicate();
+			slice.limit(end);
+			slice.position(start);
+			return slice.slice();
+		}
+	}
+}
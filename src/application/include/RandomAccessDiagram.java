@@ -0,0 +1,230 @@
+package application.include;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import application.include.Model.ClassModel;
+import application.include.Model.LinkModel;
+
+/**
+ * Reads parts of a saved binary diagram without loading the rest, using the
+ * footer at the end of its index. Opening one reads only the header and the
+ * index; after that the class names are known, and any single class or link is
+ * read with one seek.
+ *
+ * For tools that only need the class names, such as a catalog of diagrams,
+ * readClassNames and catalog work on every format, and only parse files in full
+ * when they have no footer.
+ */
+public class RandomAccessDiagram implements Closeable {
+
+	private RandomAccessFile raf;
+	private ChunkedModelFile index;
+
+	/**
+	 * Opens a binary diagram and reads its index.
+	 *
+	 * @constructor
+	 * @param file
+	 *            the diagram to open
+	 * @throws IOException
+	 *             Throws if the file can't be read, or isn't a binary diagram with
+	 *             an index footer
+	 */
+	public RandomAccessDiagram(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		try {
+			index = ChunkedModelFile.readIndex(raf);
+			if (!index.hasFooter())
+				throw new ModelFormatException("diagram has no index footer; save it again to add one", 0);
+		} catch (IOException ex) {
+			raf.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns the number of classes in the diagram
+	 *
+	 * @return the number of classes
+	 */
+	public int getClassCount() {
+		return index.getClassCount();
+	}
+
+	/**
+	 * Returns the number of links in the diagram
+	 *
+	 * @return the number of links
+	 */
+	public int getLinkCount() {
+		return index.getLinkCount();
+	}
+
+	/**
+	 * Returns the name of a class without reading its record
+	 *
+	 * @param i
+	 *            the position of the class
+	 * @return the class's name
+	 * @throws IOException
+	 *             Throws if the index footer is malformed
+	 */
+	public String getClassName(int i) throws IOException {
+		return index.getClassName(i);
+	}
+
+	/**
+	 * Returns the name of every class, in order, without reading any records
+	 *
+	 * @return an unmodifiable list of the names
+	 * @throws IOException
+	 *             Throws if the index footer is malformed
+	 */
+	public List<String> getClassNames() throws IOException {
+		return index.getClassNames();
+	}
+
+	/**
+	 * Reads one class. The ClassModel belongs to the given model but is not added
+	 * to its list.
+	 *
+	 * @param i
+	 *            the position of the class
+	 * @param model
+	 *            the Model the ClassModel is created for
+	 * @return the class
+	 * @throws IOException
+	 *             Throws if the file can't be read or the record is malformed
+	 */
+	public ClassModel readClass(int i, Model model) throws IOException {
+		BinaryModelReader reader = record(index.getClassRecord(i), index.getClassRecordLength(i));
+		int[] ints = new int[5];
+		String[] strings = new String[4];
+		reader.readClass(ints, strings);
+		return model.new ClassModel(ints, strings);
+	}
+
+	/**
+	 * Reads one link. The LinkModel belongs to the given model but is not added to
+	 * its list.
+	 *
+	 * @param i
+	 *            the position of the link
+	 * @param model
+	 *            the Model the LinkModel is created for
+	 * @return the link
+	 * @throws IOException
+	 *             Throws if the file can't be read or the record is malformed
+	 */
+	public LinkModel readLink(int i, Model model) throws IOException {
+		BinaryModelReader reader = record(index.getLinkRecord(i), index.getLinkRecordLength(i));
+		int[] ints = new int[8];
+		String label = reader.readLink(ints);
+		return model.new LinkModel(ints, label);
+	}
+
+	/**
+	 * Reads the bytes of one record.
+	 */
+	private BinaryModelReader record(long offset, int length) throws IOException {
+		if (offset < 0 || offset + length > raf.length())
+			throw new ModelFormatException("record out of range", offset);
+		byte[] bytes = new byte[length];
+		raf.seek(offset);
+		raf.readFully(bytes);
+		return new BinaryModelReader(ByteBuffer.wrap(bytes), null, 0);
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/*****************************
+	 * CATALOG
+	 ****************************/
+
+	/**
+	 * Returns the class names of a saved diagram in any format. Binary diagrams
+	 * with an index footer are answered from the index; others are parsed in
+	 * full.
+	 *
+	 * @param file
+	 *            the diagram to read
+	 * @return the name of every class, in order
+	 * @throws IOException
+	 *             Throws if the file can't be read or isn't a diagram
+	 */
+	public static List<String> readClassNames(File file) throws IOException {
+		if (Model.isBinaryFile(file) && ChunkedModelFile.isChunked(file)) {
+			ChunkedModelFile index = ChunkedModelFile.readIndex(file);
+			if (index.hasFooter())
+				return index.getClassNames();
+		}
+
+		Model model = new Model();
+		if (CompressedModelFile.isCompressedFile(file)) {
+			CompressedModelFile.read(file, model);
+		} else if (Model.isBinaryFile(file)) {
+			model.loadBinary(file);
+		} else {
+			ModelReader reader = new ModelReader(new FileReader(file));
+			try {
+				reader.read(model);
+			} finally {
+				reader.close();
+			}
+		}
+
+		List<String> names = new ArrayList<String>(model.getClassTail());
+		for (int i = 0; i != model.getClassTail(); ++i)
+			names.add(model.getClassModel(i).getName());
+		return names;
+	}
+
+	/**
+	 * Lists the class names of every diagram in a directory. Files that can't be
+	 * read are reported and left out.
+	 *
+	 * @param directory
+	 *            the directory to scan; subdirectories are not searched
+	 * @return each diagram file, by file name, with the names of its classes
+	 */
+	public static Map<File, List<String>> catalog(File directory) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName().toLowerCase();
+				return file.isFile() && (name.endsWith(".uml") || name.endsWith(Model.BINARY_EXTENSION)
+						|| name.endsWith(CompressedModelFile.EXTENSION));
+			}
+		});
+
+		Map<File, List<String>> catalog = new LinkedHashMap<File, List<String>>();
+		if (files == null)
+			return catalog;
+		Arrays.sort(files);
+		for (File file : files) {
+			try {
+				catalog.put(file, readClassNames(file));
+			} catch (IOException ex) {
+				System.err.println("IO Failure: " + file + ": " + ex.getMessage());
+			}
+		}
+		return catalog;
+	}
+}
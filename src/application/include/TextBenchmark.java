@@ -0,0 +1,92 @@
+package application.include;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Measures how much heap a text-heavy diagram takes once loaded and edited.
+ * Run from the command line:
+ *
+ * java application.include.TextBenchmark [classes] [edits]
+ *
+ * A diagram whose classes share a few long descriptions is saved, loaded into
+ * a fresh Model, and then given the edits, each undone and redone, so the undo
+ * history holds text too. The heap left in use is printed, along with how many
+ * distinct String objects the classes refer to; without pooling, every class
+ * would have copies of its own.
+ */
+public class TextBenchmark {
+
+	private static final int DESCRIPTIONS = 20;
+
+	public static void main(String[] args) throws IOException {
+		int classes = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int edits = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		File binary = File.createTempFile("benchmark", Model.BINARY_EXTENSION);
+		binary.deleteOnExit();
+		Model written = generate(classes);
+		written.save(binary);
+		written.finishSaves();
+		written = null;
+
+		long before = usedHeap();
+		Model model = new Model();
+		model.load(binary);
+		model.closeJournal();
+		for (int i = 0; i != edits; ++i) {
+			model.saveUndoState();
+			model.getClassModel(i % classes).setDesc(description((i + 1) % DESCRIPTIONS));
+			model.undo();
+			model.redo();
+		}
+		long after = usedHeap();
+
+		Set<String> objects = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+		Set<String> values = new HashSet<String>();
+		long textBytes = 0;
+		for (int i = 0; i != model.getClassTail(); ++i) {
+			String desc = model.getClassModel(i).getDesc();
+			objects.add(desc);
+			values.add(desc);
+			textBytes += 2L * desc.length();
+		}
+
+		System.out.printf("%d classes, %d edits: %.1f MB heap, %.1f MB of descriptions%n", classes, edits,
+				(after - before) / (1024.0 * 1024.0), textBytes / (1024.0 * 1024.0));
+		System.out.printf("%d distinct descriptions held by %d String objects, %d texts pooled%n", values.size(),
+				objects.size(), TextPool.size());
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i != 3; ++i)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Builds a diagram whose classes each have one of a few long descriptions.
+	 */
+	private static Model generate(int classes) {
+		Model model = new Model();
+		for (int i = 0; i != classes; ++i) {
+			model.addClassModel(new int[] { i, (i % 100) * 150, (i / 100) * 150, 100, 100 },
+					new String[] { "Class" + i, "int count\nString name", "getName()\nsetName(String)",
+							description(i % DESCRIPTIONS) });
+		}
+		return model;
+	}
+
+	private static String description(int variant) {
+		StringBuilder text = new StringBuilder();
+		for (int line = 0; line != 40; ++line)
+			text.append("Variant ").append(variant).append(": responsibilities and collaborators, line ")
+					.append(line).append('\n');
+		return text.toString();
+	}
+}
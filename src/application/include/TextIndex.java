@@ -0,0 +1,315 @@
+package application.include;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An inverted index of the words in the classes' text: for each word, the IDs
+ * of the classes whose name, attributes, operations or description use it.
+ * Words are runs of letters, digits and underscores, compared without case.
+ * Each is also indexed by its parts, split at underscores and where a lower
+ * case letter or digit meets an upper case one, so "getName" is found by
+ * "name" as well as "getname".
+ *
+ * It is kept up to date a class at a time: each class's words are kept, and
+ * a change only touches the lists of the words it adds or drops. The words are
+ * kept sorted, so a search finds every word starting with what was typed as one
+ * run of them.
+ *
+ * The last query's words are kept with their classes, so typing on only looks
+ * up the word being typed, and not even that while it still starts the same
+ * words. The classes of a query's words are then intersected rarest first.
+ */
+final class TextIndex {
+
+	/**
+	 * The IDs of the classes using a word, sorted
+	 */
+	private static final class Postings {
+		private int[] ids = new int[2];
+		private int count = 0;
+
+		void add(int id) {
+			int at = Arrays.binarySearch(ids, 0, count, id);
+			if (at >= 0)
+				return;
+			at = -at - 1;
+			if (count == ids.length)
+				ids = Arrays.copyOf(ids, count * 2);
+			System.arraycopy(ids, at, ids, at + 1, count - at);
+			ids[at] = id;
+			++count;
+		}
+
+		void remove(int id) {
+			int at = Arrays.binarySearch(ids, 0, count, id);
+			if (at < 0)
+				return;
+			System.arraycopy(ids, at + 1, ids, at, count - at - 1);
+			--count;
+		}
+	}
+
+	/**
+	 * A word of a query looked up: the first and last words starting with it and
+	 * the IDs of the classes using any of them, sorted
+	 */
+	private static final class Lookup {
+		final String term;
+		final String first;
+		final String last;
+		final int[] found;
+
+		Lookup(String term, String first, String last, int[] found) {
+			this.term = term;
+			this.first = first;
+			this.last = last;
+			this.found = found;
+		}
+	}
+
+	private final TreeMap<String, Postings> postings = new TreeMap<String, Postings>();
+	// By class ID, the sorted words of each class indexed
+	private String[][] wordsById = new String[64][];
+	// The words of the last query looked up, until the index changes
+	private List<Lookup> lastLookups = new ArrayList<Lookup>();
+	// Scratch for the union of a run of lists, a bit per class ID
+	private long[] union = new long[1];
+
+	/**
+	 * Indexes a class's text, replacing what was indexed for it before
+	 *
+	 * @param id
+	 *            the ID of the class
+	 * @param texts
+	 *            its name, attributes, operations and description; any may be
+	 *            null
+	 */
+	void put(int id, String... texts) {
+		if (id >= wordsById.length)
+			wordsById = Arrays.copyOf(wordsById, Math.max(id + 1, wordsById.length * 2));
+		String[] was = wordsById[id] == null ? new String[0] : wordsById[id];
+		String[] now = words(texts);
+		lastLookups.clear();
+
+		// Both are sorted, so walk them side by side
+		int i = 0;
+		int j = 0;
+		while (i != was.length || j != now.length) {
+			int order = i == was.length ? 1 : j == now.length ? -1 : was[i].compareTo(now[j]);
+			if (order < 0) {
+				drop(was[i++], id);
+			} else if (order > 0) {
+				Postings list = postings.get(now[j]);
+				if (list == null) {
+					list = new Postings();
+					postings.put(now[j], list);
+				}
+				list.add(id);
+				++j;
+			} else {
+				++i;
+				++j;
+			}
+		}
+		wordsById[id] = now;
+	}
+
+	/**
+	 * Takes a class out of the index
+	 *
+	 * @param id
+	 *            the ID of the class
+	 */
+	void remove(int id) {
+		if (id >= wordsById.length || wordsById[id] == null)
+			return;
+		lastLookups.clear();
+		for (String word : wordsById[id])
+			drop(word, id);
+		wordsById[id] = null;
+	}
+
+	private void drop(String word, int id) {
+		Postings list = postings.get(word);
+		list.remove(id);
+		if (list.count == 0)
+			postings.remove(word);
+	}
+
+	/**
+	 * Returns the classes with a word starting with each word of the query
+	 *
+	 * @param query
+	 *            the words to look for, as typed
+	 * @return the IDs of the classes, sorted; none if the query has no words.
+	 *         Later searches may share it, so it isn't to be changed.
+	 */
+	int[] find(String query) {
+		List<Lookup> lookups = new ArrayList<Lookup>();
+		for (String term : queryWords(query))
+			lookups.add(lookUp(term));
+		lastLookups = lookups;
+		if (lookups.isEmpty())
+			return new int[0];
+
+		// Rarest first, so each intersection is no bigger than the last
+		int[][] each = new int[lookups.size()][];
+		for (int n = 0; n != each.length; ++n)
+			each[n] = lookups.get(n).found;
+		Arrays.sort(each, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a.length, b.length);
+			}
+		});
+		int[] found = each[0];
+		for (int n = 1; n != each.length && found.length != 0; ++n)
+			found = intersect(found, each[n]);
+		return found;
+	}
+
+	/**
+	 * Finds the classes with a word starting with term, reusing the last query's
+	 * if typing on still leaves the same words
+	 */
+	private Lookup lookUp(String term) {
+		// Every word starting with term sorts before term + U+FFFF
+		SortedMap<String, Postings> run = postings.subMap(term, term + Character.MAX_VALUE);
+		if (run.isEmpty())
+			return new Lookup(term, null, null, new int[0]);
+		String first = run.firstKey();
+		String last = run.lastKey();
+		for (Lookup was : lastLookups)
+			if (term.startsWith(was.term) && first.equals(was.first) && last.equals(was.last))
+				return new Lookup(term, first, last, was.found);
+
+		if (first.equals(last)) {
+			Postings only = run.get(first);
+			return new Lookup(term, first, last, Arrays.copyOf(only.ids, only.count));
+		}
+		unite(run);
+		int count = 0;
+		for (long bits : union)
+			count += Long.bitCount(bits);
+		int[] found = new int[count];
+		int n = 0;
+		for (int at = 0; at != union.length; ++at)
+			for (long bits = union[at]; bits != 0; bits &= bits - 1)
+				found[n++] = at << 6 | Long.numberOfTrailingZeros(bits);
+		return new Lookup(term, first, last, found);
+	}
+
+	private static int[] intersect(int[] a, int[] b) {
+		int[] both = new int[Math.min(a.length, b.length)];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i != a.length && j != b.length) {
+			if (a[i] < b[j])
+				++i;
+			else if (a[i] > b[j])
+				++j;
+			else {
+				both[count++] = a[i];
+				++i;
+				++j;
+			}
+		}
+		return Arrays.copyOf(both, count);
+	}
+
+	/**
+	 * Sets the bits of the classes listed for some word of a run, and no others
+	 */
+	private void unite(SortedMap<String, Postings> run) {
+		int size = (wordsById.length + 63) >>> 6;
+		if (union.length != size)
+			union = new long[size];
+		else
+			Arrays.fill(union, 0);
+		for (Postings list : run.values()) {
+			int[] ids = list.ids;
+			for (int n = 0; n != list.count; ++n)
+				union[ids[n] >>> 6] |= 1L << ids[n];
+		}
+	}
+
+	/**
+	 * Returns the distinct words of some text and their parts, lower cased and
+	 * sorted.
+	 */
+	static String[] words(String... texts) {
+		List<String> words = new ArrayList<String>();
+		for (String text : texts) {
+			if (text == null)
+				continue;
+			int start = -1;
+			for (int n = 0; n <= text.length(); ++n) {
+				boolean inWord = n != text.length() && isWordChar(text.charAt(n));
+				if (inWord && start < 0) {
+					start = n;
+				} else if (!inWord && start >= 0) {
+					addWord(words, text, start, n);
+					start = -1;
+				}
+			}
+		}
+		String[] all = words.toArray(new String[words.size()]);
+		Arrays.sort(all);
+		int count = 0;
+		for (int n = 0; n != all.length; ++n) {
+			if (count == 0 || !all[n].equals(all[count - 1]))
+				all[count++] = all[n];
+		}
+		return Arrays.copyOf(all, count);
+	}
+
+	/**
+	 * Adds a word and, if it has any, its parts.
+	 */
+	private static void addWord(List<String> words, String text, int start, int end) {
+		words.add(text.substring(start, end).toLowerCase(Locale.ROOT));
+		int part = start;
+		boolean split = false;
+		for (int n = start + 1; n <= end; ++n) {
+			boolean boundary = n == end || text.charAt(n) == '_' || text.charAt(n - 1) == '_'
+					|| (Character.isUpperCase(text.charAt(n)) && (Character.isLowerCase(text.charAt(n - 1))
+							|| Character.isDigit(text.charAt(n - 1))));
+			if (!boundary)
+				continue;
+			if (n != end)
+				split = true;
+			if (split && text.charAt(part) != '_' && part != n)
+				words.add(text.substring(part, n).toLowerCase(Locale.ROOT));
+			part = n;
+		}
+	}
+
+	/**
+	 * Returns the words of a query, lower cased, in the order typed.
+	 */
+	private static List<String> queryWords(String query) {
+		List<String> words = new ArrayList<String>();
+		int start = -1;
+		for (int n = 0; n <= query.length(); ++n) {
+			boolean inWord = n != query.length() && isWordChar(query.charAt(n));
+			if (inWord && start < 0) {
+				start = n;
+			} else if (!inWord && start >= 0) {
+				words.add(query.substring(start, n).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+}
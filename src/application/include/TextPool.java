@@ -0,0 +1,97 @@
+package application.include;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares one String among all equal text in the diagram: class and link text,
+ * the records snapshots and undo steps keep, and text read back from files.
+ * Descriptions and operations are often repeated across classes, and every
+ * load or undo would otherwise make new copies of them.
+ *
+ * The table holds its Strings weakly, so text no longer used anywhere is
+ * collected and its entry dropped. It can be used from any thread, so loaders
+ * decoding on several cores share it too.
+ */
+final class TextPool {
+
+	private static final ConcurrentHashMap<Entry, Entry> table = new ConcurrentHashMap<Entry, Entry>();
+	private static final ReferenceQueue<String> collected = new ReferenceQueue<String>();
+
+	/**
+	 * A weak reference to pooled text, equal to another entry for the same text.
+	 * Once its text is collected it is only equal to itself, so it can still be
+	 * removed.
+	 */
+	private static final class Entry extends WeakReference<String> {
+		private final int hash;
+
+		Entry(String text, ReferenceQueue<String> queue) {
+			super(text, queue);
+			hash = text.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other)
+				return true;
+			if (!(other instanceof Entry) || ((Entry) other).hash != hash)
+				return false;
+			String text = get();
+			return text != null && text.equals(((Entry) other).get());
+		}
+	}
+
+	private TextPool() {
+	}
+
+	/**
+	 * Returns the pooled String equal to text, pooling text itself if there is
+	 * none yet.
+	 *
+	 * @param text
+	 *            the text, which may be null
+	 * @return an equal String, the same one for every equal text
+	 */
+	static String intern(String text) {
+		if (text == null || text.isEmpty())
+			return text;
+		expunge();
+
+		Entry entry = new Entry(text, collected);
+		while (true) {
+			Entry existing = table.putIfAbsent(entry, entry);
+			if (existing == null)
+				return text;
+			String shared = existing.get();
+			if (shared != null)
+				return shared;
+			// Collected since it was matched
+			table.remove(existing, existing);
+		}
+	}
+
+	/**
+	 * Returns the number of distinct texts pooled
+	 *
+	 * @return the count, including texts collected but not yet dropped
+	 */
+	static int size() {
+		expunge();
+		return table.size();
+	}
+
+	/**
+	 * Drops the entries of text that was collected.
+	 */
+	private static void expunge() {
+		for (Object gone = collected.poll(); gone != null; gone = collected.poll())
+			table.remove(gone);
+	}
+}
@@ -0,0 +1,1125 @@
+package application.include;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+import application.include.Model.ClassModel;
+import application.include.Model.LinkModel;
+import application.include.ModelSnapshot.ClassRecord;
+import application.include.ModelSnapshot.LinkRecord;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+
+/**
+ * The undo and redo history of a Model, kept as the edits themselves rather
+ * than copies of the diagram. Each edit is recorded as a slot of a few ints
+ * holding just what it changed: one field's old and new value, or the class or
+ * link it added or removed. Undoing or redoing a step costs as much as the
+ * edits in it, however large the diagram is.
+ *
+ * Slots are packed into one int array shared by every step, and the text,
+ * records and snapshots they refer to into one object array, so recording an
+ * edit allocates nothing once the arrays have grown to fit the history. Records
+ * are the cached, immutable ones the model also saves from, and clearing the
+ * diagram keeps a snapshot that shares its chunks with the model's other
+ * snapshots. Text read back from disk is pooled, so it is shared with the
+ * model again.
+ *
+ * Edits are grouped into steps, one for each thing the user did; a step starts
+ * with begin and takes every edit recorded until the next begin. Repeated edits
+ * to one field within a step are folded into a single slot, so a drag records
+ * where it started and where it ended rather than every move in between.
+ *
+ * Steps form a tree of revisions, so edits made after undoing start a branch
+ * and the undone steps can still be gone back to. Going from one revision to
+ * another applies only the steps on the path between them.
+ *
+ * The history in memory is held to a budget. Past it, the oldest steps are
+ * written to a temporary file in the binary diagram encoding and read back
+ * when undo, redo or a jump reaches them. Sizes are estimates of the heap each
+ * edit takes, counting records it shares with the model as its own.
+ */
+public class UndoHistory {
+
+	public static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+	// Edits to the same object this close together are undone as one
+	private static final long MERGE_WINDOW = 1000000000L;
+
+	// Kinds of edit, which are also written to the spill file
+	private static final int SET_CLASS_INT = 1;
+	private static final int SET_CLASS_TEXT = 2;
+	private static final int ADD_CLASS = 3;
+	private static final int REMOVE_CLASS = 4;
+	private static final int SET_LINK_INT = 5;
+	private static final int SET_LINK_LABEL = 6;
+	private static final int ADD_LINK = 7;
+	private static final int REMOVE_LINK = 8;
+	private static final int CLEAR = 9;
+	private static final int CLEAR_LINKS = 10;
+
+	/*
+	 * A slot is the kind of edit, the index of the class or link, the field, and
+	 * the old and new values. Values that are objects are positions in refs,
+	 * counted from the start of the step's refs.
+	 */
+	private static final int SLOT = 5;
+	private static final int INDEX = 1;
+	private static final int FIELD = 2;
+	private static final int OLD = 3;
+	private static final int NEW = 4;
+
+	// Rough heap cost of a slot and the two references it may use, and of a record
+	private static final long SLOT_SIZE = 4 * SLOT + 16;
+	private static final long RECORD_SIZE = 64;
+
+	/*
+	 * The history is a tree of revisions. Revision 0 is the diagram before any
+	 * step; every other revision r is reached from parent[r] by redoing step r,
+	 * and left for it by undoing step r. Undoing a few steps and editing starts a
+	 * new branch beside the old one rather than replacing it. redoChild[r] is the
+	 * child redo goes to next, the one most recently left or made, or 0 if r has
+	 * none.
+	 */
+	private int[] parent = new int[64];
+	private int[] depth = new int[64];
+	private int[] redoChild = new int[64];
+	private int[] stepKind = new int[64];
+	private long[] stepTime = new long[64];
+	private int revisionCount = 1;
+	private int current = 0;
+
+	/*
+	 * Where each step's slots and refs are, and its size. A step written to disk
+	 * has a stepSlot of -1 and is found in the spill file by spillOffset and
+	 * spillLength instead. arena lists steps in the order they sit in the arrays;
+	 * an entry is stale if arenaIndex of its step no longer points back at it.
+	 * Space left by spilled steps is free once the arrays are compacted.
+	 */
+	private int[] slots = new int[SLOT * 1024];
+	private Object[] refs = new Object[256];
+	private int slotEnd = 0;
+	private int refEnd = 0;
+	private int[] stepSlot = new int[64];
+	private int[] stepLength = new int[64];
+	private int[] stepRef = new int[64];
+	private int[] stepRefLength = new int[64];
+	private long[] stepSize = new long[64];
+	private long[] spillOffset = new long[64];
+	private int[] spillLength = new int[64];
+	private int[] arena = new int[64];
+	private int[] arenaIndex = new int[64];
+	private int arenaCount = 0;
+
+	private boolean stepOpen = false;
+	private int openRedoChild;
+	private Object openKey;
+	private Object lastKey;
+	private long lastRecorded;
+
+	// Steps from here down to the root, read back to front by jumps
+	private int[] path = new int[64];
+
+	// Counts changes to the tree or to which revision is current
+	private final ReadOnlyIntegerWrapper changes = new ReadOnlyIntegerWrapper(0);
+
+	private long budget = DEFAULT_BUDGET;
+	private long memoryUsed = 0;
+	private long spilledBytes = 0;
+	private int spilledCount = 0;
+	private int spillCursor = 1;
+	private File spillFile;
+	private RandomAccessFile spill;
+
+	/**
+	 * Starts a new step. Nothing is added to the history until an edit is
+	 * recorded, so a step with no edits in it is never undone.
+	 */
+	void begin() {
+		begin(null);
+	}
+
+	/**
+	 * Starts a new step for edits to one object, such as a drag of one class. If
+	 * the latest step edited the same object and ended less than a second ago,
+	 * it is carried on instead, so a run of quick edits is undone at once.
+	 *
+	 * @param key
+	 *            the object being edited, compared by identity; null never
+	 *            carries on a step
+	 */
+	void begin(Object key) {
+		stepOpen = key != null && key == lastKey && current == revisionCount - 1 && arenaCount != 0
+				&& arena[arenaCount - 1] == current && System.nanoTime() - lastRecorded < MERGE_WINDOW;
+		openKey = key;
+	}
+
+	/*****************************
+	 * RECORDING
+	 ****************************/
+
+	/**
+	 * Records a change to a class's position or size. Values are put back
+	 * exactly, not snapped to the grid again.
+	 */
+	void recordClassInt(int index, int field, int oldValue, int newValue) {
+		touch();
+		if (!mergeInt(SET_CLASS_INT, index, field, newValue)) {
+			open(1, 0);
+			add(SET_CLASS_INT, index, field, oldValue, newValue, SLOT_SIZE);
+		}
+		trim();
+	}
+
+	/**
+	 * Records a change to a class's name, attributes, operations or description.
+	 */
+	void recordClassText(int index, int field, String oldValue, String newValue) {
+		touch();
+		if (!mergeText(SET_CLASS_TEXT, index, field, newValue)) {
+			open(1, 2);
+			add(SET_CLASS_TEXT, index, field, ref(oldValue), ref(newValue),
+					SLOT_SIZE + textSize(oldValue) + textSize(newValue));
+		}
+		trim();
+	}
+
+	/**
+	 * Records a class added at a position, at the end or, when undo put one back,
+	 * before it.
+	 */
+	void recordAddClass(int index, ClassRecord added) {
+		touch();
+		open(1, 1);
+		add(ADD_CLASS, index, 0, ref(added), 0, SLOT_SIZE + recordSize(added));
+		trim();
+	}
+
+	/**
+	 * Records a class removed along with the links attached to it. The links are
+	 * recorded as removed first, last first as the model removes them, so undo
+	 * puts the class back before its links and each at the position it had.
+	 */
+	void recordRemoveClass(int index, ClassRecord removed, int[] linkIndices, LinkRecord[] links) {
+		touch();
+		open(links.length + 1, links.length + 1);
+		for (int n = links.length - 1; n != -1; --n)
+			add(REMOVE_LINK, linkIndices[n], 0, ref(links[n]), 0, SLOT_SIZE + recordSize(links[n]));
+		add(REMOVE_CLASS, index, 0, ref(removed), 0, SLOT_SIZE + recordSize(removed));
+		trim();
+	}
+
+	/**
+	 * Records a change to a link's type, ends or multiplicities.
+	 */
+	void recordLinkInt(int index, int field, int oldValue, int newValue) {
+		touch();
+		if (!mergeInt(SET_LINK_INT, index, field, newValue)) {
+			open(1, 0);
+			add(SET_LINK_INT, index, field, oldValue, newValue, SLOT_SIZE);
+		}
+		trim();
+	}
+
+	/**
+	 * Records a change to a link's label.
+	 */
+	void recordLinkLabel(int index, String oldValue, String newValue) {
+		touch();
+		if (!mergeText(SET_LINK_LABEL, index, 0, newValue)) {
+			open(1, 2);
+			add(SET_LINK_LABEL, index, 0, ref(oldValue), ref(newValue),
+					SLOT_SIZE + textSize(oldValue) + textSize(newValue));
+		}
+		trim();
+	}
+
+	/**
+	 * Records a link added at a position.
+	 */
+	void recordAddLink(int index, LinkRecord added) {
+		touch();
+		open(1, 1);
+		add(ADD_LINK, index, 0, ref(added), 0, SLOT_SIZE + recordSize(added));
+		trim();
+	}
+
+	/**
+	 * Records a link removed on its own.
+	 */
+	void recordRemoveLink(int index, LinkRecord removed) {
+		touch();
+		open(1, 1);
+		add(REMOVE_LINK, index, 0, ref(removed), 0, SLOT_SIZE + recordSize(removed));
+		trim();
+	}
+
+	/**
+	 * Records every class and link removed at once.
+	 *
+	 * @param removed
+	 *            the diagram as it was
+	 */
+	void recordClear(ModelSnapshot removed) {
+		touch();
+		open(1, 1);
+		add(CLEAR, 0, 0, ref(removed), 0, SLOT_SIZE + snapshotSize(removed, true));
+		trim();
+	}
+
+	/**
+	 * Records every link removed at once.
+	 *
+	 * @param removed
+	 *            the diagram as it was
+	 */
+	void recordClearLinks(ModelSnapshot removed) {
+		touch();
+		open(1, 1);
+		add(CLEAR_LINKS, 0, 0, ref(removed), 0, SLOT_SIZE + snapshotSize(removed, false));
+		trim();
+	}
+
+	/**
+	 * Notes an edit under the open key.
+	 */
+	private void touch() {
+		lastKey = openKey;
+		lastRecorded = System.nanoTime();
+	}
+
+	/**
+	 * Makes sure there is a step to record into, with room for the slots and refs
+	 * about to be added. A new step is a child of the current revision, after
+	 * any it already has. Nothing is moved after this, so positions in refs stay
+	 * good until the edit is written.
+	 */
+	private void open(int slotsNeeded, int refsNeeded) {
+		reserve(slotsNeeded * SLOT, refsNeeded);
+		if (stepOpen)
+			return;
+		int step = revisionCount;
+		ensureRevisions(step + 1);
+		parent[step] = current;
+		depth[step] = depth[current] + 1;
+		openRedoChild = redoChild[current];
+		redoChild[current] = step;
+		redoChild[step] = 0;
+		stepKind[step] = 0;
+		stepTime[step] = System.currentTimeMillis();
+		stepSlot[step] = slotEnd;
+		stepLength[step] = 0;
+		stepRef[step] = refEnd;
+		stepRefLength[step] = 0;
+		stepSize[step] = 0;
+		arenaIndex[step] = arenaCount;
+		arena[arenaCount++] = step;
+		current = step;
+		++revisionCount;
+		stepOpen = true;
+		changed();
+	}
+
+	private void add(int kind, int index, int field, int oldValue, int newValue, long size) {
+		slots[slotEnd] = kind;
+		slots[slotEnd + INDEX] = index;
+		slots[slotEnd + FIELD] = field;
+		slots[slotEnd + OLD] = oldValue;
+		slots[slotEnd + NEW] = newValue;
+		slotEnd += SLOT;
+		stepLength[current] += SLOT;
+		stepKind[current] = kind;
+		stepSize[current] += size;
+		memoryUsed += size;
+	}
+
+	/**
+	 * Adds an object to the open step's refs.
+	 *
+	 * @return its position among the step's refs
+	 */
+	private int ref(Object value) {
+		refs[refEnd] = value;
+		++stepRefLength[current];
+		return refEnd++ - stepRef[current];
+	}
+
+	private void changed() {
+		changes.set(changes.get() + 1);
+	}
+
+	/*****************************
+	 * MERGING
+	 ****************************/
+
+	private static boolean setsField(int kind) {
+		return kind == SET_CLASS_INT || kind == SET_CLASS_TEXT || kind == SET_LINK_INT || kind == SET_LINK_LABEL;
+	}
+
+	/**
+	 * Finds an earlier edit in the open step that set the same field, looking
+	 * back past other field edits only, which don't depend on each other.
+	 *
+	 * @return the slot, or -1 if there is none
+	 */
+	private int findField(int kind, int index, int field) {
+		if (!stepOpen)
+			return -1;
+		for (int p = slotEnd - SLOT; p >= stepSlot[current] && setsField(slots[p]); p -= SLOT) {
+			if (slots[p] == kind && slots[p + INDEX] == index && slots[p + FIELD] == field)
+				return p;
+		}
+		return -1;
+	}
+
+	private boolean mergeInt(int kind, int index, int field, int newValue) {
+		int p = findField(kind, index, field);
+		if (p == -1)
+			return false;
+		slots[p + NEW] = newValue;
+		if (slots[p + OLD] == newValue)
+			removeSlot(p, SLOT_SIZE);
+		return true;
+	}
+
+	private boolean mergeText(int kind, int index, int field, String newValue) {
+		int p = findField(kind, index, field);
+		if (p == -1)
+			return false;
+		int base = stepRef[current];
+		String oldValue = (String) refs[base + slots[p + OLD]];
+		long change = textSize(newValue) - textSize((String) refs[base + slots[p + NEW]]);
+		refs[base + slots[p + NEW]] = newValue;
+		stepSize[current] += change;
+		memoryUsed += change;
+		if (Objects.equals(oldValue, newValue)) {
+			refs[base + slots[p + OLD]] = null;
+			refs[base + slots[p + NEW]] = null;
+			removeSlot(p, SLOT_SIZE + 2 * textSize(newValue));
+		}
+		return true;
+	}
+
+	/**
+	 * Drops an edit that ended up changing nothing from the open step, and the
+	 * step too if that leaves it empty, so a drag that puts a class back where it
+	 * was leaves no step behind.
+	 */
+	private void removeSlot(int p, long size) {
+		int step = current;
+		System.arraycopy(slots, p + SLOT, slots, p, slotEnd - p - SLOT);
+		slotEnd -= SLOT;
+		stepLength[step] -= SLOT;
+		stepSize[step] -= size;
+		memoryUsed -= size;
+		if (stepLength[step] != 0) {
+			stepKind[step] = slots[slotEnd - SLOT];
+			return;
+		}
+
+		Arrays.fill(refs, stepRef[step], refEnd, null);
+		refEnd = stepRef[step];
+		memoryUsed -= stepSize[step];
+		--arenaCount;
+		current = parent[step];
+		redoChild[current] = openRedoChild;
+		revisionCount = step;
+		stepOpen = false;
+		lastKey = null;
+		changed();
+	}
+
+	/*****************************
+	 * UNDO AND REDO
+	 ****************************/
+
+	/**
+	 * Reverses the step that led to the current revision, newest edit first.
+	 *
+	 * @param model
+	 *            the model the step was recorded on
+	 */
+	void undo(Model model) {
+		if (current == 0)
+			return;
+		undoStep(model, current);
+		settle();
+	}
+
+	/**
+	 * Repeats the step to the current revision's redo child, oldest edit first.
+	 *
+	 * @param model
+	 *            the model the step was recorded on
+	 */
+	void redo(Model model) {
+		if (redoChild[current] == 0)
+			return;
+		redoStep(model, redoChild[current]);
+		settle();
+	}
+
+	/**
+	 * Makes another revision current. Only the steps between the two are
+	 * applied: those up from the current revision to the nearest revision both
+	 * descend from are undone, then those down from there to the target redone.
+	 *
+	 * @param model
+	 *            the model the steps were recorded on
+	 * @param target
+	 *            the revision to go to
+	 */
+	void jumpTo(Model model, int target) {
+		if (target < 0 || target >= revisionCount || target == current)
+			return;
+		if (path.length < depth[target])
+			path = new int[Math.max(path.length * 2, depth[target])];
+
+		int from = current;
+		int to = target;
+		int down = 0;
+		while (depth[to] > depth[from]) {
+			path[down++] = to;
+			to = parent[to];
+		}
+		while (depth[from] > depth[to]) {
+			from = parent[from];
+		}
+		while (from != to) {
+			from = parent[from];
+			path[down++] = to;
+			to = parent[to];
+		}
+
+		boolean applied = true;
+		while (applied && current != from)
+			applied = undoStep(model, current);
+		while (applied && down != 0)
+			applied = redoStep(model, path[--down]);
+		settle();
+	}
+
+	/**
+	 * Undoes the open step and drops it from the history, as if its edits had
+	 * never been made. Does nothing if no step is open.
+	 *
+	 * @param model
+	 *            the model the step was recorded on
+	 */
+	void discard(Model model) {
+		if (!stepOpen)
+			return;
+		int step = current;
+		undoStep(model, step);
+
+		// The open step is the newest, at the end of the arrays
+		Arrays.fill(refs, stepRef[step], refEnd, null);
+		slotEnd = stepSlot[step];
+		refEnd = stepRef[step];
+		memoryUsed -= stepSize[step];
+		--arenaCount;
+		redoChild[current] = openRedoChild;
+		revisionCount = step;
+		stepOpen = false;
+		lastKey = null;
+		changed();
+	}
+
+	/**
+	 * Undoes one step, reading it back from disk first if need be.
+	 *
+	 * @return false if it couldn't be read, leaving the model as it was
+	 */
+	private boolean undoStep(Model model, int step) {
+		if (!pageIn(step))
+			return false;
+		for (int p = stepSlot[step] + stepLength[step] - SLOT; p >= stepSlot[step]; p -= SLOT)
+			apply(model, p, stepRef[step], true);
+		current = parent[step];
+		redoChild[current] = step;
+		return true;
+	}
+
+	/**
+	 * Redoes one step, reading it back from disk first if need be.
+	 *
+	 * @return false if it couldn't be read, leaving the model as it was
+	 */
+	private boolean redoStep(Model model, int step) {
+		if (!pageIn(step))
+			return false;
+		for (int p = stepSlot[step]; p != stepSlot[step] + stepLength[step]; p += SLOT)
+			apply(model, p, stepRef[step], false);
+		redoChild[parent[step]] = step;
+		current = step;
+		return true;
+	}
+
+	/**
+	 * Closes the open step after moving through the history, so that the next
+	 * edit starts a step of its own.
+	 */
+	private void settle() {
+		stepOpen = false;
+		lastKey = null;
+		changed();
+		trim();
+	}
+
+	/**
+	 * Undoes or redoes the edit in one slot.
+	 */
+	private void apply(Model model, int p, int base, boolean undo) {
+		int index = slots[p + INDEX];
+		int field = slots[p + FIELD];
+		int value = slots[p + (undo ? OLD : NEW)];
+		switch (slots[p]) {
+		case SET_CLASS_INT:
+			model.restoreClassInt(index, field, value);
+			break;
+		case SET_CLASS_TEXT:
+			setClassText(model.getClassModel(index), field, (String) refs[base + value]);
+			break;
+		case SET_LINK_INT:
+			setLinkInt(model.getLinkModel(index), field, value);
+			break;
+		case SET_LINK_LABEL:
+			model.getLinkModel(index).setLabel((String) refs[base + value]);
+			break;
+		case ADD_CLASS:
+		case REMOVE_CLASS:
+			if (undo == (slots[p] == ADD_CLASS)) {
+				model.removeClassModel(index);
+			} else {
+				ClassRecord record = (ClassRecord) refs[base + slots[p + OLD]];
+				model.insertClassModel(index, classInts(record), classStrings(record));
+			}
+			break;
+		case ADD_LINK:
+		case REMOVE_LINK:
+			if (undo == (slots[p] == ADD_LINK)) {
+				model.removeLinkModel(index);
+			} else {
+				LinkRecord record = (LinkRecord) refs[base + slots[p + OLD]];
+				model.insertLinkModel(index, linkInts(record), record.label);
+			}
+			break;
+		case CLEAR:
+			if (undo)
+				model.addRecords((ModelSnapshot) refs[base + slots[p + OLD]], true);
+			else
+				model.clear();
+			break;
+		case CLEAR_LINKS:
+			if (undo)
+				model.addRecords((ModelSnapshot) refs[base + slots[p + OLD]], false);
+			else
+				model.clearLinks();
+			break;
+		}
+	}
+
+	private static void setClassText(ClassModel target, int field, String value) {
+		switch (field) {
+		case 0: target.setName(value); break;
+		case 1: target.setAttr(value); break;
+		case 2: target.setOper(value); break;
+		default: target.setDesc(value); break;
+		}
+	}
+
+	private static void setLinkInt(LinkModel target, int field, int value) {
+		switch (field) {
+		case 1: target.setType(value); break;
+		case 2: target.setSource(value); break;
+		case 3: target.setDest(value); break;
+		case 4: target.setSourceMin(value); break;
+		case 5: target.setSourceMax(value); break;
+		case 6: target.setDestMin(value); break;
+		default: target.setDestMax(value); break;
+		}
+	}
+
+	boolean canUndo() {
+		return current != 0;
+	}
+
+	boolean canRedo() {
+		return redoChild[current] != 0;
+	}
+
+	/*****************************
+	 * REVISIONS
+	 ****************************/
+
+	int getRevision() {
+		return current;
+	}
+
+	int getRevisionCount() {
+		return revisionCount;
+	}
+
+	int getParent(int revision) {
+		return parent[revision];
+	}
+
+	/**
+	 * Returns when a revision's step was started
+	 *
+	 * @return the time, in milliseconds since the epoch, or 0 for revision 0
+	 */
+	long getTime(int revision) {
+		return revision == 0 ? 0 : stepTime[revision];
+	}
+
+	/**
+	 * Says what a revision's step did, by its latest edit.
+	 */
+	String describe(int revision) {
+		if (revision == 0)
+			return "Start";
+		switch (stepKind[revision]) {
+		case SET_CLASS_INT: return "Move class";
+		case SET_CLASS_TEXT: return "Edit class";
+		case ADD_CLASS: return "Add class";
+		case REMOVE_CLASS: return "Delete class";
+		case SET_LINK_INT: return "Edit link";
+		case SET_LINK_LABEL: return "Rename link";
+		case ADD_LINK: return "Add link";
+		case REMOVE_LINK: return "Delete link";
+		case CLEAR: return "Clear elements";
+		default: return "Clear links";
+		}
+	}
+
+	/**
+	 * Returns a property that goes up whenever a revision is added or dropped, or
+	 * another becomes current.
+	 */
+	ReadOnlyIntegerProperty getChangesProp() {
+		return changes.getReadOnlyProperty();
+	}
+
+	/**
+	 * Forgets every step, as when a different diagram is loaded. The arrays are
+	 * kept for the next history.
+	 */
+	void clear() {
+		Arrays.fill(refs, 0, refEnd, null);
+		slotEnd = 0;
+		refEnd = 0;
+		arenaCount = 0;
+		revisionCount = 1;
+		current = 0;
+		redoChild[0] = 0;
+		stepOpen = false;
+		lastKey = null;
+		spilledCount = 0;
+		spillCursor = 1;
+		memoryUsed = 0;
+		spilledBytes = 0;
+		closeSpillIfEmpty();
+		changed();
+	}
+
+	private void ensureRevisions(int count) {
+		if (count <= parent.length)
+			return;
+		int length = Math.max(parent.length * 2, count);
+		parent = Arrays.copyOf(parent, length);
+		depth = Arrays.copyOf(depth, length);
+		redoChild = Arrays.copyOf(redoChild, length);
+		stepKind = Arrays.copyOf(stepKind, length);
+		stepTime = Arrays.copyOf(stepTime, length);
+		stepSlot = Arrays.copyOf(stepSlot, length);
+		stepLength = Arrays.copyOf(stepLength, length);
+		stepRef = Arrays.copyOf(stepRef, length);
+		stepRefLength = Arrays.copyOf(stepRefLength, length);
+		stepSize = Arrays.copyOf(stepSize, length);
+		spillOffset = Arrays.copyOf(spillOffset, length);
+		spillLength = Arrays.copyOf(spillLength, length);
+		arenaIndex = Arrays.copyOf(arenaIndex, length);
+	}
+
+	/*****************************
+	 * ARENA
+	 ****************************/
+
+	/**
+	 * Makes room at the end for one more step's slots and refs, first by moving
+	 * the steps in memory down over the space left by spilled ones, then by
+	 * growing the arrays.
+	 */
+	private void reserve(int slotsNeeded, int refsNeeded) {
+		if (slotEnd + slotsNeeded <= slots.length && refEnd + refsNeeded <= refs.length
+				&& arenaCount < arena.length)
+			return;
+		compact();
+		if (arenaCount + 1 > arena.length / 2)
+			arena = Arrays.copyOf(arena, arena.length * 2);
+		if (slotEnd + slotsNeeded > slots.length / 2)
+			slots = Arrays.copyOf(slots, Math.max(slots.length * 2, slotEnd + slotsNeeded));
+		if (refEnd + refsNeeded > refs.length / 2)
+			refs = Arrays.copyOf(refs, Math.max(refs.length * 2, refEnd + refsNeeded));
+	}
+
+	/**
+	 * Moves the steps in memory to the start of the arrays, keeping their order,
+	 * and drops stale arena entries.
+	 */
+	private void compact() {
+		int slotTo = 0;
+		int refTo = 0;
+		int count = 0;
+		for (int i = 0; i != arenaCount; ++i) {
+			int step = arena[i];
+			if (arenaIndex[step] != i || stepSlot[step] == -1)
+				continue;
+			System.arraycopy(slots, stepSlot[step], slots, slotTo, stepLength[step]);
+			System.arraycopy(refs, stepRef[step], refs, refTo, stepRefLength[step]);
+			stepSlot[step] = slotTo;
+			stepRef[step] = refTo;
+			slotTo += stepLength[step];
+			refTo += stepRefLength[step];
+			arenaIndex[step] = count;
+			arena[count++] = step;
+		}
+		Arrays.fill(refs, refTo, refEnd, null);
+		slotEnd = slotTo;
+		refEnd = refTo;
+		arenaCount = count;
+	}
+
+	/*****************************
+	 * MEMORY
+	 ****************************/
+
+	/**
+	 * Sets how much memory the history may use before its oldest steps are
+	 * written to disk. The steps undo and redo would apply next always stay in
+	 * memory.
+	 *
+	 * @param bytes
+	 *            the budget, in estimated bytes of heap
+	 */
+	void setBudget(long bytes) {
+		budget = bytes;
+		trim();
+	}
+
+	long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the estimated heap used by the steps in memory
+	 *
+	 * @return the estimate, in bytes
+	 */
+	long getMemoryUsed() {
+		return memoryUsed;
+	}
+
+	/**
+	 * Returns the size of the steps written to disk
+	 *
+	 * @return the size, in bytes of the spill file
+	 */
+	long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	/**
+	 * Writes the oldest steps to disk until the history is within its budget.
+	 */
+	private void trim() {
+		while (memoryUsed > budget) {
+			while (spillCursor < revisionCount && stepSlot[spillCursor] == -1)
+				++spillCursor;
+			int step = spillCursor;
+			while (step < revisionCount && (stepSlot[step] == -1 || step == current || step == redoChild[current]))
+				++step;
+			if (step == revisionCount || !spill(step))
+				return;
+		}
+	}
+
+	/**
+	 * Appends a step to the spill file. A history that can't be written to disk
+	 * stays in memory, whatever the budget.
+	 */
+	private boolean spill(int step) {
+		try {
+			if (spill == null) {
+				spillFile = File.createTempFile("undo", ".tmp");
+				spillFile.deleteOnExit();
+				spill = new RandomAccessFile(spillFile, "rw");
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			BinaryModelWriter writer = new BinaryModelWriter(bytes, null, 0);
+			write(writer, step);
+			writer.flush();
+
+			long offset = spill.length();
+			spill.seek(offset);
+			spill.write(bytes.toByteArray());
+			spillOffset[step] = offset;
+			spillLength[step] = bytes.size();
+		} catch (IOException ex) {
+			System.err.println("IO Failure: " + ex);
+			budget = Long.MAX_VALUE;
+			return false;
+		}
+
+		Arrays.fill(refs, stepRef[step], stepRef[step] + stepRefLength[step], null);
+		stepSlot[step] = -1;
+		memoryUsed -= stepSize[step];
+		spilledBytes += spillLength[step];
+		++spilledCount;
+		return true;
+	}
+
+	/**
+	 * Reads a spilled step back after the steps in memory. The file is cut short
+	 * behind it if nothing was written after it, which is the usual case when
+	 * undo and redo walk back over the steps last written.
+	 *
+	 * @return false if the step couldn't be read
+	 */
+	private boolean pageIn(int step) {
+		if (stepSlot[step] != -1)
+			return true;
+		try {
+			byte[] bytes = new byte[spillLength[step]];
+			spill.seek(spillOffset[step]);
+			spill.readFully(bytes);
+			BinaryModelReader reader = new BinaryModelReader(ByteBuffer.wrap(bytes), null, 0);
+			int count = reader.readVarInt();
+			reserve(count * SLOT, 2 * count);
+			int used = read(reader, count, slotEnd, refEnd);
+			stepSlot[step] = slotEnd;
+			stepLength[step] = count * SLOT;
+			stepRef[step] = refEnd;
+			stepRefLength[step] = used;
+			slotEnd += count * SLOT;
+			refEnd += used;
+			arenaIndex[step] = arenaCount;
+			arena[arenaCount++] = step;
+		} catch (IOException ex) {
+			System.err.println("IO Failure: " + ex);
+			return false;
+		}
+
+		memoryUsed += stepSize[step];
+		spilledBytes -= spillLength[step];
+		--spilledCount;
+		if (step < spillCursor)
+			spillCursor = step;
+		try {
+			if (spillOffset[step] + spillLength[step] == spill.length())
+				spill.setLength(spillOffset[step]);
+		} catch (IOException ex) {
+			System.err.println("IO Failure: " + ex);
+		}
+		closeSpillIfEmpty();
+		return true;
+	}
+
+	/**
+	 * Deletes the spill file once no step needs it.
+	 */
+	private void closeSpillIfEmpty() {
+		if (spill == null || spilledCount != 0)
+			return;
+		try {
+			spill.close();
+		} catch (IOException ex) {
+			System.err.println("IO Failure: " + ex);
+		}
+		spillFile.delete();
+		spill = null;
+		spillFile = null;
+		spilledBytes = 0;
+	}
+
+	/*****************************
+	 * SPILL FORMAT
+	 ****************************/
+
+	/**
+	 * Writes one step: its number of edits, then each as its kind, index and
+	 * values, with records in the binary diagram encoding.
+	 */
+	private void write(BinaryModelWriter writer, int step) throws IOException {
+		int base = stepRef[step];
+		int end = stepSlot[step] + stepLength[step];
+		writer.writeVarInt((end - stepSlot[step]) / SLOT);
+		for (int p = stepSlot[step]; p != end; p += SLOT) {
+			writer.writeByte((byte) slots[p]);
+			writer.writeVarInt(slots[p + INDEX]);
+			switch (slots[p]) {
+			case SET_CLASS_INT:
+			case SET_LINK_INT:
+				writer.writeVarInt(slots[p + FIELD]);
+				writer.writeInt(slots[p + OLD]);
+				writer.writeInt(slots[p + NEW]);
+				break;
+			case SET_CLASS_TEXT:
+			case SET_LINK_LABEL:
+				writer.writeVarInt(slots[p + FIELD]);
+				writer.writeString((String) refs[base + slots[p + OLD]]);
+				writer.writeString((String) refs[base + slots[p + NEW]]);
+				break;
+			case ADD_CLASS:
+			case REMOVE_CLASS:
+				writer.writeClass((ClassRecord) refs[base + slots[p + OLD]]);
+				break;
+			case ADD_LINK:
+			case REMOVE_LINK:
+				writer.writeLink((LinkRecord) refs[base + slots[p + OLD]]);
+				break;
+			default:
+				writeSnapshot(writer, (ModelSnapshot) refs[base + slots[p + OLD]], slots[p] == CLEAR);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reads the edits of one step written by write into the arrays.
+	 *
+	 * @return the number of refs used
+	 */
+	private int read(BinaryModelReader reader, int count, int slotStart, int refStart) throws IOException {
+		int ref = 0;
+		for (int p = slotStart; p != slotStart + count * SLOT; p += SLOT) {
+			int kind = reader.readByte();
+			slots[p] = kind;
+			slots[p + INDEX] = reader.readVarInt();
+			slots[p + FIELD] = 0;
+			slots[p + NEW] = 0;
+			switch (kind) {
+			case SET_CLASS_INT:
+			case SET_LINK_INT:
+				slots[p + FIELD] = reader.readVarInt();
+				slots[p + OLD] = reader.readInt();
+				slots[p + NEW] = reader.readInt();
+				break;
+			case SET_CLASS_TEXT:
+			case SET_LINK_LABEL:
+				slots[p + FIELD] = reader.readVarInt();
+				slots[p + OLD] = ref;
+				refs[refStart + ref++] = TextPool.intern(reader.readString());
+				slots[p + NEW] = ref;
+				refs[refStart + ref++] = TextPool.intern(reader.readString());
+				break;
+			case ADD_CLASS:
+			case REMOVE_CLASS:
+				slots[p + OLD] = ref;
+				refs[refStart + ref++] = readClass(reader);
+				break;
+			case ADD_LINK:
+			case REMOVE_LINK:
+				slots[p + OLD] = ref;
+				refs[refStart + ref++] = readLink(reader);
+				break;
+			case CLEAR:
+			case CLEAR_LINKS:
+				slots[p + OLD] = ref;
+				refs[refStart + ref++] = readSnapshot(reader, kind == CLEAR);
+				break;
+			default:
+				Arrays.fill(refs, refStart, refStart + ref, null);
+				throw new ModelFormatException("unknown undo edit " + kind, reader.offset());
+			}
+		}
+		return ref;
+	}
+
+	private static ClassRecord readClass(BinaryModelReader reader) throws IOException {
+		int[] ints = new int[5];
+		String[] strings = new String[4];
+		reader.readClass(ints, strings);
+		for (int i = 0; i != strings.length; ++i)
+			strings[i] = TextPool.intern(strings[i]);
+		return new ClassRecord(ints, strings);
+	}
+
+	private static LinkRecord readLink(BinaryModelReader reader) throws IOException {
+		int[] ints = new int[8];
+		String label = reader.readLink(ints);
+		return new LinkRecord(ints, TextPool.intern(label));
+	}
+
+	private static ModelSnapshot readSnapshot(BinaryModelReader reader, boolean withClasses) throws IOException {
+		ClassRecord[] classes = new ClassRecord[withClasses ? reader.readVarInt() : 0];
+		for (int i = 0; i != classes.length; ++i)
+			classes[i] = readClass(reader);
+		LinkRecord[] links = new LinkRecord[reader.readVarInt()];
+		for (int i = 0; i != links.length; ++i)
+			links[i] = readLink(reader);
+		return new ModelSnapshot(classes, links);
+	}
+
+	private static void writeSnapshot(BinaryModelWriter writer, ModelSnapshot snapshot, boolean withClasses)
+			throws IOException {
+		if (withClasses) {
+			writer.writeVarInt(snapshot.getClassCount());
+			for (int i = 0; i != snapshot.getClassCount(); ++i)
+				writer.writeClass(snapshot.getClassRecord(i));
+		}
+		writer.writeVarInt(snapshot.getLinkCount());
+		for (int i = 0; i != snapshot.getLinkCount(); ++i)
+			writer.writeLink(snapshot.getLinkRecord(i));
+	}
+
+	/*****************************
+	 * SIZES
+	 ****************************/
+
+	static long textSize(String text) {
+		return text == null ? 0 : 40 + 2L * text.length();
+	}
+
+	static long recordSize(ClassRecord record) {
+		return RECORD_SIZE + textSize(record.name) + textSize(record.attr) + textSize(record.oper)
+				+ textSize(record.desc);
+	}
+
+	static long recordSize(LinkRecord record) {
+		return RECORD_SIZE + textSize(record.label);
+	}
+
+	private static long snapshotSize(ModelSnapshot snapshot, boolean withClasses) {
+		long size = 0;
+		for (int i = 0; withClasses && i != snapshot.getClassCount(); ++i)
+			size += recordSize(snapshot.getClassRecord(i));
+		for (int i = 0; i != snapshot.getLinkCount(); ++i)
+			size += recordSize(snapshot.getLinkRecord(i));
+		return size;
+	}
+
+	/*****************************
+	 * RECORDS
+	 ****************************/
+
+	static int[] classInts(ClassRecord record) {
+		return new int[] { record.index, record.xPos, record.yPos, record.width, record.height };
+	}
+
+	static String[] classStrings(ClassRecord record) {
+		return new String[] { record.name, record.attr, record.oper, record.desc };
+	}
+
+	static int[] linkInts(LinkRecord record) {
+		return new int[] { record.index, record.type, record.source, record.dest, record.sourceMin,
+				record.sourceMax, record.destMin, record.destMax };
+	}
+}
@@ -309,6 +309,26 @@ public class Link extends Line {
 		destMultiplicity.updateMultiplicity(type);
 	}
 
+	/**
+	 * returns the LinkNode the link starts at.
+	 * 
+	 * @return
+	 * 			The Link's source LinkNode
+	 */
+	public LinkNode getSourceNode() {
+		return source;
+	}
+
+	/**
+	 * returns the LinkNode the link ends at.
+	 * 
+	 * @return
+	 * 			The Link's destination LinkNode
+	 */
+	public LinkNode getDestNode() {
+		return destination;
+	}
+
 	/**
 	 * returns the label object.
 	 * 
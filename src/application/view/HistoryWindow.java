@@ -0,0 +1,141 @@
+package application.view;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import application.include.Model;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.event.EventHandler;
+import javafx.scene.Scene;
+import javafx.scene.control.TreeItem;
+import javafx.scene.control.TreeView;
+import javafx.stage.Stage;
+import javafx.stage.WindowEvent;
+
+public class HistoryWindow extends Stage {
+
+	private static final int DEFAULT_WIDTH = 300;
+	private static final int DEFAULT_HEIGHT = 500;
+
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss");
+
+	private Model data;
+	private TreeView<String> tree = new TreeView<String>(new TreeItem<String>());
+
+	/*
+	 * One item per revision, by revision. A revision's first child is listed
+	 * after it, so a line of edits reads top to bottom; later children are
+	 * branches, nested under the revision they branch from.
+	 */
+	private List<TreeItem<String>> items = new ArrayList<TreeItem<String>>();
+	private List<Integer> parents = new ArrayList<Integer>();
+	private List<Boolean> hasChild = new ArrayList<Boolean>();
+	private int shown = -1;
+	private boolean syncing = false;
+
+	/**
+	 * Constructs a HistoryWindow instance
+	 *
+	 * @param dataIn
+	 *            The model whose undo history is shown
+	 */
+	public HistoryWindow(Model dataIn) {
+		data = dataIn;
+		this.setTitle("History");
+		tree.setShowRoot(false);
+
+		// Keep up with the history while the window is open
+		data.getHistoryProp().addListener(new ChangeListener<Number>() {
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+				if (isShowing())
+					sync();
+			}
+		});
+
+		this.setOnShowing(new EventHandler<WindowEvent>() {
+			@Override
+			public void handle(WindowEvent e) {
+				// The history may have been cleared and refilled while hidden
+				tree.getRoot().getChildren().clear();
+				items.clear();
+				parents.clear();
+				hasChild.clear();
+				shown = -1;
+				sync();
+			}
+		});
+
+		// Picking a revision goes to it
+		tree.getSelectionModel().selectedItemProperty().addListener(new ChangeListener<TreeItem<String>>() {
+			@Override
+			public void changed(ObservableValue<? extends TreeItem<String>> observable, TreeItem<String> oldValue,
+					TreeItem<String> newValue) {
+				if (syncing || newValue == null)
+					return;
+				data.goToRevision(items.indexOf(newValue));
+			}
+		});
+
+		Scene scene = new Scene(tree, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+		this.setScene(scene);
+	}
+
+	/**
+	 * Brings the tree up to date with the history: drops revisions that are gone,
+	 * adds new ones, and selects the current one.
+	 */
+	private void sync() {
+		syncing = true;
+		int count = data.getRevisionCount();
+
+		// Revisions are dropped newest first, when a step ends up changing nothing
+		// or a new diagram starts a new history
+		for (int revision = items.size() - 1; revision >= count; --revision) {
+			TreeItem<String> item = items.remove(revision);
+			int parent = parents.remove(revision);
+			if (item.getParent() != items.get(parent))
+				hasChild.set(parent, false);
+			item.getParent().getChildren().remove(item);
+			hasChild.remove(revision);
+		}
+		if (shown >= count)
+			shown = -1;
+
+		for (int revision = items.size(); revision != count; ++revision) {
+			TreeItem<String> item = new TreeItem<String>(label(revision));
+			item.setExpanded(true);
+			int parent = revision == 0 ? -1 : data.getRevisionParent(revision);
+			if (revision == 0) {
+				tree.getRoot().getChildren().add(item);
+			} else {
+				if (hasChild.get(parent))
+					items.get(parent).getChildren().add(item);
+				else
+					items.get(parent).getParent().getChildren().add(item);
+				hasChild.set(parent, true);
+			}
+			items.add(item);
+			parents.add(parent);
+			hasChild.add(false);
+		}
+
+		// The step shown last may have taken more edits since
+		if (shown > 0)
+			items.get(shown).setValue(label(shown));
+		shown = data.getRevision();
+		items.get(shown).setValue(label(shown));
+		tree.getSelectionModel().select(items.get(shown));
+		tree.scrollTo(tree.getSelectionModel().getSelectedIndex());
+		syncing = false;
+	}
+
+	private String label(int revision) {
+		if (revision == 0)
+			return data.describeRevision(revision);
+		return data.describeRevision(revision) + "  " + timeFormat.format(new Date(data.getRevisionTime(revision)));
+	}
+}
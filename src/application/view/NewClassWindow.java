@@ -1,6 +1,7 @@
 package application.view;
 
 import application.include.Model;
+import application.include.Model.ClassModel;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.Node;
@@ -93,17 +94,23 @@ public class NewClassWindow extends Stage {
 			@Override
 			public void handle(ActionEvent e) {
 				data.saveUndoState();
-				data.clearRedoState();
 
 				if (editIndex == -1) {
 					data.addClassModel(new int[] { data.getClassTail(), 0, 0, 100, 100 },
 							new String[] { newClassName.getText(), newClassAttr.getText(), newClassOper.getText(),
 									newClassDesc.getText() });
 				} else {
-					data.getClassModel(editIndex).setName(newClassName.getText());
-					data.getClassModel(editIndex).setAttr(newClassAttr.getText());
-					data.getClassModel(editIndex).setOper(newClassOper.getText());
-					data.getClassModel(editIndex).setDesc(newClassDesc.getText());
+					// One update for the block rather than one per field
+					data.transaction(new Runnable() {
+						@Override
+						public void run() {
+							ClassModel model = data.getClassModel(editIndex);
+							model.setName(newClassName.getText());
+							model.setAttr(newClassAttr.getText());
+							model.setOper(newClassOper.getText());
+							model.setDesc(newClassDesc.getText());
+						}
+					});
 				}
 				closeWindow();
 				e.consume();
@@ -3,6 +3,7 @@ package application.view;
 import java.util.function.UnaryOperator;
 
 import application.include.Model;
+import application.include.Model.LinkModel;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
@@ -95,7 +96,6 @@ public class NewLinkWindow extends Stage {
 			@Override
 			public void handle(ActionEvent e) {
 				data.saveUndoState();
-				data.clearRedoState();
 				if(editIndex == -1)
 				{
 
@@ -123,20 +123,32 @@ public class NewLinkWindow extends Stage {
 					} catch (NumberFormatException ex) {
 					}
 				} else {
-					data.getLinkModel(editIndex).setLabel(newLinkLabel.getText());
-					data.getLinkModel(editIndex).setType(newLinkArrow.getSelectionModel().getSelectedIndex());
-					data.getLinkModel(editIndex).setSourceMin(newSrcMultiMin.getText().length() == 0 ? -2
-							: (newSrcMultiMin.getText().matches("(\\*)*") ? -1
-									: Integer.parseInt(newSrcMultiMin.getText())));
-					data.getLinkModel(editIndex).setSourceMax(newSrcMultiMax.getText().length() == 0 ? -2
-							: (newSrcMultiMax.getText().matches("(\\*)*") ? -1
-									: Integer.parseInt(newSrcMultiMax.getText())));
-					data.getLinkModel(editIndex).setDestMin(newDestMultiMin.getText().length() == 0 ? -2
-							: (newDestMultiMin.getText().matches("(\\*)*") ? -1
-									: Integer.parseInt(newDestMultiMin.getText())));
-					data.getLinkModel(editIndex).setDestMax(newDestMultiMax.getText().length() == 0 ? -2
-							: (newDestMultiMax.getText().matches("(\\*)*") ? -1
-									: Integer.parseInt(newDestMultiMax.getText())));
+					// A multiplicity that doesn't parse leaves the link as it was
+					try {
+						data.transaction(new Runnable() {
+							@Override
+							public void run() {
+								LinkModel model = data.getLinkModel(editIndex);
+								model.setLabel(newLinkLabel.getText());
+								model.setType(newLinkArrow.getSelectionModel().getSelectedIndex());
+								model.setSourceMin(newSrcMultiMin.getText().length() == 0 ? -2
+										: (newSrcMultiMin.getText().matches("(\\*)*") ? -1
+												: Integer.parseInt(newSrcMultiMin.getText())));
+								model.setSourceMax(newSrcMultiMax.getText().length() == 0 ? -2
+										: (newSrcMultiMax.getText().matches("(\\*)*") ? -1
+												: Integer.parseInt(newSrcMultiMax.getText())));
+								model.setDestMin(newDestMultiMin.getText().length() == 0 ? -2
+										: (newDestMultiMin.getText().matches("(\\*)*") ? -1
+												: Integer.parseInt(newDestMultiMin.getText())));
+								model.setDestMax(newDestMultiMax.getText().length() == 0 ? -2
+										: (newDestMultiMax.getText().matches("(\\*)*") ? -1
+												: Integer.parseInt(newDestMultiMax.getText())));
+							}
+						});
+					} catch (NumberFormatException ex) {
+						e.consume();
+						return;
+					}
 				}				
 				closeWindow();
 				e.consume();
@@ -147,7 +159,6 @@ public class NewLinkWindow extends Stage {
 			@Override
 			public void handle(ActionEvent e) {
 				data.saveUndoState();
-				data.clearRedoState();
 				data.removeLinkModel(editIndex);
 				closeWindow();
 				e.consume();
@@ -1,14 +1,31 @@
 package application.view;
 
 import java.io.File;
-import java.io.IOException;
-
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+import application.include.CompressedModelFile;
 import application.include.Model;
+import application.include.Model.ClassModel;
 import application.objects.Arrow;
 import application.objects.ClassBlock;
 import application.objects.Label;
 import application.objects.Link;
 import application.objects.Multiplicity;
+import javafx.animation.Animation;
+import javafx.animation.AnimationTimer;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.collections.ListChangeListener;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.print.PageLayout;
@@ -16,13 +33,23 @@ import javafx.print.PageOrientation;
 import javafx.print.Paper;
 import javafx.print.Printer;
 import javafx.print.PrinterJob;
+import javafx.scene.Node;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
+import javafx.scene.control.DialogEvent;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.RadioMenuItem;
 import javafx.scene.control.ScrollPane;
+import javafx.scene.control.TextField;
+import javafx.scene.control.Toggle;
 import javafx.scene.control.ToggleButton;
+import javafx.scene.control.ToggleGroup;
+import javafx.scene.control.Tooltip;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
@@ -31,6 +58,8 @@ import javafx.scene.layout.Pane;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
+import javafx.stage.WindowEvent;
+import javafx.util.Duration;
 
 public class ProgramWindow extends Stage {
 
@@ -52,6 +81,10 @@ public class ProgramWindow extends Stage {
 	private Menu view = new Menu("View");
 	public MenuItem save = new MenuItem("Save...");
 	public MenuItem load = new MenuItem("Load...");
+	public Menu compression = new Menu("Compression (.umlz)");
+	public RadioMenuItem fastest = new RadioMenuItem("Fastest");
+	public RadioMenuItem balanced = new RadioMenuItem("Balanced");
+	public RadioMenuItem smallest = new RadioMenuItem("Smallest");
 	public MenuItem export = new MenuItem("Export...");
 	public MenuItem clear = new MenuItem("Clear elements");
 	public MenuItem clearLinks = new MenuItem("Clear links");
@@ -70,7 +103,46 @@ public class ProgramWindow extends Stage {
 	public ToggleButton linkMode = new ToggleButton("");
 	public Button undo = new Button("Undo...");
 	public Button redo = new Button("Redo...");
+	public Button history = new Button("History...");
+	public ProgressBar loadProgress = new ProgressBar();
+	public Button cancelLoad = new Button("Cancel load");
+	public TextField search = new TextField();
+
+	// The class blocks marked as matching the search, and whether a search is
+	// waiting to run again after the classes changed
+	private List<ClassBlock> matches = new ArrayList<ClassBlock>();
+	private boolean searchQueued = false;
 	
+	// How often a recovery copy of a changed diagram is written
+	private final Duration AUTOSAVE_INTERVAL = Duration.seconds(30);
+	private Timeline autosave;
+
+	private HistoryWindow historyWindow;
+
+	// Hands the end of a background save back to the FX thread
+	private final Executor fxThread = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			Platform.runLater(command);
+		}
+	};
+
+	// Runs commands at the start of the next frame, so a background load adds at
+	// most one batch per frame and the window is redrawn in between
+	private final Queue<Runnable> frameQueue = new ConcurrentLinkedQueue<Runnable>();
+	private final Executor nextFrame = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			frameQueue.add(command);
+		}
+	};
+	private final AnimationTimer frames = new AnimationTimer() {
+		@Override
+		public void handle(long now) {
+			for (int queued = frameQueue.size(); queued != 0; --queued)
+				frameQueue.poll().run();
+		}
+	};
 
 	public ProgramWindow(Model dataIn) {
 		Stage ref = this;
@@ -89,6 +161,10 @@ public class ProgramWindow extends Stage {
 		edit.getStyleClass().add("menuColors");
 		save.getStyleClass().add("menuColors");
 		load.getStyleClass().add("menuColors");
+		compression.getStyleClass().add("menuColors");
+		fastest.getStyleClass().add("menuColors");
+		balanced.getStyleClass().add("menuColors");
+		smallest.getStyleClass().add("menuColors");
 		export.getStyleClass().add("menuColors");
 		clear.getStyleClass().add("menuColors");
 		clearLinks.getStyleClass().add("menuColors");
@@ -99,7 +175,8 @@ public class ProgramWindow extends Stage {
 		winxp.getStyleClass().add("menuColors");
 		
 		// Construct Menu bar
-		file.getItems().addAll(save, load, export);
+		compression.getItems().addAll(fastest, balanced, smallest);
+		file.getItems().addAll(save, load, compression, export);
 		edit.getItems().addAll(clear, clearLinks);
 		skins.getItems().addAll(normal, night, h4ck3r, winxp);
 		view.getItems().add(skins);
@@ -111,6 +188,7 @@ public class ProgramWindow extends Stage {
 		linkMode.getStyleClass().addAll("toolbarButtonsHalf", "toolbarButtonsColor");
 		undo.getStyleClass().addAll("toolbarButtons", "toolbarButtonsColor");
 		redo.getStyleClass().addAll("toolbarButtons", "toolbarButtonsColor");
+		history.getStyleClass().addAll("toolbarButtons", "toolbarButtonsColor");
 		
 		tools.add(newClass, 0, 0, 2, 1);
 		tools.add(dragMode, 0, 2);
@@ -118,6 +196,16 @@ public class ProgramWindow extends Stage {
 		tools.add(linkMode, 1, 2);
 		tools.add(undo, 0, 3, 2, 1);
 		tools.add(redo, 0, 4, 2, 1);
+		tools.add(history, 0, 5, 2, 1);
+		tools.add(loadProgress, 0, 6, 2, 1);
+		tools.add(cancelLoad, 0, 7, 2, 1);
+		tools.add(search, 0, 8, 2, 1);
+		search.setPromptText("Search classes...");
+		search.setMaxWidth(99);
+		cancelLoad.getStyleClass().addAll("toolbarButtons", "toolbarButtonsColor");
+		loadProgress.setMaxWidth(Double.MAX_VALUE);
+		loadProgress.setVisible(false);
+		cancelLoad.setVisible(false);
 		
 
 		// Creates a new class dialog upon click
@@ -154,7 +242,6 @@ public class ProgramWindow extends Stage {
 			@Override
 			public void handle(ActionEvent e) {
 				data.saveUndoState();
-				data.clearRedoState();
 				data.clear();
 				mainPanel.getChildren().clear();
 			}
@@ -164,7 +251,6 @@ public class ProgramWindow extends Stage {
 			@Override
 			public void handle(ActionEvent e) {
 				data.saveUndoState();
-				data.clearRedoState();
 				removeLinks();
 				data.clearLinks();
 			}
@@ -173,26 +259,18 @@ public class ProgramWindow extends Stage {
 		EventHandler<ActionEvent> undoEvent = new EventHandler<ActionEvent>() {
 			@Override
 			public void handle(ActionEvent e) {
-				data.setUndoState();
-				data.saveRedoState();
-				data.clear();
-				mainPanel.getChildren().clear();
 				data.undo();
-				if (data.isUndoEmpty())
-					undo.setDisable(true);
+				undo.setDisable(data.isUndoEmpty());
+				redo.setDisable(data.isRedoEmpty());
 			}
 		};
 
 		EventHandler<ActionEvent> redoEvent = new EventHandler<ActionEvent>() {
 			@Override
 			public void handle(ActionEvent e) {
-				data.setRedoState();
-				data.saveUndoState();
-				data.clear();
-				mainPanel.getChildren().clear();
 				data.redo();
-				if (data.isRedoEmpty())
-					redo.setDisable(true);
+				undo.setDisable(data.isUndoEmpty());
+				redo.setDisable(data.isRedoEmpty());
 			}
 		};
 
@@ -203,13 +281,8 @@ public class ProgramWindow extends Stage {
 				FileChooser dialog = new FileChooser();
 				dialog.setTitle("Save file...");
 				File file = dialog.showSaveDialog(ref);
-				if (file != null) {
-					try {
-						data.save(file);
-					} catch (IOException ex) {
-						System.err.println("IO Failure: " + ex);
-					}
-				}
+				if (file != null)
+					data.saveInBackground(file, fxThread);
 				e.consume();
 			}
 		};
@@ -221,16 +294,18 @@ public class ProgramWindow extends Stage {
 
 				FileChooser dialog = new FileChooser();
 				dialog.setTitle("Open UML file...");
+				dialog.getExtensionFilters().addAll(
+						new FileChooser.ExtensionFilter("UML diagrams", "*.uml", "*" + Model.BINARY_EXTENSION,
+								"*" + CompressedModelFile.EXTENSION),
+						new FileChooser.ExtensionFilter("All files", "*.*"));
 				File file = dialog.showOpenDialog(ref);
 
 				if (file != null) {
+					// Clearing belongs to the new diagram, not the old one's journal
+					data.closeJournal();
 					mainPanel.getChildren().clear();
 					data.clear();
-					try {
-						data.load(file);
-					} catch (IOException ex) {
-						System.err.println("IO Failure: " + ex);
-					}
+					loadInBackground(file);
 				}
 				e.consume();
 			}
@@ -324,7 +399,107 @@ public class ProgramWindow extends Stage {
 		clearLinks.setOnAction(clearLinksEvent);
 		undo.setOnAction(undoEvent);
 		redo.setOnAction(redoEvent);
+
+		// Reports what the undo history is using, to help tune its budget
+		final Tooltip undoUsage = new Tooltip();
+		undoUsage.setOnShowing(new EventHandler<WindowEvent>() {
+			@Override
+			public void handle(WindowEvent e) {
+				undoUsage.setText(String.format("Undo history: %.1f of %.1f MB in memory, %.1f MB on disk",
+						data.getUndoMemoryUsage() / 1048576.0, data.getUndoMemoryBudget() / 1048576.0,
+						data.getUndoSpilledSize() / 1048576.0));
+			}
+		});
+		undo.setTooltip(undoUsage);
+
+		// Shows every revision of the undo history, branches included
+		history.setOnAction(new EventHandler<ActionEvent>() {
+			@Override
+			public void handle(ActionEvent e) {
+				if (historyWindow == null) {
+					historyWindow = new HistoryWindow(data);
+					historyWindow.initOwner(ref);
+				}
+				historyWindow.show();
+				historyWindow.toFront();
+				e.consume();
+			}
+		});
+
+		// Jumps from the history window move the diagram as undo and redo do
+		data.getHistoryProp().addListener(new ChangeListener<Number>() {
+			@Override
+			public void changed(ObservableValue<? extends Number> observable, Number oldValue, Number newValue) {
+				if (data.isLoading())
+					return;
+				undo.setDisable(data.isUndoEmpty());
+				redo.setDisable(data.isRedoEmpty());
+			}
+		});
 		save.setOnAction(saveEvent);
+
+		// Warns of problems found without the user asking, such as a journal
+		// that couldn't be replayed, without stopping the window
+		data.getProblemProp().addListener(new ChangeListener<String>() {
+			@Override
+			public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue) {
+				if (newValue == null)
+					return;
+				Alert warning = new Alert(AlertType.WARNING, newValue);
+				warning.initOwner(ref);
+				warning.setHeaderText(null);
+				warning.setOnHidden(new EventHandler<DialogEvent>() {
+					@Override
+					public void handle(DialogEvent e) {
+						data.dismissProblem();
+					}
+				});
+				warning.show();
+			}
+		});
+
+		// Marks the classes matching the search as it is typed
+		search.textProperty().addListener(new ChangeListener<String>() {
+			@Override
+			public void changed(ObservableValue<? extends String> observable, String oldValue, String newValue) {
+				markMatches();
+			}
+		});
+
+		// Classes added, removed or renamed change what matches. Their blocks are
+		// only in place once every listener has heard, so search again next frame
+		data.getClassProperty().addListener(new ListChangeListener<ClassModel>() {
+			@Override
+			public void onChanged(Change<? extends ClassModel> c) {
+				if (search.getText().isEmpty() || searchQueued)
+					return;
+				searchQueued = true;
+				nextFrame.execute(new Runnable() {
+					@Override
+					public void run() {
+						searchQueued = false;
+						markMatches();
+					}
+				});
+			}
+		});
+
+		// Trades save speed against file size for compressed diagrams
+		ToggleGroup compressionLevels = new ToggleGroup();
+		fastest.setToggleGroup(compressionLevels);
+		balanced.setToggleGroup(compressionLevels);
+		smallest.setToggleGroup(compressionLevels);
+		fastest.setUserData(Deflater.BEST_SPEED);
+		balanced.setUserData(Deflater.DEFAULT_COMPRESSION);
+		smallest.setUserData(Deflater.BEST_COMPRESSION);
+		balanced.setSelected(true);
+		compressionLevels.selectedToggleProperty().addListener(new ChangeListener<Toggle>() {
+			@Override
+			public void changed(ObservableValue<? extends Toggle> observable, Toggle oldValue, Toggle newValue) {
+				if (newValue != null)
+					data.setCompressionLevel((Integer) newValue.getUserData());
+			}
+		});
 		load.setOnAction(loadEvent);
 		export.setOnAction(exportEvent);
 		normal.setOnAction(normalEvent);
@@ -335,6 +510,18 @@ public class ProgramWindow extends Stage {
 		redo.setDisable(true);
 		undo.setDisable(true);
 
+		// Periodically writes a recovery copy of a changed diagram without blocking
+		// the window; only Save writes the diagram itself
+		autosave = new Timeline(new KeyFrame(AUTOSAVE_INTERVAL, new EventHandler<ActionEvent>() {
+			@Override
+			public void handle(ActionEvent e) {
+				data.autosave(fxThread);
+			}
+		}));
+		autosave.setCycleCount(Animation.INDEFINITE);
+		autosave.play();
+		frames.start();
+
 		// Place items on stage
 		root.setTop(menu);
 		root.setLeft(tools);
@@ -363,6 +550,81 @@ public class ProgramWindow extends Stage {
 		}
 	}
 
+	/**
+	 * Marks the class blocks whose classes match the search, and unmarks the
+	 * ones that no longer do.
+	 */
+	private void markMatches() {
+		for (ClassBlock block : matches)
+			block.getStyleClass().remove("searchMatch");
+		matches.clear();
+		if (search.getText().trim().isEmpty())
+			return;
+		for (int i : data.findClasses(search.getText())) {
+			ClassBlock block = data.getClass(i);
+			block.getStyleClass().add("searchMatch");
+			matches.add(block);
+		}
+	}
+
+	/**
+	 * Loads a diagram without blocking the window. The diagram fills in while the
+	 * progress bar runs; it can be scrolled and panned meanwhile, but not edited.
+	 * 
+	 * @param file
+	 *            The file to be read from.
+	 */
+	public void loadInBackground(File file) {
+		final Model.BackgroundLoad loading = data.loadInBackground(file, nextFrame);
+		setLoading(true);
+		loadProgress.progressProperty().bind(loading.progressProperty());
+
+		cancelLoad.setOnAction(new EventHandler<ActionEvent>() {
+			@Override
+			public void handle(ActionEvent e) {
+				loading.cancel();
+				e.consume();
+			}
+		});
+
+		loading.doneProperty().addListener(new ChangeListener<Boolean>() {
+			@Override
+			public void changed(ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) {
+				loadProgress.progressProperty().unbind();
+				// A cancelled or failed load has already been cleared from the model
+				if (!loading.isLoaded())
+					mainPanel.getChildren().clear();
+				if (!data.isLoading())
+					setLoading(false);
+			}
+		});
+	}
+
+	/**
+	 * Shows or hides the load progress, and keeps the diagram from being edited
+	 * while it loads. Dragging anywhere on it pans instead.
+	 */
+	private void setLoading(boolean loading) {
+		loadProgress.setVisible(loading);
+		cancelLoad.setVisible(loading);
+		mainPanel.setMouseTransparent(loading);
+		center.setPannable(loading);
+		newClass.setDisable(loading);
+		dragMode.setDisable(loading);
+		linkMode.setDisable(loading);
+		save.setDisable(loading);
+		load.setDisable(loading);
+		clear.setDisable(loading);
+		clearLinks.setDisable(loading);
+		if (loading) {
+			undo.setDisable(true);
+			redo.setDisable(true);
+		} else {
+			undo.setDisable(data.isUndoEmpty());
+			redo.setDisable(data.isRedoEmpty());
+		}
+	}
+
 	/**
 	 * Clears the main panel of all visible elements.
 	 */
@@ -442,6 +704,16 @@ public class ProgramWindow extends Stage {
 		mainPanel.getChildren().remove(in);
 	}
 
+	/**
+	 * Removes many elements from the main panel in one change.
+	 * 
+	 * @param in
+	 *            The elements to be removed
+	 */
+	public void removeAll(Collection<Node> in) {
+		mainPanel.getChildren().removeAll(new HashSet<Node>(in));
+	}
+
 	/**
 	 * Hands the model this window temporarily so it can properly remove all Links.
 	 * 
@@ -10,7 +10,7 @@ import javafx.stage.Modality;
 
 public class ClassMenu extends ContextMenu {
 
-	int index;
+	int id;
 	Model data;
 	MenuItem edit = new MenuItem("Edit...");
 	MenuItem delete = new MenuItem("Delete");
@@ -21,7 +21,7 @@ public class ClassMenu extends ContextMenu {
 	EventHandler<ActionEvent> editEvent = new EventHandler<ActionEvent>() {
 		@Override
 		public void handle(ActionEvent e) {
-			NewClassWindow dialog = new NewClassWindow(index, data);
+			NewClassWindow dialog = new NewClassWindow(data.getClassById(id).getIndex(), data);
 			dialog.initModality(Modality.APPLICATION_MODAL);
 			dialog.show();
 			e.consume();
@@ -34,7 +34,7 @@ public class ClassMenu extends ContextMenu {
 	EventHandler<ActionEvent> deleteEvent = new EventHandler<ActionEvent>() {
 		@Override
 		public void handle(ActionEvent e) {
-			data.removeClassModel(index);
+			data.removeClassModel(data.getClassById(id).getIndex());
 			e.consume();
 		}
 	};
@@ -42,10 +42,11 @@ public class ClassMenu extends ContextMenu {
 	/*
 	 * Constructs a ClassMenu instance
 	 * 
-	 * WARNING: index contains stale data (index is never updated, no easy way to update)
+	 * The class is kept by ID, which stays the same as classes before it are
+	 * added and removed; its index is looked up when an item is picked.
 	 */
-	public ClassMenu(int i, Model dataIn) {
-		index = i;
+	public ClassMenu(int classId, Model dataIn) {
+		id = classId;
 		data = dataIn;
 
 		edit.setOnAction(editEvent);
@@ -54,8 +55,4 @@ public class ClassMenu extends ContextMenu {
 		this.getItems().add(edit);
 		this.getItems().add(delete);
 	}
-
-	public void updateIndex(int l) {
-		index = l;		
-	}
 }